@@ -25,6 +25,7 @@
 
 package mendel.comm;
 
+import mendel.data.SequenceDictionary;
 import mendel.event.Event;
 import mendel.query.QueryResult;
 import mendel.serialize.ByteSerializable;
@@ -46,6 +47,7 @@ public class QueryResponse implements ByteSerializable, Event {
 
     List<QueryResult> response;
     String queryID, query;
+    SequenceDictionary sequences;
     public long count; // FOR TESTING PURPOSES
 
     /**
@@ -61,10 +63,28 @@ public class QueryResponse implements ByteSerializable, Event {
      */
     public QueryResponse(List<QueryResult> response, String queryID,
                          long count, String query) {
+        this(response, queryID, count, query, new SequenceDictionary());
+    }
+
+    /**
+     * Constructs a QueryResponse that also carries the parent sequences of
+     * the matched windows, one copy per parent. The parent ID of each
+     * matched window must refer to its parent in {@code sequences}.
+     * @param response the list of QueryResults
+     * @param queryID the base query's ID
+     * @param count the number of segments on the storage node. This can be
+     *              set to 0 if not needed.
+     * @param query the base query
+     * @param sequences the parent sequences of the matched windows
+     */
+    public QueryResponse(List<QueryResult> response, String queryID,
+                         long count, String query,
+                         SequenceDictionary sequences) {
         this.response = response;
         this.queryID = queryID;
         this.count = count;
         this.query = query;
+        this.sequences = sequences;
     }
 
     /**
@@ -92,6 +112,15 @@ public class QueryResponse implements ByteSerializable, Event {
         return response;
     }
 
+    /**
+     * Returns the parent sequences of the matched windows, keyed by their
+     * sequence IDs.
+     * @return the parent sequences of the results
+     */
+    public SequenceDictionary getSequences() {
+        return sequences;
+    }
+
 
     @Deserialize
     public QueryResponse(SerializationInputStream in)
@@ -104,6 +133,10 @@ public class QueryResponse implements ByteSerializable, Event {
         queryID = in.readString();
         count = in.readLong();
         query = in.readString();
+        sequences = new SequenceDictionary(in);
+        for (QueryResult result : response) {
+            sequences.resolve(result.getValue());
+        }
     }
 
     @Override
@@ -115,5 +148,6 @@ public class QueryResponse implements ByteSerializable, Event {
         out.writeString(queryID);
         out.writeLong(count);
         out.writeString(query);
+        out.writeSerializable(sequences);
     }
 }
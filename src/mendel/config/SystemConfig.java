@@ -25,6 +25,8 @@
 
 package mendel.config;
 
+import mendel.vptree.VantagePointStrategy;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -65,6 +67,23 @@ public class SystemConfig {
     /** Sliding window for data indexing and retrieval */
     private static int windowSize = 30; // TODO create cofig property for this
 
+    /** Policy for choosing the vantage points of the metadata vp-tree */
+    private static VantagePointStrategy vantagePointStrategy
+            = VantagePointStrategy.FIRST;
+
+    /** Number of threads a storage node evaluates queries with */
+    private static int queryThreads
+            = Runtime.getRuntime().availableProcessors();
+
+    /** Seconds between rebalancing passes over the in-memory index */
+    private static int rebalanceInterval = 60;
+
+    /** Windows held in the in-memory index before they are flushed */
+    private static int indexFlushSize = 1000000;
+
+    /** Bytes of storage traffic held for a slow peer before ingest pauses */
+    private static long peerBacklogBytes = 67108864L;
+
     /**
      * Retrieves the system root directory. This directory is where Mendel
      * stores files.
@@ -113,6 +132,48 @@ public class SystemConfig {
         return windowSize;
     }
 
+    /**
+     * Retrieves the policy used to choose the vantage points of the metadata
+     * vp-tree.
+     */
+    public static VantagePointStrategy getVantagePointStrategy() {
+        return vantagePointStrategy;
+    }
+
+    /**
+     * Retrieves the number of worker threads a storage node uses to evaluate
+     * queries.
+     */
+    public static int getQueryThreads() {
+        return queryThreads;
+    }
+
+    /**
+     * Retrieves the number of seconds between background rebalancing passes
+     * over a storage node's in-memory index; 0 disables rebalancing.
+     */
+    public static int getRebalanceInterval() {
+        return rebalanceInterval;
+    }
+
+    /**
+     * Retrieves the number of windows a storage node's in-memory index holds
+     * before they are flushed to a new mapped index segment in the
+     * background; 0 disables automatic flushes.
+     */
+    public static int getIndexFlushSize() {
+        return indexFlushSize;
+    }
+
+    /**
+     * Retrieves the number of bytes of storage traffic a storage node holds
+     * for a peer that cannot keep up before it stops reading from the client
+     * uploading the data.
+     */
+    public static long getPeerBacklogBytes() {
+        return peerBacklogBytes;
+    }
+
     /**
      * Reloads the Mendel system configuration.
      */
@@ -179,6 +240,72 @@ public class SystemConfig {
         }
         stagedDataDir = staged;
         logger.info("Staged data directory set to: " + stagedDataDir);
+
+        /* Determine the vantage point selection policy */
+        String strategy = prop.getProperty("vptree.vantage.strategy");
+        if (strategy != null && !strategy.equals("")) {
+            try {
+                vantagePointStrategy = VantagePointStrategy.forName(strategy);
+            } catch (IllegalArgumentException e) {
+                logger.warning("Unknown vptree.vantage.strategy: " + strategy
+                        + ". Using " + vantagePointStrategy);
+            }
+        }
+        logger.info("Vantage point strategy set to: " + vantagePointStrategy);
+
+        /* Determine the size of the query worker pool */
+        String threads = prop.getProperty("query.threads");
+        if (threads != null && !threads.equals("")) {
+            try {
+                queryThreads = Math.max(1, Integer.parseInt(threads.trim()));
+            } catch (NumberFormatException e) {
+                logger.warning("Invalid query.threads: " + threads
+                        + ". Using " + queryThreads);
+            }
+        }
+        logger.info("Query worker threads set to: " + queryThreads);
+
+        /* Determine how often the in-memory index is rebalanced */
+        String interval = prop.getProperty("vptree.rebalance.interval");
+        if (interval != null && !interval.equals("")) {
+            try {
+                rebalanceInterval = Math.max(0,
+                        Integer.parseInt(interval.trim()));
+            } catch (NumberFormatException e) {
+                logger.warning("Invalid vptree.rebalance.interval: "
+                        + interval + ". Using " + rebalanceInterval);
+            }
+        }
+        logger.info("Index rebalance interval set to: " + rebalanceInterval
+                + " s");
+
+        /* Determine how many windows are held in memory before a flush */
+        String flushSize = prop.getProperty("vptree.flush.size");
+        if (flushSize != null && !flushSize.equals("")) {
+            try {
+                indexFlushSize = Math.max(0,
+                        Integer.parseInt(flushSize.trim()));
+            } catch (NumberFormatException e) {
+                logger.warning("Invalid vptree.flush.size: "
+                        + flushSize + ". Using " + indexFlushSize);
+            }
+        }
+        logger.info("Index flush size set to: " + indexFlushSize
+                + " windows");
+
+        /* Determine how much storage traffic is held for a slow peer */
+        String backlog = prop.getProperty("peer.backlog.bytes");
+        if (backlog != null && !backlog.equals("")) {
+            try {
+                peerBacklogBytes = Math.max(0,
+                        Long.parseLong(backlog.trim()));
+            } catch (NumberFormatException e) {
+                logger.warning("Invalid peer.backlog.bytes: "
+                        + backlog + ". Using " + peerBacklogBytes);
+            }
+        }
+        logger.info("Peer backlog limit set to: " + peerBacklogBytes
+                + " bytes");
     }
 
     /**
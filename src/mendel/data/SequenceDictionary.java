@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.data;
+
+import mendel.serialize.ByteSerializable;
+import mendel.serialize.SerializationInputStream;
+import mendel.serialize.SerializationOutputStream;
+import mendel.vptree.types.Sequence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a single copy of each parent sequence that sequence windows were cut
+ * from. Windows refer to their parent by the integer ID assigned here (plus
+ * their offset into the parent) instead of each carrying the whole parent
+ * sequence. Parents are identified by their sequence ID (FASTA header).
+ *
+ * @author ctolooee
+ */
+public class SequenceDictionary implements ByteSerializable {
+
+    private List<String> sequenceIDs = new ArrayList<>();
+    private List<String> sequences = new ArrayList<>();
+    private Map<String, Integer> index = new HashMap<>();
+
+    /**
+     * Constructs an empty SequenceDictionary.
+     */
+    public SequenceDictionary() { }
+
+    /**
+     * Adds a parent sequence to the dictionary if it is not already present.
+     * If the sequence ID is known but was registered without its sequence,
+     * the sequence is filled in.
+     *
+     * @param sequenceID the ID of the parent sequence
+     * @param sequence   the parent sequence, or {@code null} if unknown
+     * @return the integer ID of the parent within this dictionary
+     */
+    public synchronized int register(String sequenceID, String sequence) {
+        if (sequence == null) {
+            sequence = "";
+        }
+        Integer id = index.get(sequenceID);
+        if (id == null) {
+            id = sequenceIDs.size();
+            sequenceIDs.add(sequenceID);
+            sequences.add(sequence);
+            index.put(sequenceID, id);
+        } else if (sequences.get(id).isEmpty()) {
+            sequences.set(id, sequence);
+        }
+        return id;
+    }
+
+    /**
+     * Adds every parent sequence of another dictionary to this one.
+     *
+     * @param other the dictionary to copy parent sequences from
+     */
+    public void registerAll(SequenceDictionary other) {
+        List<String> ids;
+        List<String> seqs;
+        synchronized (other) {
+            ids = new ArrayList<>(other.sequenceIDs);
+            seqs = new ArrayList<>(other.sequences);
+        }
+        for (int i = 0; i < ids.size(); ++i) {
+            register(ids.get(i), seqs.get(i));
+        }
+    }
+
+    /**
+     * Returns the integer ID of a parent sequence.
+     *
+     * @param sequenceID the ID of the parent sequence
+     * @return the integer ID, or -1 if the sequence is not registered
+     */
+    public synchronized int lookup(String sequenceID) {
+        Integer id = index.get(sequenceID);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the sequence ID of the parent with the given integer ID.
+     *
+     * @param id the integer ID of the parent
+     * @return the parent's sequence ID
+     */
+    public synchronized String getSequenceID(int id) {
+        return sequenceIDs.get(id);
+    }
+
+    /**
+     * Sets the sequence ID of a window from the parent it refers to in this
+     * dictionary. Windows are serialized with only their parent's ID.
+     *
+     * @param window the window to resolve the sequence ID of
+     */
+    public synchronized void resolve(Sequence window) {
+        int id = window.getParentID();
+        if (id >= 0 && id < sequenceIDs.size()) {
+            window.setSequenceID(sequenceIDs.get(id));
+        }
+    }
+
+    /**
+     * Returns the parent sequence with the given integer ID.
+     *
+     * @param id the integer ID of the parent
+     * @return the parent sequence, or an empty String if it is unknown
+     */
+    public synchronized String getSequence(int id) {
+        return sequences.get(id);
+    }
+
+    /**
+     * Returns the parent sequence with the given sequence ID.
+     *
+     * @param sequenceID the ID of the parent sequence
+     * @return the parent sequence, or {@code null} if it is not registered
+     */
+    public synchronized String getSequence(String sequenceID) {
+        Integer id = index.get(sequenceID);
+        return id == null ? null : sequences.get(id);
+    }
+
+    /**
+     * Returns the number of parent sequences in this dictionary.
+     *
+     * @return the number of parent sequences
+     */
+    public synchronized int size() {
+        return sequenceIDs.size();
+    }
+
+    @Deserialize
+    public SequenceDictionary(SerializationInputStream in)
+            throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            register(in.readString(), in.readString());
+        }
+    }
+
+    @Override
+    public synchronized void serialize(SerializationOutputStream out)
+            throws IOException {
+        out.writeInt(sequenceIDs.size());
+        for (int i = 0; i < sequenceIDs.size(); ++i) {
+            out.writeString(sequenceIDs.get(i));
+            out.writeString(sequences.get(i));
+        }
+    }
+}
@@ -192,6 +192,7 @@ public class FastaParser implements Iterable<String> {
         private int windowSize, position;
         private FastaRecordIterator recordIterator;
         private FastaRecord currentRecord;
+        private String currentID;
 
         public FastaWindowIterator(BufferedReader br) {
             this(br, 100);
@@ -228,17 +229,26 @@ public class FastaParser implements Iterable<String> {
         }
 
         private void advance() {
-            if ((position + windowSize+1) > currentRecord.getSequence().length()) {
+            while ((position + windowSize + 1) > currentRecord.length()) {
                 if (recordIterator.hasNext()) {
                     currentRecord = recordIterator.next();
+                    currentID = null;
+                    position = 0;
                 } else {
                     line = null;
                     return;
                 }
             }
-            line = new ProteinSequence(currentRecord.getSequence().substring(position, position + windowSize));
+            if (currentID == null) {
+                currentID = currentRecord.toString();
+            }
+            /* Every window of a record shares the record's ID and sequence
+             * Strings rather than holding copies of them. */
+            String sequence = currentRecord.getSequence();
+            line = new ProteinSequence(sequence, position, position + windowSize);
             line.setSequenceLength(currentRecord.length());
-            line.setSequenceID(currentRecord.toString());
+            line.setSequenceID(currentID);
+            line.setWholeSequence(sequence);
             line.setSequencePos(position++);
         }
 
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.dht;
+
+import mendel.network.ClientMessageRouter;
+import mendel.network.MendelMessage;
+import mendel.network.NetworkDestination;
+import mendel.network.Transmission;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the messages bound for one peer that its write queue could not take
+ * yet, so a slow peer backs up only its own traffic rather than blocking the
+ * thread that sends to it. Held messages are sent in order as soon as the
+ * peer's write queue has room again.
+ *
+ * @author ctolooee
+ */
+public class PeerOutbox {
+
+    private static final Logger logger = Logger.getLogger("mendel");
+
+    private ClientMessageRouter router;
+    private NetworkDestination destination;
+
+    private Queue<MendelMessage> backlog = new ArrayDeque<>();
+    private long backlogBytes;
+    private boolean draining;
+
+    /* Completed once the backlog shrinks to their key, in bytes */
+    private TreeMap<Long, CompletableFuture<Void>> backlogWaiters
+            = new TreeMap<>();
+
+    public PeerOutbox(ClientMessageRouter router,
+                      NetworkDestination destination) {
+        this.router = router;
+        this.destination = destination;
+    }
+
+    /**
+     * Sends a message to the peer without blocking; if the peer's write queue
+     * is full, the message is held until it has room.
+     */
+    public synchronized void send(MendelMessage message) throws IOException {
+        if (backlog.isEmpty() && trySend(message)) {
+            return;
+        }
+
+        backlog.add(message);
+        backlogBytes += message.getLength();
+        if (draining == false) {
+            draining = true;
+            logger.log(Level.FINE, "Write queue full for {0}; holding "
+                    + "messages", destination);
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Returns a future that completes once no more than the given number of
+     * bytes are held for the peer.  Producers of bulk traffic use this to
+     * slow down to the pace of the peer without waiting on it.
+     */
+    public synchronized CompletableFuture<Void> whenBacklogAtMost(
+            long maxBytes) {
+        if (backlogBytes <= maxBytes) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return backlogWaiters.computeIfAbsent(maxBytes,
+                bytes -> new CompletableFuture<>());
+    }
+
+    /**
+     * @return the number of bytes held for the peer.
+     */
+    public synchronized long getBacklogBytes() {
+        return backlogBytes;
+    }
+
+    private boolean trySend(MendelMessage message) throws IOException {
+        Transmission trans = router.trySendMessage(destination, message);
+        if (trans == null) {
+            return false;
+        }
+        trans.getCompletion().whenComplete((t, e) -> {
+            if (e != null) {
+                logger.log(Level.WARNING, "Failed to send message to "
+                        + destination, e);
+            }
+        });
+        return true;
+    }
+
+    private void scheduleDrain() {
+        router.whenWritable(destination).thenRun(this::drain);
+    }
+
+    /**
+     * Sends held messages until the peer's write queue fills up again.
+     */
+    private void drain() {
+        List<CompletableFuture<Void>> caughtUp = new ArrayList<>();
+        synchronized (this) {
+            while (backlog.isEmpty() == false) {
+                MendelMessage message = backlog.peek();
+                try {
+                    if (trySend(message) == false) {
+                        scheduleDrain();
+                        break;
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Dropping message to "
+                            + destination, e);
+                }
+                backlog.remove();
+                backlogBytes -= message.getLength();
+            }
+            if (backlog.isEmpty()) {
+                draining = false;
+            }
+            Map<Long, CompletableFuture<Void>> ready
+                    = backlogWaiters.tailMap(backlogBytes, true);
+            caughtUp.addAll(ready.values());
+            ready.clear();
+        }
+
+        /* Outside the lock, as producers may send more from here */
+        for (CompletableFuture<Void> waiter : caughtUp) {
+            waiter.complete(null);
+        }
+    }
+}
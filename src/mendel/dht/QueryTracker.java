@@ -22,6 +22,7 @@ software, even if advised of the possibility of such damage.
 
 package mendel.dht;
 
+import mendel.data.SequenceDictionary;
 import mendel.event.EventContext;
 import mendel.query.QueryResult;
 
@@ -42,6 +43,7 @@ public class QueryTracker {
     private final Object resultsLock = new Object();
 
     private List<QueryResult> results;
+    private SequenceDictionary sequences;
     private int sendRecvCount;
     private static long queryCounter = 0;
     private long queryId;
@@ -55,6 +57,7 @@ public class QueryTracker {
             sendRecvCount = 0;
         }
         this.results = new ArrayList<>();
+        this.sequences = new SequenceDictionary();
         this.context = context;
     }
 
@@ -99,4 +102,12 @@ public class QueryTracker {
     public List<QueryResult> getResults() {
         return results;
     }
+
+    public void addSequences(SequenceDictionary response) {
+        sequences.registerAll(response);
+    }
+
+    public SequenceDictionary getSequences() {
+        return sequences;
+    }
 }
\ No newline at end of file
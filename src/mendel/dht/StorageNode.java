@@ -53,6 +53,7 @@ import mendel.fs.MendelFileSystem;
 
 import mendel.network.ClientConnectionPool;
 import mendel.network.HostIdentifier;
+import mendel.network.NetworkDestination;
 import mendel.network.NetworkInfo;
 import mendel.network.NodeInfo;
 import mendel.network.ServerMessageRouter;
@@ -60,19 +61,26 @@ import mendel.network.ServerMessageRouter;
 import mendel.query.SimilarityQuery;
 import mendel.query.QueryResult;
 import mendel.data.Metadata;
+import mendel.data.SequenceDictionary;
 import mendel.serialize.SerializationException;
 import mendel.util.Version;
+import mendel.vptree.SearchBudget;
 import mendel.vptree.types.ProteinSequence;
+import mendel.vptree.types.Sequence;
 
 import java.io.File;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -97,6 +105,14 @@ public class StorageNode implements Node {
     private MendelFileSystem fileSystem;
     private ConcurrentHashMap<String, QueryTracker> queryTrackers
             = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<NetworkDestination, PeerOutbox> outboxes
+            = new ConcurrentHashMap<>();
+
+    /* Smallest run of a query's segments searched as one batch */
+    private static final int SEGMENTS_PER_TASK = 8;
+
+    /* Evaluates queries off the event reactor thread */
+    private ForkJoinPool queryPool;
 
     public StorageNode() {
         this.port = NetworkConfig.DEFAULT_PORT;
@@ -113,6 +129,15 @@ public class StorageNode implements Node {
         System.out.println("Debugging and testing: " + debug);
     }
 
+    /**
+     * Creates a storage node that answers queries against the given file
+     * system on the given pool, without joining a network. Used for testing.
+     */
+    public StorageNode(MendelFileSystem fileSystem, ForkJoinPool queryPool) {
+        this.fileSystem = fileSystem;
+        this.queryPool = queryPool;
+    }
+
     /**
      * Executable to be run on each Mendel storage server.
      *
@@ -158,6 +183,12 @@ public class StorageNode implements Node {
         /* Setup our Shutdown hook */
         Runtime.getRuntime().addShutdownHook(new ShutdownHandler());
 
+        /* Query evaluation runs on its own pool so that the reactor thread
+         * keeps dispatching events while searches are in progress */
+        queryPool = new ForkJoinPool(SystemConfig.getQueryThreads());
+        logger.info("Evaluating queries with " + queryPool.getParallelism()
+                + " threads");
+
         /* Setup file system */
         boolean psuedoFSMode = SystemConfig.getPseudoFS();
         fileSystem = new MendelFileSystem(
@@ -208,6 +239,10 @@ public class StorageNode implements Node {
                 e.printStackTrace();
             }
 
+            if (queryPool != null) {
+                queryPool.shutdownNow();
+            }
+
             if (pidFile != null && pidFile.exists()) {
                 pidFile.delete();
             }
@@ -254,7 +289,7 @@ public class StorageNode implements Node {
 
         for (NodeInfo node : network.getAllNodes()) {
             sendEvent(node, new QueryEvent(new SimilarityQuery(subsequences,
-                    queryString), queryID));
+                    queryString, request.getQuery().getBudget()), queryID));
             tracker.incrementSendRecvCount();
         }
 
@@ -266,30 +301,71 @@ public class StorageNode implements Node {
 
     /**
      * Performs the query versus the data on this Node and replies the results
-     * back to the sender.
+     * back to the sender. The query is evaluated on the query worker pool,
+     * so the reactor can move on to the next event (often another query)
+     * straight away.
      */
     @EventHandler
-    public void handleQuery(QueryEvent request, EventContext context)
-            throws IOException, SerializationException {
+    public void handleQuery(QueryEvent request, EventContext context) {
+        queryPool.execute(() -> {
+            try {
+                evaluateQuery(request, context);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to reply to query "
+                        + request.getQueryID(), e);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Failed to evaluate query "
+                        + request.getQueryID(), e);
+                /* Reply anyway, so the querying node is not left waiting
+                 * for this one */
+                try {
+                    context.sendReply(emptyResponse(request));
+                } catch (IOException | RuntimeException re) {
+                    logger.log(Level.WARNING, "Unable to reply to query "
+                            + request.getQueryID(), re);
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds the response to a query that found nothing on this node.
+     */
+    private QueryResponse emptyResponse(QueryEvent request) {
+        return new QueryResponse(new ArrayList<QueryResult>(),
+                request.getQueryID(), fileSystem.countBlocks(),
+                request.getQuery().getQuerySequence());
+    }
+
+    /**
+     * Searches the local index for every segment of the query and replies
+     * with the matches. Runs on the query worker pool.
+     */
+    private void evaluateQuery(QueryEvent request, EventContext context)
+            throws IOException {
         List<QueryResult> queryResults = new ArrayList<>();
         long start = System.nanoTime();
-        for (String subsequence : request.getQuery().getSequenceSegments()) {
-
-            long NNTime = System.nanoTime();
+        List<String> segments = request.getQuery().getSequenceSegments();
 
-            List<ProteinSequence> resultsNN = fileSystem.nearestNeighboQuery(
-                    subsequence);
+        /* Push the score threshold into the search so the index never
+          visits windows that evaluateNNResults would discard */
+        double[] maxDistances = new double[segments.size()];
+        for (int i = 0; i < maxDistances.length; ++i) {
+            maxDistances[i] = maxDistance(segments.get(i).length());
+        }
 
-            NNTime = System.nanoTime() - NNTime;
-            System.out.printf("NN Time %f\n",
-                    NNTime / 1000000000.0);
+        long NNTime = System.nanoTime();
+        List<List<ProteinSequence>> resultsNN = searchSegments(segments,
+                maxDistances, request.getQuery().getBudget());
+        NNTime = System.nanoTime() - NNTime;
+        System.out.printf("NN Time %f\n",
+                NNTime / 1000000000.0);
 
+        long filterTime = System.nanoTime();
+        for (int i = 0; i < segments.size(); ++i) {
             /* filter out low scoring results */
-            queryResults.addAll(evaluateNNResults(resultsNN, subsequence));
-
-            NNTime = System.nanoTime() - NNTime;
-            System.out.printf("Filter Time %f\n",
-                    NNTime / 1000000000.0);
+            queryResults.addAll(evaluateNNResults(resultsNN.get(i),
+                    segments.get(i)));
 
 
 //            resultsNN.forEach(result -> {
@@ -301,23 +377,23 @@ public class StorageNode implements Node {
 //            });
 
         }
+        filterTime = System.nanoTime() - filterTime;
+        System.out.printf("Filter Time %f\n",
+                filterTime / 1000000000.0);
         if (queryResults.size() > 0) {
             logger.log(Level.INFO, "Handling query {0}",
                     request.getQueryID());
-            QueryResponse queryResponse = new QueryResponse(queryResults,
+            SequenceDictionary parents = new SequenceDictionary();
+            QueryResponse queryResponse = new QueryResponse(
+                    collectParents(queryResults, parents),
                     request.getQueryID(),
                     fileSystem.countBlocks(),
-                    request.getQuery().getQuerySequence());
+                    request.getQuery().getQuerySequence(),
+                    parents);
             context.sendReply(queryResponse);
         } else {
             /* Respond saying we found nothing */
-            QueryResponse queryResponse = new QueryResponse(
-                    new ArrayList<QueryResult>(),
-                    request.getQueryID(),
-                    fileSystem.countBlocks(),
-                    request.getQuery().getQuerySequence());
-
-            context.sendReply(queryResponse);
+            context.sendReply(emptyResponse(request));
             logger.log(Level.INFO, "Query response is null");
         }
         start = System.nanoTime() - start;
@@ -325,14 +401,52 @@ public class StorageNode implements Node {
                 start / 1000000000.0);
     }
 
+    /**
+     * Searches for the nearest neighbors of every segment. Neighboring
+     * segments overlap heavily and are searched together in a single walk
+     * of the index; the runs of segments are searched in parallel on the
+     * query worker pool.
+     */
+    private List<List<ProteinSequence>> searchSegments(List<String> segments,
+                                                       double[] maxDistances,
+                                                       SearchBudget budget) {
+        int runLength = Math.max(SEGMENTS_PER_TASK, (segments.size()
+                + queryPool.getParallelism() - 1) / queryPool.getParallelism());
+
+        List<ForkJoinTask<List<List<ProteinSequence>>>> searches
+                = new ArrayList<>();
+        for (int from = 0; from < segments.size(); from += runLength) {
+            int to = Math.min(segments.size(), from + runLength);
+            List<String> run = segments.subList(from, to);
+            double[] runDistances = Arrays.copyOfRange(maxDistances, from, to);
+            searches.add(ForkJoinTask.adapt(() -> fileSystem
+                    .nearestNeighborQuery(run, 5, runDistances, budget)));
+        }
+        ForkJoinTask.invokeAll(searches);
+
+        List<List<ProteinSequence>> results = new ArrayList<>(
+                segments.size());
+        for (ForkJoinTask<List<List<ProteinSequence>>> search : searches) {
+            results.addAll(search.join());
+        }
+        return results;
+    }
+
+    /**
+     * The distance a window of the given length must score below to be
+     * reported as a match.
+     */
+    private static int maxDistance(int length) {
+        return length * 5;
+    }
+
     private List<QueryResult> evaluateNNResults(List<ProteinSequence> resultsNN,
                                                 String query) {
         List<QueryResult> queryResults = new ArrayList<>();
         for (ProteinSequence sequence : resultsNN) {
             ProteinSequence querySeq = new ProteinSequence(query);
             double distance = sequence.getDistanceTo(querySeq);
-            int maxDistance = sequence.getWord().length() * 5;
-            if (distance < maxDistance) {
+            if (distance < maxDistance(sequence.getLength())) {
                 QueryResult result = new QueryResult(querySeq, sequence);
                 queryResults.add(result);
             }
@@ -341,6 +455,30 @@ public class StorageNode implements Node {
         return queryResults;
     }
 
+    /**
+     * Gathers the parent sequences of the matched windows into
+     * {@code parents} so they can be shipped once per parent rather than
+     * once per result. The returned results refer to their parents by their
+     * IDs in {@code parents}; the indexed windows are left untouched.
+     */
+    private List<QueryResult> collectParents(List<QueryResult> queryResults,
+                                             SequenceDictionary parents) {
+        SequenceDictionary stored = fileSystem.getSequences();
+        List<QueryResult> shipped = new ArrayList<>(queryResults.size());
+        for (QueryResult result : queryResults) {
+            Sequence value = new Sequence(result.getValue());
+            if (value.getParentID() >= 0) {
+                value.setParentID(parents.register(value.getSequenceID(),
+                        stored.getSequence(value.getParentID())));
+            }
+            QueryResult copy = new QueryResult(result.getQuery(), value);
+            copy.setIdentityScore(result.getIdentityScore());
+            copy.setConsecScore(result.getConsecScore());
+            shipped.add(copy);
+        }
+        return shipped;
+    }
+
     /**
      * Forwards all the queries responses from the initial query request back to
      * the client.
@@ -360,11 +498,13 @@ public class StorageNode implements Node {
         tracker.decrementSendRecvCount();
         /* TODO Add a timeout to for query results */
         tracker.addResults(response.getResponse());
+        tracker.addSequences(response.getSequences());
         if (tracker.getSendRecvCount() == 0) {
             System.out.printf("Total NN timer: %f s\n", timer / 1000000000.0);
             List<QueryResult> finalEvaluation = evaluateFinalResults(tracker);
             tracker.getContext().sendReply(new QueryResponse(finalEvaluation,
-                    response.getQueryID(), 1, response.getQuery()));
+                    response.getQueryID(), 1, response.getQuery(),
+                    tracker.getSequences()));
         }
     }
 
@@ -417,13 +557,15 @@ public class StorageNode implements Node {
 //                        queryMatch += match.substring(match.length() - (pos2 - pos1));
 //                    }
 //                }
+                String wholeSequence = tracker.getSequences().getSequence(
+                        queryResults.get(0).getValue().getSequenceID());
                 ProteinSequence matchingSequence = new ProteinSequence(
-                        queryResults.get(0).getValue().getWholeSequece());
+                        wholeSequence == null ? "" : wholeSequence);
                 matchingSequence.setSequenceID(
                         queryResults.get(0).getValue().getSequenceID());
                 matchingSequence.setSequencePos(initalPos);
-                matchingSequence.setSequenceID(
-                        queryResults.get(0).getValue().getSequenceID());
+                matchingSequence.setParentID(tracker.getSequences().lookup(
+                        queryResults.get(0).getValue().getSequenceID()));
 
                 resultList.add(new QueryResult(tracker.getResults()
                         .get(0).getQuery(), matchingSequence));
@@ -457,15 +599,41 @@ public class StorageNode implements Node {
             NodeInfo node = partitioner.locateData(metadata);
             Block entry = sequences.get(node);
             if (entry == null) {
-                Block block = new Block(metadata, rawData);
-                sequences.put(node, block);
+                entry = new Block(metadata, rawData);
+                sequences.put(node, entry);
             } else {
                 entry.addData(metadata, rawData);
             }
+            /* Forward the parent sequence along with its windows */
+            String sequenceID = metadata.getSegment().getSequenceID();
+            String parent = file.getSequences().getSequence(sequenceID);
+            if (parent != null) {
+                entry.getSequences().register(sequenceID, parent);
+            }
         }
+        List<PeerOutbox> destinations = new ArrayList<>();
         for (Map.Entry<NodeInfo, Block> entry : sequences.entrySet()) {
             StorageEvent store = new StorageEvent(entry.getValue());
-            sendEvent(entry.getKey(), store);
+            destinations.add(sendEvent(entry.getKey(), store));
+        }
+
+        /* Stop taking in data from the client while any peer has fallen too
+         * far behind, rather than holding ever more of its data in memory.
+         * The reactor carries on with other events in the meantime. */
+        long maxBacklog = SystemConfig.getPeerBacklogBytes();
+        List<CompletableFuture<Void>> backlogs = new ArrayList<>();
+        for (PeerOutbox outbox : destinations) {
+            CompletableFuture<Void> caughtUp
+                    = outbox.whenBacklogAtMost(maxBacklog);
+            if (caughtUp.isDone() == false) {
+                backlogs.add(caughtUp);
+            }
+        }
+        if (backlogs.isEmpty() == false) {
+            context.pauseReading();
+            CompletableFuture.allOf(backlogs.toArray(
+                    new CompletableFuture<?>[0]))
+                    .thenRun(context::resumeReading);
         }
     }
 
@@ -475,8 +643,20 @@ public class StorageNode implements Node {
         fileSystem.storeBlock(store.getBlock());
     }
 
-    private void sendEvent(NodeInfo node, Event event)
+    /**
+     * Sends an event to another node without waiting for room in its write
+     * queue; events the queue cannot take yet are held in the node's
+     * {@link PeerOutbox}.
+     *
+     * @return the outbox of the destination node
+     */
+    private PeerOutbox sendEvent(NodeInfo node, Event event)
             throws IOException {
-        connectionPool.sendMessage(node, eventReactor.wrapEvent(event));
+        NetworkDestination destination = new NetworkDestination(
+                node.getHostname(), node.getPort());
+        PeerOutbox outbox = outboxes.computeIfAbsent(destination,
+                dest -> new PeerOutbox(connectionPool, dest));
+        outbox.send(eventReactor.wrapEvent(event));
+        return outbox;
     }
 }
@@ -191,7 +191,7 @@ public class VPHashPartitioner extends Partitioner<Metadata> {
                     int len = seq.length();
                     for (int i = 0; i + window_size < len; ++i) {
                         while (i + window_size < len && batch.size() < 800) {
-                            batch.add(new mendel.vptree.types.ProteinSequence(seq.substring(i, i + window_size)));
+                            batch.add(new mendel.vptree.types.ProteinSequence(seq, i, i + window_size));
                             ++i;
                         }
                         groupHash.addAll(batch);
@@ -31,7 +31,6 @@ import mendel.serialize.SerializationInputStream;
 import mendel.serialize.SerializationOutputStream;
 import mendel.serialize.Serializer;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -71,10 +70,10 @@ public class BasicEventWrapper implements EventWrapper {
     @Override
     public Event unwrap(MendelMessage msg)
     throws IOException, SerializationException {
-        ByteArrayInputStream byteIn
-            = new ByteArrayInputStream(msg.getPayload());
-        BufferedInputStream buffIn = new BufferedInputStream(byteIn);
-        SerializationInputStream sIn = new SerializationInputStream(buffIn);
+        /* The payload is already in memory; decode it in place */
+        ByteArrayInputStream byteIn = new ByteArrayInputStream(
+                msg.getPayload(), 0, msg.getLength());
+        SerializationInputStream sIn = new SerializationInputStream(byteIn);
 
         int eventId = sIn.readInt();
         Class<? extends Event> clazz = eventMap.getClass(eventId);
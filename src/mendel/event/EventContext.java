@@ -55,6 +55,22 @@ public class EventContext {
         this.message.getContext().sendMessage(m);
     }
 
+    /**
+     * Stops reading further events from the source of this event until
+     * {@link #resumeReading()} is called. Handlers use this to slow down a
+     * source they cannot keep up with without blocking.
+     */
+    public void pauseReading() {
+        this.message.getContext().pauseReading();
+    }
+
+    /**
+     * Lifts a request made with {@link #pauseReading()}.
+     */
+    public void resumeReading() {
+        this.message.getContext().resumeReading();
+    }
+
     /**
      * @return Server port number that this event was sent to.
      */
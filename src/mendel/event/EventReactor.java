@@ -184,7 +184,13 @@ public class EventReactor implements MessageListener {
         MendelMessage message = messageQueue.take();
 
         try {
-            Event event = eventWrapper.unwrap(message);
+            Event event;
+            try {
+                event = eventWrapper.unwrap(message);
+            } finally {
+                /* The event has been decoded; its buffer can be reused */
+                message.release();
+            }
             Method method = classToMethod.get(event.getClass());
             EventContext context = new EventContext(message, eventWrapper);
             method.invoke(handlerObject, event, context);
@@ -25,10 +25,12 @@ software, even if advised of the possibility of such damage.
 
 package mendel.event;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 
 import mendel.network.MendelMessage;
 import mendel.serialize.SerializationException;
+import mendel.serialize.SerializationInputStream;
 import mendel.serialize.Serializer;
 
 /**
@@ -55,8 +57,11 @@ public class SynopsisWrapper implements EventWrapper {
     public Event unwrap(MendelMessage msg)
     throws IOException, SerializationException {
 
-        EventWithSynopsis event = Serializer.deserialize(
-                EventWithSynopsis.class, msg.getPayload());
+        SerializationInputStream sIn = new SerializationInputStream(
+                new ByteArrayInputStream(
+                        msg.getPayload(), 0, msg.getLength()));
+        EventWithSynopsis event = Serializer.deserializeFromStream(
+                EventWithSynopsis.class, sIn);
         return event;
     }
 }
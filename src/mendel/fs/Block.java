@@ -22,17 +22,21 @@ software, even if advised of the possibility of such damage.
 package mendel.fs;
 
 import mendel.data.Metadata;
+import mendel.data.SequenceDictionary;
 import mendel.serialize.ByteSerializable;
 import mendel.serialize.SerializationException;
 import mendel.serialize.SerializationInputStream;
 import mendel.serialize.SerializationOutputStream;
+import mendel.vptree.types.ProteinSequence;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * The basic unit of storage in Mendel.
+ * The basic unit of storage in Mendel. The parent sequences of the windows in
+ * a block are carried once in a {@link SequenceDictionary} rather than once
+ * per window.
  *
  * @author ctolooee
  */
@@ -40,6 +44,7 @@ import java.util.List;
 public class Block implements ByteSerializable {
     private List<Metadata> metadata;
     private List<byte[]> data;
+    private SequenceDictionary sequences = new SequenceDictionary();
 
     public Block(byte[] data, String name) throws IOException, SerializationException {
         this.metadata = new ArrayList<>();
@@ -53,16 +58,32 @@ public class Block implements ByteSerializable {
         this.data = new ArrayList<>();
         this.metadata.add(metadata);
         this.data.add(data);
+        registerParent(metadata);
     }
 
     public Block(List<Metadata> list, List<byte[]> data) {
         this.metadata = list;
         this.data = data;
+        for (Metadata meta : list) {
+            registerParent(meta);
+        }
     }
 
     public void addData(Metadata meta, byte[] data) {
         this.metadata.add(meta);
         this.data.add(data);
+        registerParent(meta);
+    }
+
+    /**
+     * Records the parent of a window in this block's dictionary, along with
+     * the parent sequence if the window holds it, and points the window at
+     * its entry.
+     */
+    private void registerParent(Metadata meta) {
+        ProteinSequence segment = meta.getSegment();
+        segment.setParentID(sequences.register(segment.getSequenceID(),
+                segment.getWholeSequece()));
     }
 
 
@@ -79,6 +100,10 @@ public class Block implements ByteSerializable {
         for (int i = 0; i < count; i++) {
             data.add(in.readField());
         }
+        this.sequences = new SequenceDictionary(in);
+        for (Metadata meta : metadata) {
+            sequences.resolve(meta.getSegment());
+        }
     }
 
     public List<Metadata> getMetadata() {
@@ -89,6 +114,16 @@ public class Block implements ByteSerializable {
         return data;
     }
 
+    /**
+     * Returns the parent sequences of the windows in this block, keyed by
+     * their sequence IDs.
+     *
+     * @return the parent sequences of this block's windows
+     */
+    public SequenceDictionary getSequences() {
+        return sequences;
+    }
+
     @Override
     public void serialize(SerializationOutputStream out)
             throws IOException {
@@ -100,5 +135,6 @@ public class Block implements ByteSerializable {
         for (byte[] bytes : data) {
             out.writeField(bytes);
         }
+        out.writeSerializable(sequences);
     }
 }
\ No newline at end of file
@@ -26,17 +26,39 @@
 package mendel.fs;
 
 import mendel.data.Metadata;
+import mendel.config.SystemConfig;
+import mendel.data.SequenceDictionary;
 import mendel.serialize.SerializationException;
 import mendel.serialize.Serializer;
 import mendel.util.PerformanceTimer;
+import mendel.vptree.BoundedPriorityQueue;
+import mendel.vptree.ConcurrentVPTree;
+import mendel.vptree.MappedVPTree;
+import mendel.vptree.PointVisitor;
+import mendel.vptree.SearchBudget;
+import mendel.vptree.VPNodeComparator;
+import mendel.vptree.VPPoint;
 import mendel.vptree.types.ProteinSequence;
 import mendel.vptree.VPTree;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.logging.Logger;
 
 public class MendelFileSystem implements FileSystem {
@@ -47,9 +69,38 @@ public class MendelFileSystem implements FileSystem {
     private boolean readOnly;
     private boolean pseudoFS;
     private static final String recoveryFileName = "mendel-metadata";
-
+    private static final String sequencesFileName = "mendel-sequences";
+    private static final String segmentFileName = "mendel-metadata.%d.vpt";
+    /* Matches the segment files, and the single index file written by
+     * older versions (segment 0) */
+    private static final Pattern segmentPattern = Pattern.compile(
+            "mendel-metadata(?:\\.(\\d+))?\\.vpt");
+
+    /* Read-only segments of the index holding the windows flushed out of
+     * memory, oldest first; each is searched in place from disk */
+    final List<MappedVPTree> mappedTrees = new ArrayList<>();
+    private int nextSegment;
+    /* Windows stored since the last flush; a ConcurrentVPTree, so queries
+     * and storage may use it at the same time */
     VPTree<ProteinSequence> metadataTree;
-    long count;
+    /* Windows being written to a new segment; null unless a flush is
+     * running */
+    VPTree<ProteinSequence> flushingTree;
+    SequenceDictionary sequences;
+    final AtomicLong count = new AtomicLong();
+
+    /* Queries and storage share the indexes; only swapping the in-memory
+     * index out for a flush excludes them. */
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+    /* Rebuilds unbalanced subtrees of the in-memory index in the
+     * background; null if rebalancing is disabled */
+    private ScheduledExecutorService rebalancer;
+
+    /* Flushes the in-memory index once it grows large enough; null if
+     * automatic flushes are disabled */
+    private ExecutorService flusher;
+    private final AtomicBoolean flushPending = new AtomicBoolean();
 
     public MendelFileSystem(String storageRoot, boolean pseudoFS)
             throws IOException, FileSystemException {
@@ -124,18 +175,144 @@ public class MendelFileSystem implements FileSystem {
     }
 
     private void initIndex() throws IOException {
-        metadataTree = new VPTree<>();
+        metadataTree = newIndex();
 
-        /* Attempt to recover the index from disk */
-        metadataTree = recoveryManager.recover();
-        recoveryManager.start();
+        /* Recover the parent sequences the indexed windows refer to */
+        sequences = new SequenceDictionary();
+        File sequencesFile = new File(storageDirectory + "/"
+                + sequencesFileName);
+        if (sequencesFile.exists()) {
+            try {
+                sequences = Serializer.restore(SequenceDictionary.class,
+                        sequencesFile);
+            } catch (SerializationException e) {
+                logger.log(Level.SEVERE, "Failed to recover parent " +
+                        "sequences!", e);
+            }
+        }
 
-        if (metadataTree == null) {
+        /* Map the segments of the on-disk index; they are searched in
+         * place, so nothing needs to be rebuilt on the heap. */
+        for (File segment : listSegments()) {
+            try {
+                MappedVPTree mapped = MappedVPTree.open(segment);
+                mappedTrees.add(mapped);
+                logger.info("Mapped index segment of " + mapped.size()
+                        + " windows.");
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to map index segment "
+                        + segment + "!", e);
+            }
+        }
+
+        /* The journal holds the windows that have not been flushed yet */
+        VPTree<ProteinSequence> recovered = recoveryManager.recover();
+        recoveryManager.start();
+        if (recovered != null) {
+            /* Journaled windows only hold their parent's ID */
+            for (Object window : recovered.toArray()) {
+                sequences.resolve((ProteinSequence) window);
+            }
+            metadataTree = new ConcurrentVPTree<>(recovered);
+        } else {
             logger.log(Level.SEVERE, "Failed to recover path journal!");
             recoveryManager.erase();
             recoveryManager.start();
-            metadataTree = new VPTree<>();
         }
+
+        startRebalancer();
+        startFlusher();
+    }
+
+    /**
+     * Lists the segment files of the mapped index, oldest first, and picks
+     * the number of the next segment.
+     */
+    private List<File> listSegments() {
+        TreeMap<Integer, File> segments = new TreeMap<>();
+        File[] files = storageDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = segmentPattern.matcher(file.getName());
+                if (matcher.matches()) {
+                    int number = matcher.group(1) == null ? 0
+                            : Integer.parseInt(matcher.group(1));
+                    segments.put(number, file);
+                }
+            }
+        }
+        nextSegment = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        return new ArrayList<>(segments.values());
+    }
+
+    /**
+     * Starts the background thread that flushes the in-memory index once it
+     * holds {@link SystemConfig#getIndexFlushSize()} windows.
+     */
+    private void startFlusher() {
+        if (SystemConfig.getIndexFlushSize() <= 0) {
+            return;
+        }
+        flusher = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "mendel-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Schedules the periodic rebalancing of the in-memory index, which runs
+     * alongside queries and storage.
+     */
+    private void startRebalancer() {
+        int interval = SystemConfig.getRebalanceInterval();
+        if (interval <= 0) {
+            return;
+        }
+        rebalancer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "mendel-rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rebalancer.scheduleWithFixedDelay(this::rebalanceIndex, interval,
+                interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Rebuilds the unbalanced subtrees of the in-memory index.
+     *
+     * @return the number of subtrees rebuilt
+     */
+    public int rebalanceIndex() {
+        PerformanceTimer timer = new PerformanceTimer();
+        timer.start();
+        int rebuilt;
+        indexLock.readLock().lock();
+        try {
+            rebuilt = metadataTree.rebalance();
+        } catch (RuntimeException e) {
+            /* Keep the scheduled task alive for the next pass */
+            logger.log(Level.WARNING, "Failed to rebalance index", e);
+            return 0;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+        timer.stop();
+        if (rebuilt > 0) {
+            logger.info("Rebuilt " + rebuilt + " index subtrees in "
+                    + timer.getLastResult() + " ms.");
+        }
+        return rebuilt;
+    }
+
+    /**
+     * Creates an empty in-memory index using the configured vantage point
+     * selection policy. The index can be searched while windows are being
+     * added to it.
+     */
+    private VPTree<ProteinSequence> newIndex() {
+        return new ConcurrentVPTree<>(VPTree.DEFAULT_BIN_SIZE,
+                SystemConfig.getVantagePointStrategy());
     }
 
     /**
@@ -248,7 +425,7 @@ public class MendelFileSystem implements FileSystem {
             throws FileSystemException, IOException {
         String blockPath = "";
         for (int i = 0; i < block.getMetadata().size(); ++i) {
-            ++count;
+            count.incrementAndGet();
             String name = block.getMetadata().get(i).getName();
             if (name.equals("")) {
                 UUID blockUUID = UUID.nameUUIDFromBytes(block.getData().get(i));
@@ -257,10 +434,6 @@ public class MendelFileSystem implements FileSystem {
             blockPath = storageDirectory + "/fs/" + name
                     + FileSystem.BLOCK_EXTENSION;
 
-        /* Add metadata to the in-memory map */
-            //metadataMap.put(block.getMetadata().getSeqBlock(), blockPath);
-            metadataTree.add(block.getMetadata().get(i).getSegment());
-
         /* Don't write data to disk if pseudoFS is enabled */
             if (!pseudoFS) {
                 byte[] blockData = Serializer.serialize(block);
@@ -269,9 +442,117 @@ public class MendelFileSystem implements FileSystem {
                 blockOutStream.close();
             }
         }
+
+        /* Add metadata to the in-memory index. The index keeps one copy of
+         * each parent sequence; windows only hold the parent's ID. Searches
+         * carry on while the windows are added. */
+        indexLock.readLock().lock();
+        try {
+            for (Metadata metadata : block.getMetadata()) {
+                ProteinSequence segment = metadata.getSegment();
+                String sequenceID = segment.getSequenceID();
+                int parentID = sequences.register(sequenceID,
+                        block.getSequences().getSequence(sequenceID));
+                segment.setParentID(parentID);
+                segment.setSequenceID(sequences.getSequenceID(parentID));
+                segment.setWholeSequence("");
+                metadataTree.add(segment);
+            }
+            if (flusher != null && metadataTree.size()
+                    >= SystemConfig.getIndexFlushSize()
+                    && flushPending.compareAndSet(false, true)) {
+                flusher.execute(this::backgroundFlush);
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
         return blockPath;
     }
 
+    private void backgroundFlush() {
+        try {
+            flushIndex();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to flush index", e);
+        } finally {
+            flushPending.set(false);
+        }
+    }
+
+    /**
+     * Writes the windows of the in-memory index out to a new segment of the
+     * mapped index and drops them from memory. Only these windows are laid
+     * out anew; the existing segments are neither read nor rewritten.
+     * Queries and storage carry on while the segment is written. If the
+     * segment cannot be written, the windows stay in memory.
+     *
+     * @return the number of windows flushed
+     * @throws IOException if the segment could not be written
+     */
+    public synchronized int flushIndex() throws IOException {
+        VPTree<ProteinSequence> flushing;
+        File segment;
+        indexLock.writeLock().lock();
+        try {
+            if (metadataTree.isEmpty()) {
+                return 0;
+            }
+            flushing = metadataTree;
+            flushingTree = flushing;
+            metadataTree = newIndex();
+            segment = new File(storageDirectory,
+                    String.format(segmentFileName, nextSegment++));
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+
+        PerformanceTimer timer = new PerformanceTimer();
+        timer.start();
+        File tmpSegment = new File(segment.getPath() + ".tmp");
+        MappedVPTree mapped;
+        try {
+            MappedVPTree.write(flushing, tmpSegment);
+            /* The segment refers to parents by their dictionary IDs */
+            Serializer.persist(sequences, storageDirectory + "/"
+                    + sequencesFileName);
+            Files.move(tmpSegment.toPath(), segment.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            mapped = MappedVPTree.open(segment);
+        } catch (IOException | RuntimeException e) {
+            tmpSegment.delete();
+            segment.delete();
+            indexLock.writeLock().lock();
+            try {
+                for (Object window : metadataTree.toArray()) {
+                    flushing.add((ProteinSequence) window);
+                }
+                metadataTree = flushing;
+                flushingTree = null;
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+            throw e;
+        }
+
+        indexLock.writeLock().lock();
+        try {
+            mappedTrees.add(mapped);
+            flushingTree = null;
+            /* Every journaled window is in the new segment. Should the
+             * node die before the journal is cleared, those windows are
+             * indexed twice on restart, but none are lost. */
+            recoveryManager.erase();
+            recoveryManager.start();
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        timer.stop();
+        logger.info("Flushed " + flushing.size() + " windows to "
+                + segment.getName() + " in " + timer.getLastResult()
+                + " ms.");
+        return flushing.size();
+    }
+
     @Override
     public void storeMetadata(Metadata metadata, String blockPath)
             throws FileSystemException, IOException {
@@ -309,7 +590,50 @@ public class MendelFileSystem implements FileSystem {
      * executed, so time is of the essence here.
      */
     public void shutdown() throws IOException, FileSystemException {
-        recoveryManager.writeIndex(metadataTree);
+        if (rebalancer != null) {
+            rebalancer.shutdownNow();
+        }
+        if (flusher != null) {
+            /* A running flush only writes this session's windows; let it
+             * finish rather than journal them a second time */
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Serializer.persist(sequences, storageDirectory + "/"
+                + sequencesFileName);
+        indexLock.writeLock().lock();
+        try {
+            VPTree<ProteinSequence> unflushed = metadataTree;
+            if (flushingTree != null) {
+                List<ProteinSequence> windows = new ArrayList<>();
+                for (Object window : flushingTree.toArray()) {
+                    windows.add((ProteinSequence) window);
+                }
+                for (Object window : metadataTree.toArray()) {
+                    windows.add((ProteinSequence) window);
+                }
+                unflushed = new VPTree<>(windows, metadataTree.getBinSize(),
+                        SystemConfig.getVantagePointStrategy());
+            }
+            recoveryManager.writeIndex(unflushed);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the parent sequences of the windows stored in this file system.
+     * Indexed windows refer to their parent by
+     * {@link mendel.vptree.types.Sequence#getParentID()}.
+     *
+     * @return the parent sequence dictionary
+     */
+    public SequenceDictionary getSequences() {
+        return sequences;
     }
 
     public List<ProteinSequence> nearestNeighboQuery(String query) {
@@ -321,12 +645,162 @@ public class MendelFileSystem implements FileSystem {
 
 
     public List<ProteinSequence> nearestNeighborQuery(String queryString) {
+        return nearestNeighborQuery(queryString, 5, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Finds up to {@code k} stored windows nearest to the query that are no
+     * further than {@code maxDistance} from it, across both the mapped index
+     * segments and the windows stored since the last flush.
+     *
+     * @param queryString the query sequence
+     * @param k           the maximum number of neighbors to return
+     * @param maxDistance the largest distance (inclusive) of a neighbor
+     * @return the neighbors found, in order of increasing distance
+     */
+    public List<ProteinSequence> nearestNeighborQuery(String queryString,
+                                                      int k,
+                                                      double maxDistance) {
         ProteinSequence sequence = new ProteinSequence(queryString);
-        return metadataTree.getNearestNeighbors(sequence, 5);
+        List<ProteinSequence> results;
+        indexLock.readLock().lock();
+        try {
+            results = metadataTree.getNearestNeighbors(sequence, k,
+                    maxDistance);
+            if (flushingTree == null && mappedTrees.isEmpty()) {
+                return results;
+            }
+
+            /* Merge the neighbors from the mapped and in-memory indexes */
+            results = new ArrayList<>(results);
+            if (flushingTree != null) {
+                results.addAll(flushingTree.getNearestNeighbors(sequence, k,
+                        maxDistance));
+            }
+            for (MappedVPTree mapped : mappedTrees) {
+                results.addAll(mapped.getNearestNeighbors(sequence, k,
+                        maxDistance));
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+        Collections.sort(results, new VPNodeComparator(sequence));
+        return results.size() > k ? results.subList(0, k) : results;
+    }
+
+    /**
+     * Finds the nearest stored windows of each of several queries, walking
+     * each index once for the whole batch rather than once per query.
+     *
+     * @param queryStrings the query sequences
+     * @param k            the maximum number of neighbors of each query
+     * @param maxDistances the largest distance (inclusive) of a neighbor
+     *                     from each query, by index
+     * @return for each query, in order, its neighbors in order of
+     * increasing distance
+     */
+    public List<List<ProteinSequence>> nearestNeighborQuery(
+            List<String> queryStrings, int k, double[] maxDistances) {
+        return nearestNeighborQuery(queryStrings, k, maxDistances,
+                SearchBudget.EXACT);
+    }
+
+    /**
+     * Finds approximately the nearest stored windows of each of several
+     * queries. The budget applies to each query's search of each index
+     * separately.
+     *
+     * @see #nearestNeighborQuery(List, int, double[])
+     * @see SearchBudget
+     */
+    public List<List<ProteinSequence>> nearestNeighborQuery(
+            List<String> queryStrings, int k, double[] maxDistances,
+            SearchBudget budget) {
+        List<ProteinSequence> sequences = new ArrayList<>(
+                queryStrings.size());
+        @SuppressWarnings("unchecked")
+        BoundedPriorityQueue<ProteinSequence>[] queues
+                = (BoundedPriorityQueue<ProteinSequence>[]) Array.newInstance(
+                BoundedPriorityQueue.class, queryStrings.size());
+        for (int i = 0; i < queues.length; ++i) {
+            ProteinSequence sequence = new ProteinSequence(
+                    queryStrings.get(i));
+            sequences.add(sequence);
+            queues[i] = new BoundedPriorityQueue<>(sequence, k,
+                    maxDistances[i]);
+            queues[i].setBudget(budget);
+        }
+        VPPoint[] points = sequences.toArray(new VPPoint[0]);
+        List<List<List<ProteinSequence>>> mapped = new ArrayList<>();
+        indexLock.readLock().lock();
+        try {
+            metadataTree.getNearestNeighbors(points, queues);
+            if (flushingTree != null) {
+                flushingTree.getNearestNeighbors(points, queues);
+            }
+            for (MappedVPTree tree : mappedTrees) {
+                mapped.add(tree.getNearestNeighbors(sequences, k,
+                        maxDistances, budget));
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+
+        List<List<ProteinSequence>> results = new ArrayList<>(queues.length);
+        for (int i = 0; i < queues.length; ++i) {
+            List<ProteinSequence> neighbors = queues[i].toSortedList(
+                    sequences.get(i));
+            if (!mapped.isEmpty()) {
+                /* Merge the neighbors from the mapped and in-memory indexes */
+                for (List<List<ProteinSequence>> segment : mapped) {
+                    neighbors.addAll(segment.get(i));
+                }
+                Collections.sort(neighbors,
+                        new VPNodeComparator(sequences.get(i)));
+                if (neighbors.size() > k) {
+                    neighbors = neighbors.subList(0, k);
+                }
+            }
+            results.add(neighbors);
+        }
+        return results;
+    }
+
+    /**
+     * Passes every stored window within {@code radius} of the query to the
+     * visitor as it is found. The visitor may stop the search early. The
+     * visitor runs while the index is locked for reading, so it must not
+     * store blocks in this file system.
+     *
+     * @param queryString the query sequence
+     * @param radius      the largest distance (inclusive) from the query
+     * @param visitor     the visitor to pass matching windows to
+     */
+    public void rangeQuery(String queryString, double radius,
+                           PointVisitor<ProteinSequence> visitor) {
+        ProteinSequence sequence = new ProteinSequence(queryString);
+        indexLock.readLock().lock();
+        try {
+            boolean completed = metadataTree.getPointsWithinRange(sequence,
+                    radius, visitor);
+            if (completed && flushingTree != null) {
+                completed = flushingTree.getPointsWithinRange(sequence,
+                        radius, visitor);
+            }
+            for (MappedVPTree mapped : mappedTrees) {
+                if (!completed) {
+                    break;
+                }
+                completed = mapped.getPointsWithinRange(sequence, radius,
+                        visitor);
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
     }
 
     public long countBlocks() {
-        return count;
+        return count.get();
     }
 
     /**
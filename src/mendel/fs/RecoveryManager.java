@@ -47,6 +47,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.CRC32;
 
+import mendel.config.SystemConfig;
 import mendel.serialize.SerializationException;
 import mendel.serialize.SerializationInputStream;
 import mendel.serialize.SerializationOutputStream;
@@ -108,31 +109,46 @@ public class RecoveryManager {
     }
 
     /**
-     * Recovers vp-tree index stored on disk.
+     * Recovers vp-tree index stored on disk. Each entry of the journal is a
+     * complete index, so the last intact entry is the most recent one.
      */
     private VPTree recoverIndex()
             throws IOException, SerializationException {
-        DataInputStream pathIn = new DataInputStream(
+        byte[] lastBytes = null;
+        try (DataInputStream pathIn = new DataInputStream(
                 new BufferedInputStream(
-                        new FileInputStream(indexFile)));
-
-        long checksum = pathIn.readLong();
-        int indexSize = pathIn.readInt();
-
-        byte[] pathBytes = new byte[indexSize];
-        int read = pathIn.read(pathBytes);
-        if (read != indexSize) {
-            logger.info("Reached end of path index");
+                        new FileInputStream(indexFile)))) {
+            while (true) {
+                long checksum;
+                try {
+                    checksum = pathIn.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                int indexSize = pathIn.readInt();
+
+                byte[] pathBytes = new byte[indexSize];
+                try {
+                    pathIn.readFully(pathBytes);
+                } catch (EOFException e) {
+                    logger.info("Reached end of path index");
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(pathBytes);
+                if (crc.getValue() != checksum) {
+                    logger.warning("Detected checksum mismatch; "
+                            + "ignoring path.");
+                    continue;
+                }
+                lastBytes = pathBytes;
+            }
         }
-
-        CRC32 crc = new CRC32();
-        crc.update(pathBytes);
-        if (crc.getValue() != checksum) {
-            logger.warning("Detected checksum mismatch; ignoring path.");
+        if (lastBytes == null) {
+            throw new EOFException();
         }
-        pathIn.close();
-
-        return deserializeTree(pathBytes);
+        return deserializeTree(lastBytes);
     }
 
     /**
@@ -194,7 +210,8 @@ public class RecoveryManager {
             throws IOException, SerializationException {
         SerializationInputStream sIn = new SerializationInputStream(
                 new ByteArrayInputStream(pathBytes));
-        VPTree vpIndex = new VPTree(sIn);
+        VPTree vpIndex = new VPTree(sIn,
+                SystemConfig.getVantagePointStrategy());
         sIn.close();
         return vpIndex;
     }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.network;
+
+import java.io.IOException;
+
+/**
+ * Signals that a message could not be queued because the write queue of its
+ * destination is full. The message has not been sent; producers should hold
+ * on to it and retry once the destination can take more data (see
+ * {@link ClientMessageRouter#whenWritable(NetworkDestination)}).
+ *
+ * @author ctolooee
+ */
+public class BackpressureException extends IOException {
+    private static final long serialVersionUID = 3174929316528741390L;
+
+    private NetworkDestination destination;
+
+    public BackpressureException(NetworkDestination destination) {
+        super("Write queue full for " + destination);
+        this.destination = destination;
+    }
+
+    /**
+     * @return the destination whose write queue is full.
+     */
+    public NetworkDestination getDestination() {
+        return destination;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable byte arrays for message payloads. Arrays are grouped
+ * into size classes of powers of two; a request is served by the smallest
+ * class that fits it, so an array handed out may be longer than requested.
+ * Each class holds on to a limited number of arrays, and requests larger
+ * than the biggest class are always allocated fresh.
+ * <p/>
+ * Arrays that are never released are simply garbage collected, so releasing
+ * is an optimization rather than an obligation. An array must not be used
+ * after it has been released, though.
+ * <p/>
+ * The system properties
+ * <em>mendel.network.BufferPool.maxBufferSize</em> and
+ * <em>mendel.network.BufferPool.maxPooledBytes</em> tune the largest pooled
+ * array and the number of bytes each size class may hold on to.
+ *
+ * @author ctolooee
+ */
+public class BufferPool {
+
+    /**
+     * The smallest size class holds 1 KB arrays.
+     */
+    public static final int MIN_BUFFER_SIZE = 1024;
+
+    /**
+     * By default, arrays of up to 16 MB are pooled.
+     */
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 16777216;
+
+    /**
+     * By default, each size class holds on to at most 64 MB.
+     */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 67108864L;
+
+    /**
+     * The most arrays any size class holds on to.
+     */
+    private static final int MAX_BUFFERS_PER_CLASS = 1024;
+
+    /**
+     * System property that overrides the largest pooled array size.
+     */
+    public static final String MAX_BUFFER_PROPERTY
+            = "mendel.network.BufferPool.maxBufferSize";
+
+    /**
+     * System property that overrides the bytes held by each size class.
+     */
+    public static final String MAX_POOLED_PROPERTY
+            = "mendel.network.BufferPool.maxPooledBytes";
+
+    private static final BufferPool sharedPool = new BufferPool(
+            Integer.getInteger(MAX_BUFFER_PROPERTY, DEFAULT_MAX_BUFFER_SIZE),
+            Long.getLong(MAX_POOLED_PROPERTY, DEFAULT_MAX_POOLED_BYTES));
+
+    private final int maxBufferSize;
+    private final List<BlockingQueue<byte[]>> classes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong releases = new AtomicLong();
+    private final AtomicLong discards = new AtomicLong();
+
+    /**
+     * Creates a BufferPool.
+     *
+     * @param maxBufferSize  the size of the largest arrays to pool; rounded up
+     *                       to a power of two
+     * @param maxPooledBytes the number of bytes each size class may hold on
+     *                       to (each class holds at least one array)
+     */
+    public BufferPool(int maxBufferSize, long maxPooledBytes) {
+        this.maxBufferSize = classSize(sizeClass(
+                Math.max(maxBufferSize, MIN_BUFFER_SIZE)));
+        int numClasses = sizeClass(this.maxBufferSize) + 1;
+        classes = new ArrayList<>(numClasses);
+        for (int i = 0; i < numClasses; ++i) {
+            long capacity = maxPooledBytes / classSize(i);
+            capacity = Math.max(1, Math.min(capacity, MAX_BUFFERS_PER_CLASS));
+            classes.add(new ArrayBlockingQueue<>((int) capacity));
+        }
+    }
+
+    /**
+     * Retrieves the BufferPool shared by all the MessageRouters in this
+     * process.
+     */
+    public static BufferPool getSharedPool() {
+        return sharedPool;
+    }
+
+    /**
+     * Retrieves an array of at least the given size, reusing a released array
+     * if one is available.
+     *
+     * @param size the minimum length of the array
+     * @return an array of at least {@code size} bytes; its contents are
+     * undefined
+     */
+    public byte[] acquire(int size) {
+        if (size > maxBufferSize) {
+            misses.incrementAndGet();
+            return new byte[size];
+        }
+
+        int sizeClass = sizeClass(size);
+        byte[] buffer = classes.get(sizeClass).poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return new byte[classSize(sizeClass)];
+        }
+        hits.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns an array to this pool so it can be handed out again. Arrays
+     * whose length is not one of the pool's size classes, or whose size class
+     * is already full, are left to the garbage collector.
+     *
+     * @param buffer the array to return; it must not be used afterwards
+     */
+    public void release(byte[] buffer) {
+        int length = buffer.length;
+        if (length < MIN_BUFFER_SIZE || length > maxBufferSize
+                || Integer.bitCount(length) != 1) {
+            discards.incrementAndGet();
+            return;
+        }
+
+        if (classes.get(sizeClass(length)).offer(buffer)) {
+            releases.incrementAndGet();
+        } else {
+            discards.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of requests served with a reused array.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requests that had to allocate a new array.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of arrays returned to the pool for reuse.
+     */
+    public long getReleases() {
+        return releases.get();
+    }
+
+    /**
+     * @return the number of released arrays that were left to the garbage
+     * collector instead of being pooled.
+     */
+    public long getDiscards() {
+        return discards.get();
+    }
+
+    /**
+     * @return the number of arrays currently held by the pool.
+     */
+    public int getPooledBuffers() {
+        int pooled = 0;
+        for (BlockingQueue<byte[]> sizeClass : classes) {
+            pooled += sizeClass.size();
+        }
+        return pooled;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool[hits=" + getHits() + ", misses=" + getMisses()
+                + ", releases=" + getReleases() + ", discards="
+                + getDiscards() + ", pooled=" + getPooledBuffers() + "]";
+    }
+
+    /**
+     * Determines the index of the smallest size class holding arrays of at
+     * least the given size.
+     */
+    private static int sizeClass(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return (32 - Integer.numberOfLeadingZeros(size - 1))
+                - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    private static int classSize(int sizeClass) {
+        return MIN_BUFFER_SIZE << sizeClass;
+    }
+}
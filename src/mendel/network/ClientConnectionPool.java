@@ -26,8 +26,8 @@ software, even if advised of the possibility of such damage.
 package mendel.network;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Extends the standard {@link ClientMessageRouter} by aging out connections
@@ -38,7 +38,8 @@ import java.util.Map;
  */
 public class ClientConnectionPool extends ClientMessageRouter {
 
-    protected Map<NetworkDestination, Long> connectionAge = new HashMap<>();
+    protected Map<NetworkDestination, Long> connectionAge
+            = new ConcurrentHashMap<>();
 
     public ClientConnectionPool()
     throws IOException {
@@ -53,4 +54,13 @@ public class ClientConnectionPool extends ClientMessageRouter {
         connectionAge.put(destination, System.nanoTime());
         return trans;
     }
+
+    @Override
+    public Transmission trySendMessage(NetworkDestination destination,
+            MendelMessage message)
+    throws IOException {
+        Transmission trans = super.trySendMessage(destination, message);
+        connectionAge.put(destination, System.nanoTime());
+        return trans;
+    }
 }
@@ -33,7 +33,12 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -46,16 +51,25 @@ public class ClientMessageRouter extends MessageRouter {
 
     protected static final Logger logger = Logger.getLogger("mendel");
 
-    protected Map<NetworkDestination, SocketChannel> destinationToSocket
-            = new HashMap<>();
-    protected Map<SocketChannel, NetworkDestination> socketToDestination
-            = new HashMap<>();
-    protected Map<SocketChannel, TransmissionTracker> socketToTracker
-            = new HashMap<>();
+    /* Connections are looked up by sending threads without locking, opened
+     * by at most one sending thread per destination, and torn down by the
+     * selector thread. A destination maps to its channel as soon as a
+     * thread starts opening it, so the others can wait for it. */
+    protected ConcurrentMap<NetworkDestination,
+            CompletableFuture<SocketChannel>>
+            destinationToSocket = new ConcurrentHashMap<>();
+    protected ConcurrentMap<SocketChannel, NetworkDestination>
+            socketToDestination = new ConcurrentHashMap<>();
+    protected ConcurrentMap<SocketChannel, TransmissionTracker>
+            socketToTracker = new ConcurrentHashMap<>();
 
     protected Queue<SocketChannel> pendingRegistrations
             = new ConcurrentLinkedQueue<>();
 
+    /** Write queue byte limits for particular destinations */
+    protected Map<NetworkDestination, Long> writeLimits
+            = new ConcurrentHashMap<>();
+
     public ClientMessageRouter()
             throws IOException {
         super();
@@ -100,6 +114,10 @@ public class ClientMessageRouter extends MessageRouter {
             it.remove();
 
             TransmissionTracker tracker = socketToTracker.get(channel);
+            if (tracker == null || channel.isOpen() == false) {
+                /* Disconnected before it could be registered */
+                continue;
+            }
             channel.register(selector, SelectionKey.OP_CONNECT, tracker);
         }
     }
@@ -107,6 +125,11 @@ public class ClientMessageRouter extends MessageRouter {
     /**
      * Ensures that a particular {@link mendel.network.NetworkDestination} has been connected
      * to, and retrieves its relevant {@link mendel.network.TransmissionTracker} instance.
+     * Sends to an established connection only do a map lookup; when several
+     * threads send to a new destination at once, only one of them opens the
+     * connection and the rest wait for it. The connection is opened outside
+     * of the map, so resolving the destination's address holds up no other
+     * destination.
      *
      * @param destination The NetworkDestination to ensure this MessageRouter is
      *                    connected to
@@ -114,27 +137,102 @@ public class ClientMessageRouter extends MessageRouter {
      */
     private TransmissionTracker ensureConnected(NetworkDestination destination)
             throws IOException {
-        SocketChannel channel = destinationToSocket.get(destination);
-        if (channel != null) {
-            return socketToTracker.get(channel);
+        while (true) {
+            CompletableFuture<SocketChannel> pending
+                    = destinationToSocket.get(destination);
+            if (pending == null) {
+                CompletableFuture<SocketChannel> opening
+                        = new CompletableFuture<>();
+                pending = destinationToSocket.putIfAbsent(destination,
+                        opening);
+                if (pending == null) {
+                    pending = opening;
+                    try {
+                        opening.complete(openConnection(destination));
+                    } catch (IOException | RuntimeException e) {
+                        destinationToSocket.remove(destination, opening);
+                        opening.completeExceptionally(e);
+                        throw e;
+                    }
+                }
+            }
+
+            SocketChannel channel;
+            try {
+                channel = pending.join();
+            } catch (CompletionException e) {
+                throw new IOException("Failed to connect to "
+                        + destination, e.getCause());
+            }
+            TransmissionTracker tracker = socketToTracker.get(channel);
+            if (tracker != null) {
+                return tracker;
+            }
+
+            /* The connection was torn down in the meantime; make sure it
+             * is no longer mapped and try again */
+            destinationToSocket.remove(destination, pending);
         }
+    }
 
-        channel = SocketChannel.open();
-        channel.configureBlocking(false);
-        InetSocketAddress address = new InetSocketAddress(
-                destination.getHostname(), destination.getPort());
-        channel.connect(address);
+    /**
+     * Retrieves the channel connected (or connecting) to a destination.
+     *
+     * @return the channel, or null if no connection to the destination has
+     * been opened yet
+     */
+    private SocketChannel getChannel(NetworkDestination destination) {
+        CompletableFuture<SocketChannel> pending
+                = destinationToSocket.get(destination);
+        return channelOf(pending);
+    }
+
+    private static SocketChannel channelOf(
+            CompletableFuture<SocketChannel> pending) {
+        if (pending == null || pending.isDone() == false
+                || pending.isCompletedExceptionally()) {
+            return null;
+        }
+        return pending.join();
+    }
+
+    /**
+     * Starts connecting to a destination.  Called by at most one thread at a
+     * time for each destination, once it has claimed the destination's entry
+     * in destinationToSocket.
+     */
+    private SocketChannel openConnection(NetworkDestination destination)
+            throws IOException {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            /* Writes are already batched; don't hold back the last of a
+             * batch */
+            channel.socket().setTcpNoDelay(true);
+            InetSocketAddress address = new InetSocketAddress(
+                    destination.getHostname(), destination.getPort());
+            channel.connect(address);
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ce) {
+                    logger.log(Level.FINE, "Failed to close channel", ce);
+                }
+            }
+            throw e;
+        }
 
         /* Update data structures for mapping between sockets/keys/trackers */
-        destinationToSocket.put(destination, channel);
         socketToDestination.put(channel, destination);
-        TransmissionTracker tracker = new TransmissionTracker(writeQueueSize);
+        TransmissionTracker tracker = new TransmissionTracker(writeQueueSize,
+                writeLimits.getOrDefault(destination, writeQueueBytes));
         socketToTracker.put(channel, tracker);
 
         /* Finally, put this registration in the pending queue */
         pendingRegistrations.add(channel);
-
-        return tracker;
+        return channel;
     }
 
     /**
@@ -165,24 +263,113 @@ public class ClientMessageRouter extends MessageRouter {
 
         /* Queue the data to be written */
         Transmission trans = null;
-        ByteBuffer payload = wrapWithPrefix(message);
+        ByteBuffer[] payload = wrapWithPrefix(message);
         try {
             trans = tracker.queueOutgoingData(payload);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
 
-        /* Request for interestOps change. */
-        SocketChannel channel = destinationToSocket.get(destination);
-        if (channel.isRegistered() && channel.isConnected()) {
-            changeInterest.put(channel.keyFor(this.selector),
-                    SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        requestWrite(destination);
+        return trans;
+    }
+
+    /**
+     * Sends a message to the specified network destination without blocking.
+     * If the destination's write queue is full, nothing is sent and the
+     * returned future fails with a {@link BackpressureException}; producers
+     * can wait for {@link #whenWritable(NetworkDestination)} and try again.
+     *
+     * @return a future that completes once the message has been written.
+     */
+    public CompletableFuture<Transmission> sendMessageAsync(
+            NetworkDestination destination, MendelMessage message) {
+        CompletableFuture<Transmission> result = new CompletableFuture<>();
+        try {
+            Transmission trans = trySendMessage(destination, message);
+            if (trans == null) {
+                result.completeExceptionally(
+                        new BackpressureException(destination));
+                return result;
+            }
+            return trans.getCompletion();
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
         }
+    }
 
-        selector.wakeup();
+    /**
+     * Sends a message to the specified network destination if its write
+     * queue has room for it.
+     *
+     * @return the Transmission of the message, or null if the destination's
+     * write queue is full and the message was not sent.
+     */
+    public Transmission trySendMessage(NetworkDestination destination,
+                                       MendelMessage message)
+            throws IOException {
+        TransmissionTracker tracker = ensureConnected(destination);
+        Transmission trans = tracker.offerOutgoingData(wrapWithPrefix(message));
+        if (trans != null) {
+            requestWrite(destination);
+        }
         return trans;
     }
 
+    /**
+     * Retrieves a future that completes once the write queue for the given
+     * destination has room for more data.  The future completes straight
+     * away if the queue already has room or the destination is not
+     * connected.
+     */
+    public CompletableFuture<Void> whenWritable(
+            NetworkDestination destination) {
+        SocketChannel channel = getChannel(destination);
+        TransmissionTracker tracker = channel == null
+                ? null : socketToTracker.get(channel);
+        if (tracker == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return tracker.whenWritable();
+    }
+
+    /**
+     * Determines whether the write queue for the given destination has room
+     * for more data.
+     */
+    public boolean isWritable(NetworkDestination destination) {
+        return whenWritable(destination).isDone();
+    }
+
+    /**
+     * Sets the most bytes that may be queued for writing to the given
+     * destination, overriding the router-wide limit.
+     */
+    public void setWriteLimit(NetworkDestination destination, long bytes) {
+        writeLimits.put(destination, bytes);
+        SocketChannel channel = getChannel(destination);
+        TransmissionTracker tracker = channel == null
+                ? null : socketToTracker.get(channel);
+        if (tracker != null) {
+            tracker.setWriteQueueBytes(bytes);
+        }
+    }
+
+    /**
+     * Asks the selector thread to start writing to a destination once its
+     * channel has been connected.
+     */
+    private void requestWrite(NetworkDestination destination) {
+        SocketChannel channel = getChannel(destination);
+        if (channel != null && channel.isRegistered()
+                && channel.isConnected()) {
+            requestWrite(channel.keyFor(this.selector));
+        } else {
+            selector.wakeup();
+        }
+    }
+
     /**
      * Sends a message to the specified node.  Connections are
      * completed during the first send operation.
@@ -200,9 +387,13 @@ public class ClientMessageRouter extends MessageRouter {
         /* Update our ClientMessageRouter-specific data structures when
          * disconnected. */
         SocketChannel channel = (SocketChannel) key.channel();
-        NetworkDestination destination = socketToDestination.get(channel);
-        destinationToSocket.remove(destination);
-        socketToDestination.remove(channel);
+        NetworkDestination destination = socketToDestination.remove(channel);
+        if (destination != null) {
+            /* Leave any newer connection to the destination alone */
+            destinationToSocket.computeIfPresent(destination,
+                    (dest, pending) -> channelOf(pending) == channel
+                            ? null : pending);
+        }
         socketToTracker.remove(channel);
         super.disconnect(key);
     }
@@ -234,7 +425,12 @@ public class ClientMessageRouter extends MessageRouter {
     private void shutdown(boolean forcible) {
         //TODO we need to start refusing send operations here (before doing a
         //final flush of the outgoing queues)
-        for (SocketChannel channel : destinationToSocket.values()) {
+        for (CompletableFuture<SocketChannel> pending
+                : destinationToSocket.values()) {
+            SocketChannel channel = channelOf(pending);
+            if (channel == null) {
+                continue;
+            }
             SelectionKey key = channel.keyFor(this.selector);
 
             /* If this is not a forcible shutdown, then we need to check each
@@ -36,6 +36,8 @@ import java.nio.channels.SelectionKey;
 public class MendelMessage {
 
     private byte[] payload;
+    private int length;
+    private BufferPool pool;
 
     private MessageContext context;
     private SelectionKey key;
@@ -47,6 +49,7 @@ public class MendelMessage {
      */
     public MendelMessage(byte[] payload) {
         this.payload = payload;
+        this.length = payload.length;
     }
 
     /**
@@ -63,7 +66,26 @@ public class MendelMessage {
     }
 
     /**
-     * Retrieves the payload for this MendelMessage.
+     * Constructs a MendelMessage from the first {@code length} bytes of an
+     * array borrowed from a {@link BufferPool}. The array is handed back to
+     * the pool when the message is released.
+     *
+     * @param payload array holding the message payload.
+     * @param length  the size of the payload in bytes.
+     * @param pool    the pool the payload array was acquired from.
+     * @param context context information for this message
+     */
+    public MendelMessage(byte[] payload, int length, BufferPool pool,
+                         MessageContext context) {
+        this(payload, context);
+        this.length = length;
+        this.pool = pool;
+    }
+
+    /**
+     * Retrieves the payload for this MendelMessage. Received messages may
+     * be backed by a pooled array that is longer than the payload, so only
+     * the first {@link #getLength()} bytes are meaningful.
      *
      * @return the MendelMessage payload
      */
@@ -71,6 +93,30 @@ public class MendelMessage {
         return payload;
     }
 
+    /**
+     * Retrieves the size of the payload in bytes.
+     *
+     * @return the payload length
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Hands the payload array back to the pool it was borrowed from, if any,
+     * once the message has been decoded. Neither the payload nor this
+     * message may be used after they have been released.
+     */
+    public void release() {
+        if (pool != null) {
+            BufferPool owner = pool;
+            pool = null;
+            byte[] buffer = payload;
+            payload = null;
+            owner.release(buffer);
+        }
+    }
+
     public MessageContext getContext() {
         return context;
     }
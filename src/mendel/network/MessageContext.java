@@ -80,6 +80,23 @@ public class MessageContext {
         return NetworkDestination.fromSocketChannel(getSocketChannel());
     }
 
+    /**
+     * Stops reading further messages from the originator of this context's
+     * message until {@link #resumeReading()} is called.
+     *
+     * @see MessageRouter#pauseReading(SelectionKey)
+     */
+    public void pauseReading() {
+        router.pauseReading(key);
+    }
+
+    /**
+     * Lifts a request made with {@link #pauseReading()}.
+     */
+    public void resumeReading() {
+        router.resumeReading(key);
+    }
+
     /**
      * Sends a message back to the originator of the message this context
      * belongs to.
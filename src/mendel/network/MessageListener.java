@@ -35,7 +35,9 @@ public interface MessageListener {
 
     /**
      * Called when a message is ready to be processed.  This method is invoked
-     * by a Selector thread (from a {@link MessageRouter} instance).  To avoid
+     * by a Selector thread (from a {@link MessageRouter} instance); a
+     * {@link ServerMessageRouter} may invoke it from several I/O threads at
+     * once.  To avoid
      * hurting performance, the implementation of onMessage must be lightweight.
      * In fact, blocking in this method implementation can cause serious
      * problems.
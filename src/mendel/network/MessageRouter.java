@@ -36,8 +36,10 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -58,17 +60,37 @@ public abstract class MessageRouter implements Runnable {
     public static final int PREFIX_SZ = Integer.SIZE / Byte.SIZE;
 
     /**
-     * The default read buffer size is 8 MB.
+     * The default read buffer size is 256 KB.  A single read rarely returns
+     * more than the socket's receive buffer holds, and payloads are copied
+     * out to pooled arrays as they arrive, so the buffer does not need to
+     * fit a whole message.
      */
-    public static final int DEFAULT_READ_BUFFER_SIZE = 8388608;
+    public static final int DEFAULT_READ_BUFFER_SIZE = 262144;
 
     /**
-     * The default write queue allows 100 items to be inserted before it
+     * The default write queue allows 1000 items to be inserted before it
      * starts blocking.  This prevents situations where the MessageRouter is
      * overwhelmed by an extreme number of write requests, exhausting available
-     * resources.
+     * resources.  Large messages are held back sooner by
+     * {@link #DEFAULT_WRITE_QUEUE_BYTES}.
      */
-    public static final int DEFAULT_WRITE_QUEUE_SIZE = 100;
+    public static final int DEFAULT_WRITE_QUEUE_SIZE = 1000;
+
+    /**
+     * By default, at most 64 MB may be queued for writing to any one channel.
+     */
+    public static final long DEFAULT_WRITE_QUEUE_BYTES = 67108864L;
+
+    /**
+     * A single write to a channel covers up to 256 KB of pending messages.
+     */
+    public static final int WRITE_BATCH_BYTES = 262144;
+
+    /**
+     * A single write to a channel gathers at most this many buffers, which
+     * keeps it under the operating system's limit on I/O vectors.
+     */
+    public static final int WRITE_BATCH_BUFFERS = 512;
 
     /**
      * System property that overrides the read buffer size.
@@ -82,10 +104,17 @@ public abstract class MessageRouter implements Runnable {
     public static final String WRITE_QUEUE_PROPERTY
             = "mendel.network.MessageRouter.writeQueueSize";
 
+    /**
+     * System property that overrides the most bytes queued for any one
+     * channel.
+     */
+    public static final String WRITE_QUEUE_BYTES_PROPERTY
+            = "mendel.network.MessageRouter.writeQueueBytes";
+
     /**
      * Flag used to determine whether the Selector thread should run
      */
-    protected boolean online;
+    protected volatile boolean online;
 
     private List<MessageListener> listeners = new ArrayList<>();
 
@@ -93,11 +122,24 @@ public abstract class MessageRouter implements Runnable {
 
     protected int readBufferSize;
     protected int writeQueueSize;
+    protected long writeQueueBytes = Long.getLong(
+            WRITE_QUEUE_BYTES_PROPERTY, DEFAULT_WRITE_QUEUE_BYTES);
+    /** Allocated by the selector thread on its first read */
     private ByteBuffer readBuffer;
 
+    /** Buffers of the pending messages written out by one gathering write */
+    private ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_BUFFERS];
+
+    /** Supplies the arrays incoming payloads are read into */
+    protected BufferPool bufferPool = BufferPool.getSharedPool();
+
     protected ConcurrentHashMap<SelectionKey, Integer> changeInterest
             = new ConcurrentHashMap<>();
 
+    /** Number of outstanding requests to stop reading from each channel */
+    protected ConcurrentHashMap<SelectionKey, Integer> pausedReads
+            = new ConcurrentHashMap<>();
+
     public MessageRouter() {
         this(DEFAULT_READ_BUFFER_SIZE, DEFAULT_WRITE_QUEUE_SIZE);
     }
@@ -116,8 +158,6 @@ public abstract class MessageRouter implements Runnable {
         } else {
             this.writeQueueSize = Integer.parseInt(queueSz);
         }
-
-        readBuffer = ByteBuffer.allocateDirect(this.readBufferSize);
     }
 
     /**
@@ -145,16 +185,67 @@ public abstract class MessageRouter implements Runnable {
         Iterator<SelectionKey> it = changeInterest.keySet().iterator();
         while (it.hasNext()) {
             SelectionKey key = it.next();
-            if (key.isValid()) {
-                SocketChannel channel = (SocketChannel) key.channel();
-                if (channel.isConnected() == false
-                        || channel.isRegistered() == false) {
-                    continue;
-                }
-                key.interestOps(changeInterest.get(key));
+            /* Take the change in one step, so a request queued after this
+             * finds no pending change and wakes the selector itself */
+            Integer ops = changeInterest.remove(key);
+            if (ops == null || key.isValid() == false) {
+                continue;
+            }
+            SocketChannel channel = (SocketChannel) key.channel();
+            if (channel.isConnected() == false
+                    || channel.isRegistered() == false) {
+                /* Keep the change, along with any queued since, until the
+                 * channel is ready */
+                changeInterest.merge(key, ops, (a, b) -> a | b);
+                continue;
             }
-            changeInterest.remove(key);
+            /* Only write() gives up OP_WRITE, once the queue is empty */
+            key.interestOps(readInterest(key,
+                    ops | (key.interestOps() & SelectionKey.OP_WRITE)));
+        }
+    }
+
+    /**
+     * Adds OP_READ to an interest set, or removes it if reading from the
+     * key's channel is paused.
+     */
+    private int readInterest(SelectionKey key, int ops) {
+        if (pausedReads.containsKey(key)) {
+            return ops & ~SelectionKey.OP_READ;
+        }
+        return ops | SelectionKey.OP_READ;
+    }
+
+    /**
+     * Stops reading messages from a channel until
+     * {@link #resumeReading(SelectionKey)} has been called once for each
+     * call to this method. A sender whose data cannot be handled as fast as
+     * it arrives is then held back by TCP flow control, without blocking the
+     * thread that handles its messages. Messages already read are still
+     * delivered, and writes to the channel carry on.
+     *
+     * @param key SelectionKey for the channel.
+     */
+    public void pauseReading(SelectionKey key) {
+        if (key.isValid() == false) {
+            return;
         }
+        pausedReads.merge(key, 1, Integer::sum);
+        changeInterest.merge(key, SelectionKey.OP_READ, (a, b) -> a | b);
+        selector.wakeup();
+    }
+
+    /**
+     * Lifts one request to stop reading messages from a channel.
+     *
+     * @param key SelectionKey for the channel.
+     * @see #pauseReading(SelectionKey)
+     */
+    public void resumeReading(SelectionKey key) {
+        pausedReads.computeIfPresent(key,
+                (k, pauses) -> pauses > 1 ? pauses - 1 : null);
+        changeInterest.merge(key, SelectionKey.OP_READ, (a, b) -> a | b);
+        selector.wakeup();
     }
 
     /**
@@ -213,8 +304,10 @@ public abstract class MessageRouter implements Runnable {
         SocketChannel channel = servSocket.accept();
         logger.info("Accepted connection: " + getClientString(channel));
 
-        TransmissionTracker tracker = new TransmissionTracker(writeQueueSize);
+        TransmissionTracker tracker = new TransmissionTracker(
+                writeQueueSize, writeQueueBytes);
         channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
         channel.register(selector, SelectionKey.OP_READ, tracker);
 
         dispatchConnect(getDestination(channel));
@@ -254,6 +347,9 @@ public abstract class MessageRouter implements Runnable {
      */
     protected void read(SelectionKey key) {
         SocketChannel channel = (SocketChannel) key.channel();
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocateDirect(this.readBufferSize);
+        }
         readBuffer.clear();
 
         int bytesRead = 0;
@@ -302,6 +398,10 @@ public abstract class MessageRouter implements Runnable {
             }
         }
 
+        if (transmission.payload == null) {
+            transmission.allocatePayload(bufferPool);
+        }
+
         int readSize = transmission.expectedBytes - transmission.readPointer;
         if (readSize > readBuffer.remaining()) {
             readSize = readBuffer.remaining();
@@ -314,8 +414,8 @@ public abstract class MessageRouter implements Runnable {
         if (transmission.readPointer == transmission.expectedBytes) {
             /* The payload has been read */
             MendelMessage msg = new MendelMessage(
-                    transmission.payload,
-                    new MessageContext(this, key));
+                    transmission.payload, transmission.expectedBytes,
+                    bufferPool, new MessageContext(this, key));
             dispatchMessage(msg);
             transmission.resetCounters();
 
@@ -331,7 +431,7 @@ public abstract class MessageRouter implements Runnable {
     /**
      * Read the payload size prefix from a channel.
      * Each message in Mendel is prefixed with a payload size field; this is
-     * read to allocate buffers for the incoming message.
+     * read to size the buffer for the incoming message.
      *
      * @return true if the payload size has been determined; false otherwise.
      */
@@ -347,7 +447,6 @@ public abstract class MessageRouter implements Runnable {
         if (transmission.prefixPointer == 0
                 && buffer.remaining() >= PREFIX_SZ) {
             transmission.expectedBytes = buffer.getInt();
-            transmission.allocatePayload();
             return true;
         } else {
             /* Keep reading until we have at least PREFIX_SZ bytes to determine
@@ -365,7 +464,6 @@ public abstract class MessageRouter implements Runnable {
             if (transmission.prefixPointer >= PREFIX_SZ) {
                 ByteBuffer buf = ByteBuffer.wrap(transmission.prefix);
                 transmission.expectedBytes = buf.getInt();
-                transmission.allocatePayload();
                 return true;
             }
         }
@@ -374,17 +472,20 @@ public abstract class MessageRouter implements Runnable {
     }
 
     /**
-     * Wraps a given message in a {@link java.nio.ByteBuffer}, including the payload size
-     * prefix.  Data produced by this method will be subsequently read by the
-     * readPrefix() method.
+     * Wraps a given message in a pair of {@link java.nio.ByteBuffer}s: the
+     * payload size prefix, followed by a view of the payload itself, so the
+     * payload is written out with a gathering write rather than copied.  Data
+     * produced by this method will be subsequently read by the readPrefix()
+     * method.
      */
-    protected static ByteBuffer wrapWithPrefix(MendelMessage message) {
-        int messageSize = message.getPayload().length;
-        ByteBuffer buffer = ByteBuffer.allocate(messageSize + 4);
-        buffer.putInt(messageSize);
-        buffer.put(message.getPayload());
-        buffer.flip();
-        return buffer;
+    protected static ByteBuffer[] wrapWithPrefix(MendelMessage message) {
+        int messageSize = message.getLength();
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SZ);
+        prefix.putInt(messageSize);
+        prefix.flip();
+        ByteBuffer payload = ByteBuffer.wrap(message.getPayload(),
+                0, messageSize);
+        return new ByteBuffer[] { prefix, payload };
     }
 
     /**
@@ -393,8 +494,9 @@ public abstract class MessageRouter implements Runnable {
      * in a blocking queue, so this function may block to prevent queueing an
      * excessive amount of data.
      * <p/>
-     * The system property <em>mendel.net.MessageRouter.writeQueueSize</em>
-     * tunes the maximum amount of data that can be queued.
+     * The system properties <em>mendel.network.MessageRouter.writeQueueSize</em>
+     * and <em>mendel.network.MessageRouter.writeQueueBytes</em> tune the
+     * maximum amount of data that can be queued.
      *
      * @param key     SelectionKey for the channel.
      * @param message MendelMessage to publish on the channel.
@@ -408,24 +510,72 @@ public abstract class MessageRouter implements Runnable {
         }
 
         TransmissionTracker tracker = TransmissionTracker.fromKey(key);
-        ByteBuffer payload = wrapWithPrefix(message);
+        ByteBuffer[] payload = wrapWithPrefix(message);
 
         Transmission trans = null;
         try {
-            tracker.queueOutgoingData(payload);
+            trans = tracker.queueOutgoingData(payload);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new IOException("Interrupted while waiting to queue data");
         }
 
-        changeInterest.put(key, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-        selector.wakeup();
+        requestWrite(key);
         return trans;
     }
 
+    /**
+     * Adds a message to the pending write queue for a particular SelectionKey
+     * without blocking.  If the queue is full, the returned future fails with
+     * a {@link mendel.network.BackpressureException} and the message is not
+     * sent.
+     *
+     * @param key     SelectionKey for the channel.
+     * @param message MendelMessage to publish on the channel.
+     * @return a future that completes once the message has been written.
+     */
+    public CompletableFuture<Transmission> sendMessageAsync(
+            SelectionKey key, MendelMessage message) {
+        CompletableFuture<Transmission> failed = new CompletableFuture<>();
+        if (this.isOnline() == false) {
+            failed.completeExceptionally(
+                    new IOException("MessageRouter is not online."));
+            return failed;
+        }
+
+        TransmissionTracker tracker = TransmissionTracker.fromKey(key);
+        Transmission trans = tracker.offerOutgoingData(wrapWithPrefix(message));
+        if (trans == null) {
+            failed.completeExceptionally(new BackpressureException(
+                    getDestination((SocketChannel) key.channel())));
+            return failed;
+        }
+
+        requestWrite(key);
+        return trans.getCompletion();
+    }
+
+    /**
+     * Asks the selector thread to start writing out a channel's pending data.
+     *
+     * @param key SelectionKey for the channel.
+     */
+    protected void requestWrite(SelectionKey key) {
+        Integer pending = changeInterest.put(key,
+                SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        if (pending == null) {
+            /* Otherwise the selector has yet to pick up an earlier request,
+             * and this message will go out with that batch */
+            selector.wakeup();
+        }
+    }
+
     /**
      * When a {@link java.nio.channels.SelectionKey} is writable, push as much pending data
-     * out on the channel as possible.
+     * out on the channel as possible.  The buffers of several pending
+     * transmissions, up to {@link #WRITE_BATCH_BYTES}, are written out with
+     * a single gathering write, so a burst of small messages costs one system
+     * call rather than one each.
      *
      * @param key {@link java.nio.channels.SelectionKey} of the channel to write to.
      */
@@ -433,37 +583,60 @@ public abstract class MessageRouter implements Runnable {
         TransmissionTracker tracker = TransmissionTracker.fromKey(key);
         SocketChannel channel = (SocketChannel) key.channel();
 
-        while (tracker.hasPendingData() == true) {
-            Transmission trans = tracker.getNextTransmission();
-            ByteBuffer buffer = trans.getPayload();
-            if (buffer == null) {
+        while (true) {
+            /* Retire the transmissions that have been written out */
+            Transmission head = tracker.getNextTransmission();
+            while (head != null && head.hasRemaining() == false) {
+                tracker.transmissionFinished();
+                head = tracker.getNextTransmission();
+            }
+            if (head == null) {
                 break;
             }
 
-            int written = 0;
-            while (buffer.hasRemaining()) {
-                try {
-                    written = channel.write(buffer);
-                } catch (IOException e) {
-                    /* Broken pipe */
-                    disconnect(key);
-                    return;
+            /* Gather the unwritten buffers of as many pending transmissions
+             * as fit in one batch; the first always goes in whole */
+            int count = 0;
+            long batchBytes = 0;
+            Iterator<Transmission> it = tracker.pendingTransmissionIterator();
+            while (it.hasNext() && batchBytes < WRITE_BATCH_BYTES) {
+                ByteBuffer[] buffers = it.next().getBuffers();
+                if (count + buffers.length > writeBatch.length) {
+                    break;
                 }
-
-                if (buffer.hasRemaining() == false) {
-                    /* Done writing */
-                    tracker.transmissionFinished();
+                for (ByteBuffer buffer : buffers) {
+                    if (buffer.hasRemaining()) {
+                        writeBatch[count++] = buffer;
+                        batchBytes += buffer.remaining();
+                    }
                 }
+            }
 
-                if (written == 0) {
-                    /* Return now, to keep our OP_WRITE interest op set. */
-                    return;
+            long written;
+            try {
+                written = channel.write(writeBatch, 0, count);
+            } catch (IOException e) {
+                /* Broken pipe */
+                disconnect(key);
+                return;
+            } finally {
+                /* Don't hold on to the payloads once they have been sent */
+                Arrays.fill(writeBatch, 0, count, null);
+            }
+
+            if (written < batchBytes) {
+                /* The socket is full.  Retire what was written, then return
+                 * now, to keep our OP_WRITE interest op set. */
+                while ((head = tracker.getNextTransmission()) != null
+                        && head.hasRemaining() == false) {
+                    tracker.transmissionFinished();
                 }
+                return;
             }
         }
 
         /* At this point, the queue is empty. */
-        key.interestOps(SelectionKey.OP_READ);
+        key.interestOps(readInterest(key, 0));
         return;
     }
 
@@ -481,6 +654,19 @@ public abstract class MessageRouter implements Runnable {
         NetworkDestination destination = getDestination(channel);
         logger.info("Terminating connection: " + destination.toString());
 
+        /* Hand back the buffer of any partially-read message, and fail any
+         * messages that will now never be written */
+        TransmissionTracker tracker = TransmissionTracker.fromKey(key);
+        if (tracker != null) {
+            if (tracker.payload != null) {
+                bufferPool.release(tracker.payload);
+                tracker.resetCounters();
+            }
+            tracker.failPendingTransmissions(new IOException(
+                    "Connection closed: " + destination));
+        }
+
+        pausedReads.remove(key);
         try {
             key.cancel();
             key.channel().close();
@@ -533,6 +719,16 @@ public abstract class MessageRouter implements Runnable {
         }
     }
 
+    /**
+     * Retrieves the pool incoming payloads are read into, along with its hit
+     * and miss counts.
+     *
+     * @return the {@link mendel.network.BufferPool} used by this router.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
     /**
      * Determines whether or not this MessageRouter is online.  As long as the
      * router is online, the selector thread will continue to run.
@@ -30,25 +30,75 @@ import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
 
 /**
  * Handles message routing on a {@link java.nio.channels.ServerSocketChannel}.
  * This class is useful for components that must accept incoming requests from
  * clients.
+ * <p/>
+ * Connections are accepted by one selector thread and handed out, round
+ * robin, to a set of I/O threads. Each I/O thread has its own selector, read
+ * buffer and interest-op queue, and performs all of the reads and writes for
+ * the connections it owns, so messages on any one connection are still
+ * dispatched and written in order. Messages from different connections may
+ * be dispatched concurrently, so listeners must be thread safe.
+ * <p/>
+ * The system property <em>mendel.network.ServerMessageRouter.ioThreads</em>
+ * overrides the number of I/O threads.
  *
  * @author malensek
  */
 public class ServerMessageRouter extends MessageRouter {
 
+    /**
+     * System property that overrides the number of I/O threads.
+     */
+    public static final String IO_THREADS_PROPERTY
+            = "mendel.network.ServerMessageRouter.ioThreads";
+
+    /**
+     * By default, one I/O thread is started per core, up to four.
+     */
+    public static final int DEFAULT_IO_THREADS
+            = Math.min(4, Runtime.getRuntime().availableProcessors());
+
     private Thread selectorThread;
     private Map<Integer, ServerSocketChannel> channels = new HashMap<>();
 
-    public ServerMessageRouter() { }
+    private IOThread[] ioThreads;
+    private int nextIOThread;
+
+    public ServerMessageRouter() {
+        this(DEFAULT_READ_BUFFER_SIZE, DEFAULT_WRITE_QUEUE_SIZE);
+    }
 
     public ServerMessageRouter(int readBufferSize, int maxWriteQueueSize) {
+        this(readBufferSize, maxWriteQueueSize,
+                Integer.getInteger(IO_THREADS_PROPERTY, DEFAULT_IO_THREADS));
+    }
+
+    /**
+     * Creates a ServerMessageRouter with the given number of I/O threads.
+     *
+     * @param readBufferSize    size of each I/O thread's read buffer
+     * @param maxWriteQueueSize maximum number of pending writes per connection
+     * @param numIOThreads      number of threads that read from and write to
+     *                          the accepted connections
+     */
+    public ServerMessageRouter(int readBufferSize, int maxWriteQueueSize,
+                               int numIOThreads) {
         super(readBufferSize, maxWriteQueueSize);
+        ioThreads = new IOThread[Math.max(1, numIOThreads)];
+        for (int i = 0; i < ioThreads.length; ++i) {
+            ioThreads[i] = new IOThread(readBufferSize, maxWriteQueueSize);
+        }
     }
 
     /**
@@ -58,18 +108,27 @@ public class ServerMessageRouter extends MessageRouter {
     throws IOException {
         if (this.selector == null) {
             this.selector = Selector.open();
+            for (IOThread ioThread : ioThreads) {
+                ioThread.selector = Selector.open();
+            }
         }
     }
 
     /**
-     * Starts the selector thread loop and sets this MessageRouter status to
-     * online.
+     * Starts the acceptor and I/O threads and sets this MessageRouter status
+     * to online.
      */
     private synchronized void startSelectorThread() {
         if (selectorThread == null || this.online == false) {
-            selectorThread = new Thread(this);
-            selectorThread.start();
             this.online = true;
+            for (int i = 0; i < ioThreads.length; ++i) {
+                ioThreads[i].online = true;
+                Thread thread = new Thread(ioThreads[i],
+                        "mendel-io-" + i);
+                thread.start();
+            }
+            selectorThread = new Thread(this, "mendel-acceptor");
+            selectorThread.start();
         }
     }
 
@@ -92,6 +151,29 @@ public class ServerMessageRouter extends MessageRouter {
         startSelectorThread();
     }
 
+    /**
+     * Accepts a new connection and hands it to the next I/O thread.
+     *
+     * @param key The SelectionKey of the listening socket.
+     */
+    @Override
+    protected void accept(SelectionKey key)
+    throws IOException {
+        ServerSocketChannel servSocket = (ServerSocketChannel) key.channel();
+        SocketChannel channel = servSocket.accept();
+        if (channel == null) {
+            return;
+        }
+        logger.info("Accepted connection: " + getClientString(channel));
+
+        channel.configureBlocking(false);
+        /* Writes are already batched; don't hold back the last of a batch */
+        channel.socket().setTcpNoDelay(true);
+        IOThread ioThread = ioThreads[nextIOThread];
+        nextIOThread = (nextIOThread + 1) % ioThreads.length;
+        ioThread.register(channel);
+    }
+
     /**
      * Closes the server socket channel and stops processing incoming
      * messages.
@@ -102,6 +184,9 @@ public class ServerMessageRouter extends MessageRouter {
         }
         this.online = false;
         selector.wakeup();
+        for (IOThread ioThread : ioThreads) {
+            ioThread.shutdown();
+        }
     }
 
     /**
@@ -115,4 +200,86 @@ public class ServerMessageRouter extends MessageRouter {
 
         channel.close();
     }
+
+    /**
+     * Reads from and writes to the connections handed to it by the acceptor
+     * thread, dispatching incoming messages to the listeners of the
+     * ServerMessageRouter.
+     */
+    private class IOThread extends MessageRouter {
+
+        private Queue<SocketChannel> pendingRegistrations
+                = new ConcurrentLinkedQueue<>();
+
+        public IOThread(int readBufferSize, int maxWriteQueueSize) {
+            super(readBufferSize, maxWriteQueueSize);
+        }
+
+        /**
+         * Queues an accepted channel to be registered by this thread.
+         */
+        public void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (online) {
+                try {
+                    processPendingRegistrations();
+                    updateInterestOps();
+                    processSelectionKeys();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Error in I/O thread", e);
+                }
+            }
+
+            /* Hang up on this thread's remaining connections */
+            for (SelectionKey key : selector.keys()) {
+                disconnect(key);
+            }
+        }
+
+        /**
+         * Handles pending registration operations on this thread.
+         */
+        private void processPendingRegistrations() {
+            Iterator<SocketChannel> it = pendingRegistrations.iterator();
+            while (it.hasNext()) {
+                SocketChannel channel = it.next();
+                it.remove();
+
+                TransmissionTracker tracker = new TransmissionTracker(
+                        writeQueueSize, writeQueueBytes);
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, tracker);
+                } catch (IOException e) {
+                    logger.log(Level.INFO, "Could not register connection", e);
+                    continue;
+                }
+                dispatchConnect(getDestination(channel));
+            }
+        }
+
+        public void shutdown() {
+            this.online = false;
+            selector.wakeup();
+        }
+
+        @Override
+        protected void dispatchMessage(MendelMessage message) {
+            ServerMessageRouter.this.dispatchMessage(message);
+        }
+
+        @Override
+        protected void dispatchConnect(NetworkDestination endpoint) {
+            ServerMessageRouter.this.dispatchConnect(endpoint);
+        }
+
+        @Override
+        protected void dispatchDisconnect(NetworkDestination endpoint) {
+            ServerMessageRouter.this.dispatchDisconnect(endpoint);
+        }
+    }
 }
@@ -26,8 +26,10 @@ software, even if advised of the possibility of such damage.
 package mendel.network;
 
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Represents the transmission of one unit of data ({@link MendelMessage}).
@@ -37,25 +39,53 @@ import java.util.Queue;
  * successfully or unsuccessfully).  This allows transmissions to be carried out
  * asynchronously, but gives clients a means to ensure the transmission
  * finished.  This class also allows clients to retrieve Exceptions that may
- * have occurred while sending the message.
+ * have occurred while sending the message.  {@link #getCompletion()} offers
+ * the same information without blocking.
  *
  * @author malensek
  */
 public class Transmission {
 
-    private static final Object lock = new Object();
-    private boolean finished = false;
+    private CompletableFuture<Transmission> completion
+            = new CompletableFuture<>();
 
-    private Queue<Exception> exceptions = new LinkedList<>();
+    private Queue<Exception> exceptions = new ConcurrentLinkedQueue<>();
 
-    private ByteBuffer payload;
+    private ByteBuffer[] buffers;
+    private long size;
 
-    protected Transmission(ByteBuffer payload) {
-        this.payload = payload;
+    /**
+     * Creates a Transmission of the given buffers, which are written out in
+     * order with a single gathering write where possible.
+     */
+    protected Transmission(ByteBuffer[] buffers) {
+        this.buffers = buffers;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
     }
 
-    protected ByteBuffer getPayload() {
-        return payload;
+    protected ByteBuffer[] getBuffers() {
+        return buffers;
+    }
+
+    /**
+     * @return the number of bytes this transmission writes out.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Determines whether any data in this transmission remains to be written.
+     */
+    protected boolean hasRemaining() {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -65,27 +95,43 @@ public class Transmission {
      */
     public boolean finish()
     throws InterruptedException {
-        if (finished == true) {
-            return (hasException() == false);
-        }
-
-        synchronized (lock) {
-            while (finished == false) {
-                lock.wait();
-            }
+        try {
+            completion.get();
+        } catch (ExecutionException e) {
+            /* Reported through the exception queue */
         }
 
         return (hasException() == false);
     }
 
+    /**
+     * Retrieves a future that completes with this transmission once it has
+     * been written out, or exceptionally with the first exception associated
+     * with it if it could not be.
+     *
+     * @return the completion of this transmission
+     */
+    public CompletableFuture<Transmission> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Determines whether this transmission has completed.
+     */
+    public boolean isFinished() {
+        return completion.isDone();
+    }
+
     /**
      * Updates the status of this transmission to completed and notifies any
      * waiting threads.
      */
     protected void setFinished() {
-        synchronized (lock) {
-            finished = true;
-            lock.notifyAll();
+        Exception e = exceptions.peek();
+        if (e == null) {
+            completion.complete(this);
+        } else {
+            completion.completeExceptionally(e);
         }
     }
 
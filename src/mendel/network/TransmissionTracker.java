@@ -27,20 +27,38 @@ package mendel.network;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Tracks transmission processing operations; helps convert TCP streams into
  * individual messages that can be consumed by the system or client
  * applications.
+ * <p/>
+ * Outgoing data is limited both by the number of pending transmissions and
+ * by their total size in bytes. A transmission is accepted as long as the
+ * pending data is under the byte limit, so the limit may be overshot by one
+ * transmission, but a producer woken up because the queue has room can
+ * always queue its data.
  *
  * @author malensek
  */
 class TransmissionTracker {
 
-    private BlockingQueue<Transmission> pendingTransmissions;
+    private Queue<Transmission> pendingTransmissions
+            = new ConcurrentLinkedQueue<>();
+
+    /* Limits and accounting for the pending transmissions; guarded by this */
+    private int maxPendingCount;
+    private long maxPendingBytes;
+    private int pendingCount;
+    private long pendingBytes;
+    private Exception closedCause;
+    private List<CompletableFuture<Void>> writableWaiters = new ArrayList<>();
 
     /** Read pointer for the message size prefix */
     public int prefixPointer;
@@ -58,15 +76,28 @@ class TransmissionTracker {
     public int expectedBytes;
 
     public TransmissionTracker(int writeQueueSize) {
-        pendingTransmissions = new ArrayBlockingQueue<>(writeQueueSize);
+        this(writeQueueSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a TransmissionTracker that limits the outgoing data queued for
+     * its channel.
+     *
+     * @param writeQueueSize  the most transmissions that may be pending
+     * @param writeQueueBytes the most bytes that may be pending
+     */
+    public TransmissionTracker(int writeQueueSize, long writeQueueBytes) {
+        this.maxPendingCount = writeQueueSize;
+        this.maxPendingBytes = writeQueueBytes;
     }
 
     /**
-     * Allocates a buffer for the incoming payload once the message size prefix
-     * has been read.
+     * Borrows a buffer for the incoming payload from the given pool once the
+     * message size prefix has been read. The buffer may be longer than the
+     * payload.
      */
-    public void allocatePayload() {
-        payload = new byte[expectedBytes];
+    public void allocatePayload(BufferPool pool) {
+        payload = pool.acquire(expectedBytes);
     }
 
     /**
@@ -74,18 +105,106 @@ class TransmissionTracker {
      * another message from a stream.
      */
     public void resetCounters() {
+        payload = null;
         prefixPointer = 0;
         readPointer = 0;
         expectedBytes = 0;
     }
 
-    public Transmission queueOutgoingData(ByteBuffer payload)
+    /**
+     * Queues outgoing data, waiting for room in the write queue if necessary.
+     * Data queued after the channel has been closed is failed straight away.
+     */
+    public synchronized Transmission queueOutgoingData(ByteBuffer[] buffers)
     throws InterruptedException {
-        Transmission trans = new Transmission(payload);
-        pendingTransmissions.put(trans);
+        Transmission trans = new Transmission(buffers);
+        while (isWritable() == false) {
+            wait();
+        }
+        enqueue(trans);
         return trans;
     }
 
+    /**
+     * Queues outgoing data if there is room for it in the write queue.
+     * Data queued after the channel has been closed is failed straight away.
+     *
+     * @return the queued Transmission, or null if the write queue is full.
+     */
+    public synchronized Transmission offerOutgoingData(ByteBuffer[] buffers) {
+        Transmission trans = new Transmission(buffers);
+        if (isWritable() == false) {
+            return null;
+        }
+        enqueue(trans);
+        return trans;
+    }
+
+    /**
+     * Retrieves a future that completes once the write queue has room for
+     * more data (immediately, if it already does).
+     */
+    public synchronized CompletableFuture<Void> whenWritable() {
+        CompletableFuture<Void> writable = new CompletableFuture<>();
+        if (isWritable()) {
+            writable.complete(null);
+        } else {
+            writableWaiters.add(writable);
+        }
+        return writable;
+    }
+
+    /**
+     * Determines whether the write queue has room for more data.
+     */
+    public synchronized boolean isWritable() {
+        return closedCause != null || pendingCount < maxPendingCount
+                && pendingBytes < maxPendingBytes;
+    }
+
+    /**
+     * Changes the most bytes that may be pending in the write queue.
+     */
+    public void setWriteQueueBytes(long writeQueueBytes) {
+        List<CompletableFuture<Void>> writable;
+        synchronized (this) {
+            maxPendingBytes = writeQueueBytes;
+            writable = releaseWaiters();
+        }
+        complete(writable);
+    }
+
+    private void enqueue(Transmission trans) {
+        if (closedCause != null) {
+            trans.addException(closedCause);
+            trans.setFinished();
+            return;
+        }
+        pendingCount++;
+        pendingBytes += trans.getSize();
+        pendingTransmissions.add(trans);
+    }
+
+    /* Must be called holding the lock of this tracker */
+    private List<CompletableFuture<Void>> releaseWaiters() {
+        notifyAll();
+        if (writableWaiters.isEmpty() || isWritable() == false) {
+            return null;
+        }
+        List<CompletableFuture<Void>> writable = writableWaiters;
+        writableWaiters = new ArrayList<>();
+        return writable;
+    }
+
+    /* Completes waiters outside of the lock, as they may queue more data */
+    private static void complete(List<CompletableFuture<Void>> writable) {
+        if (writable != null) {
+            for (CompletableFuture<Void> waiter : writable) {
+                waiter.complete(null);
+            }
+        }
+    }
+
     /**
      * Determines whether the SocketChannel associated with this
      * TransmissionTracker has pending transmissions.
@@ -110,7 +229,39 @@ class TransmissionTracker {
      */
     public void transmissionFinished() {
         Transmission trans = pendingTransmissions.remove();
+        List<CompletableFuture<Void>> writable;
+        synchronized (this) {
+            pendingCount--;
+            pendingBytes -= trans.getSize();
+            writable = releaseWaiters();
+        }
         trans.setFinished();
+        complete(writable);
+    }
+
+    /**
+     * Fails every pending Transmission, and any queued afterwards, with the
+     * given exception once the channel has been closed. Producers waiting for
+     * room are woken up.
+     */
+    public void failPendingTransmissions(Exception e) {
+        List<Transmission> failed = new ArrayList<>();
+        List<CompletableFuture<Void>> writable;
+        synchronized (this) {
+            closedCause = e;
+            Transmission trans;
+            while ((trans = pendingTransmissions.poll()) != null) {
+                failed.add(trans);
+            }
+            pendingCount = 0;
+            pendingBytes = 0;
+            writable = releaseWaiters();
+        }
+        for (Transmission trans : failed) {
+            trans.addException(e);
+            trans.setFinished();
+        }
+        complete(writable);
     }
 
     /**
@@ -28,6 +28,7 @@ package mendel.query;
 import mendel.serialize.ByteSerializable;
 import mendel.serialize.SerializationInputStream;
 import mendel.serialize.SerializationOutputStream;
+import mendel.vptree.SearchBudget;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -42,6 +43,7 @@ public class SimilarityQuery implements ByteSerializable {
 
     private List<String> querySegments;
     private String querySequence;
+    private SearchBudget budget = SearchBudget.EXACT;
 
     /**
      * Constructs a SimilarityQuery with a single sequence segment from a
@@ -66,6 +68,19 @@ public class SimilarityQuery implements ByteSerializable {
         this.querySequence = querySequence;
     }
 
+    /**
+     * Constructs an approximate SimilarityQuery whose nearest neighbor
+     * searches are limited to the given budget.
+     * @param querySegments a list of query sequence segments
+     * @param querySequence the base query sequence
+     * @param budget the limits on the work of each segment's search
+     */
+    public SimilarityQuery(List<String> querySegments, String querySequence,
+                           SearchBudget budget) {
+        this(querySegments, querySequence);
+        this.budget = budget;
+    }
+
     /**
      * Returns the list of a least one sequence segment for the query.
      * @return a list of the sequence segments
@@ -82,6 +97,15 @@ public class SimilarityQuery implements ByteSerializable {
         return querySequence;
     }
 
+    /**
+     * Returns the search budget of the query; exact queries return
+     * {@link SearchBudget#EXACT}.
+     * @return the search budget
+     */
+    public SearchBudget getBudget() {
+        return budget;
+    }
+
     @Deserialize
     public SimilarityQuery(SerializationInputStream in) throws IOException {
         querySegments = new ArrayList<>();
@@ -90,6 +114,7 @@ public class SimilarityQuery implements ByteSerializable {
             querySegments.add(in.readString());
         }
         this.querySequence = in.readString();
+        this.budget = new SearchBudget(in);
     }
 
     @Override
@@ -99,6 +124,7 @@ public class SimilarityQuery implements ByteSerializable {
             out.writeString(seq);
         }
         out.writeString(querySequence);
+        out.writeSerializable(budget);
     }
 
     @Override
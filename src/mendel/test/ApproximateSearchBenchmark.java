@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.test;
+
+import mendel.vptree.BoundedPriorityQueue;
+import mendel.vptree.SearchBudget;
+import mendel.vptree.VPTree;
+import mendel.vptree.types.ProteinSequence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Reports the recall, distance computations and latency of approximate
+ * nearest neighbor queries under a range of {@link SearchBudget}s, relative
+ * to an exact search of the same tree. Windows are read from a FASTA file if
+ * one is given, or generated at random otherwise. Queries are indexed
+ * windows with a few residues substituted.
+ *
+ * @author ctolooee
+ */
+public class ApproximateSearchBenchmark {
+
+    private static final int WINDOW_SIZE = 30;
+    private static final int NEIGHBORS = 5;
+
+    private static final SearchBudget[] BUDGETS = {
+            SearchBudget.EXACT,
+            new SearchBudget(Integer.MAX_VALUE, Long.MAX_VALUE, 0.1),
+            new SearchBudget(Integer.MAX_VALUE, Long.MAX_VALUE, 0.25),
+            new SearchBudget(Integer.MAX_VALUE, Long.MAX_VALUE, 0.5),
+            new SearchBudget(64, Long.MAX_VALUE, 0.0),
+            new SearchBudget(16, Long.MAX_VALUE, 0.0),
+            new SearchBudget(4, Long.MAX_VALUE, 0.0),
+            new SearchBudget(Integer.MAX_VALUE, 5000, 0.0),
+            new SearchBudget(Integer.MAX_VALUE, 1000, 0.0),
+            new SearchBudget(16, 5000, 0.25),
+    };
+
+    private static String describe(SearchBudget budget) {
+        if (budget.isExact()) {
+            return "exact";
+        }
+        String leaves = budget.getMaxLeaves() == Integer.MAX_VALUE
+                ? "-" : String.valueOf(budget.getMaxLeaves());
+        String computations
+                = budget.getMaxDistanceComputations() == Long.MAX_VALUE
+                ? "-" : String.valueOf(budget.getMaxDistanceComputations());
+        return "leaves " + leaves + ", distances " + computations
+                + ", eps " + budget.getEpsilon();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 3) {
+            System.out.println("usage: mendel.test.ApproximateSearchBenchmark "
+                    + "[points [queries [fasta-file]]]");
+            System.exit(1);
+        }
+        int points = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        Random random = new Random(42);
+        List<ProteinSequence> windows = args.length > 2
+                ? TestSequences.readWindows(args[2], points)
+                : TestSequences.randomWords(random, points, WINDOW_SIZE);
+        List<ProteinSequence> queryWindows = TestSequences.mutate(random,
+                windows, queries);
+        VPTree<ProteinSequence> tree = new VPTree<>(windows);
+
+        List<Set<ProteinSequence>> exact = new ArrayList<>(queries);
+        for (ProteinSequence query : queryWindows) {
+            exact.add(new HashSet<>(tree.getNearestNeighbors(query,
+                    NEIGHBORS)));
+        }
+
+        System.out.printf("%d windows, %d queries, k = %d%n",
+                windows.size(), queryWindows.size(), NEIGHBORS);
+        System.out.printf("%-40s %8s %18s %14s%n", "budget", "recall",
+                "distances/query", "query (us)");
+        for (SearchBudget budget : BUDGETS) {
+            long distances = 0;
+            long found = 0;
+            long expected = 0;
+            long time = 0;
+            for (int i = 0; i < queryWindows.size(); ++i) {
+                ProteinSequence query = queryWindows.get(i);
+                BoundedPriorityQueue<ProteinSequence> results
+                        = new BoundedPriorityQueue<>(query, NEIGHBORS);
+                results.setBudget(budget);
+                long start = System.nanoTime();
+                tree.getNearestNeighbors(query, results);
+                time += System.nanoTime() - start;
+                distances += results.getDistanceComputations();
+
+                for (ProteinSequence neighbor : results) {
+                    if (exact.get(i).contains(neighbor)) {
+                        found++;
+                    }
+                }
+                expected += exact.get(i).size();
+            }
+
+            System.out.printf("%-40s %8.3f %18.1f %14.1f%n", describe(budget),
+                    expected == 0 ? 1.0 : (double) found / expected,
+                    (double) distances / queryWindows.size(),
+                    time / 1000.0 / queryWindows.size());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.test;
+
+import mendel.vptree.BoundedPriorityQueue;
+import mendel.vptree.VPTree;
+import mendel.vptree.types.ProteinSequence;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static mendel.test.TestSequences.randomWords;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing the bounded k-nearest neighbor result set.
+ *
+ * @author ctolooee
+ */
+public class BoundedPriorityQueueTest {
+
+    /* The k smallest distances from the query, in increasing order */
+    private static List<Double> bruteForce(List<ProteinSequence> points,
+                                           ProteinSequence query, int k) {
+        List<Double> distances = new ArrayList<>(points.size());
+        for (ProteinSequence point : points) {
+            distances.add(point.getDistanceTo(query));
+        }
+        distances.sort(null);
+        return distances.subList(0, k);
+    }
+
+    private static List<Double> distances(List<ProteinSequence> points,
+                                          ProteinSequence query) {
+        List<Double> distances = new ArrayList<>(points.size());
+        for (ProteinSequence point : points) {
+            distances.add(point.getDistanceTo(query));
+        }
+        return distances;
+    }
+
+    @Test
+    public void testKeepsClosest() {
+        Random random = new Random(3);
+        List<ProteinSequence> points = randomWords(random, 1000, 10);
+        ProteinSequence query = randomWords(random, 1, 10).get(0);
+
+        BoundedPriorityQueue<ProteinSequence> queue
+                = new BoundedPriorityQueue<>(query, 10);
+        assertEquals(Double.POSITIVE_INFINITY, queue.getFurthestDistance(),
+                0.0);
+        queue.addAll(points);
+
+        assertEquals(10, queue.size());
+        assertTrue(queue.isFull());
+        /* Each offered point is measured exactly once */
+        assertEquals(points.size(), queue.getDistanceComputations());
+
+        List<Double> expected = bruteForce(points, query, 10);
+        assertEquals(expected, distances(queue.toSortedList(query), query));
+        assertEquals(expected.get(9), queue.getFurthestDistance(), 0.0);
+        assertEquals(expected.get(9),
+                queue.peek().getDistanceTo(query), 0.0);
+    }
+
+    @Test
+    public void testTreeNearestNeighbors() {
+        Random random = new Random(5);
+        List<ProteinSequence> points = randomWords(random, 3000, 8);
+        VPTree<ProteinSequence> tree = new VPTree<>(points, 16);
+
+        for (ProteinSequence query : randomWords(random, 50, 8)) {
+            assertEquals(bruteForce(points, query, 5),
+                    distances(tree.getNearestNeighbors(query, 5), query));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.test;
+
+import mendel.vptree.ConcurrentVPTree;
+import mendel.vptree.types.ProteinSequence;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static mendel.test.TestSequences.randomWords;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing the concurrent vp-tree with simultaneous readers and writers.
+ *
+ * @author ctolooee
+ */
+public class ConcurrentVPTreeTest {
+
+    @Test
+    public void testReadersAndWriters() throws Exception {
+        Random random = new Random(29);
+        List<ProteinSequence> stable = randomWords(random, 1000, 10);
+        ConcurrentVPTree<ProteinSequence> tree = new ConcurrentVPTree<>(16);
+        tree.addAll(stable);
+
+        List<List<ProteinSequence>> batches = new ArrayList<>();
+        for (int w = 0; w < 4; ++w) {
+            batches.add(randomWords(random, 2000, 10));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        AtomicBoolean writing = new AtomicBoolean(true);
+
+        /* Readers must always find the points that are never removed */
+        List<Future<Integer>> readers = new ArrayList<>();
+        for (int r = 0; r < 4; ++r) {
+            int seed = r;
+            readers.add(pool.submit(() -> {
+                Random local = new Random(seed);
+                int searches = 0;
+                while (writing.get() || searches == 0) {
+                    ProteinSequence query = stable.get(
+                            local.nextInt(stable.size()));
+                    ProteinSequence match = tree.getNearestNeighbor(query);
+                    assertEquals(0.0, match.getDistanceTo(query), 0.0);
+                    searches++;
+                }
+                return searches;
+            }));
+        }
+
+        /* Each writer adds its batch and then removes the first tenth */
+        List<Future<?>> writers = new ArrayList<>();
+        for (List<ProteinSequence> batch : batches) {
+            writers.add(pool.submit(() -> {
+                for (ProteinSequence point : batch) {
+                    tree.add(point);
+                }
+                for (ProteinSequence point : batch.subList(0, 200)) {
+                    assertTrue(tree.remove(point));
+                }
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        writing.set(false);
+        for (Future<Integer> reader : readers) {
+            assertTrue(reader.get() > 0);
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(stable.size() + 4 * 1800, tree.size());
+        assertEquals(tree.size(), tree.toArray().length);
+        for (List<ProteinSequence> batch : batches) {
+            for (ProteinSequence point : batch.subList(0, 200)) {
+                assertFalse(tree.contains(point));
+            }
+            for (ProteinSequence point : batch.subList(200, 2000)) {
+                assertTrue(tree.contains(point));
+            }
+        }
+    }
+
+    @Test
+    public void testRebalanceWithWriters() throws Exception {
+        Random random = new Random(31);
+
+        /* Points added in order of distance from one point leave the tree
+          deep and lopsided */
+        List<ProteinSequence> stable = randomWords(random, 4000, 10);
+        ProteinSequence origin = stable.get(0);
+        stable.sort((a, b) -> Double.compare(a.getDistanceTo(origin),
+                b.getDistanceTo(origin)));
+        ConcurrentVPTree<ProteinSequence> tree = new ConcurrentVPTree<>(8);
+        tree.addAll(stable);
+        int height = tree.getHeight();
+
+        List<List<ProteinSequence>> batches = new ArrayList<>();
+        for (int w = 0; w < 4; ++w) {
+            batches.add(randomWords(random, 2000, 10));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(6);
+        AtomicBoolean writing = new AtomicBoolean(true);
+
+        Future<Integer> rebalancer = pool.submit(() -> {
+            int rebuilt = 0;
+            while (writing.get()) {
+                rebuilt += tree.rebalance();
+            }
+            return rebuilt;
+        });
+        Future<?> reader = pool.submit(() -> {
+            Random local = new Random(3);
+            while (writing.get()) {
+                ProteinSequence query = stable.get(
+                        local.nextInt(stable.size()));
+                ProteinSequence match = tree.getNearestNeighbor(query);
+                assertEquals(0.0, match.getDistanceTo(query), 0.0);
+            }
+        });
+
+        List<Future<?>> writers = new ArrayList<>();
+        for (List<ProteinSequence> batch : batches) {
+            writers.add(pool.submit(() -> {
+                for (ProteinSequence point : batch) {
+                    tree.add(point);
+                }
+                for (ProteinSequence point : batch.subList(0, 200)) {
+                    assertTrue(tree.remove(point));
+                }
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        writing.set(false);
+        reader.get();
+        assertTrue(rebalancer.get() > 0);
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        /* No write may be lost to a subtree swapped out under it */
+        assertTrue(tree.getHeight() < height);
+        assertEquals(stable.size() + 4 * 1800, tree.size());
+        assertEquals(tree.size(), tree.toArray().length);
+        for (ProteinSequence point : stable) {
+            assertTrue(tree.contains(point));
+        }
+        for (List<ProteinSequence> batch : batches) {
+            for (ProteinSequence point : batch.subList(0, 200)) {
+                assertFalse(tree.contains(point));
+            }
+            for (ProteinSequence point : batch.subList(200, 2000)) {
+                assertTrue(tree.contains(point));
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.test;
+
+import mendel.serialize.Serializer;
+import mendel.vptree.FlatVPTree;
+import mendel.vptree.VPTree;
+import mendel.vptree.types.ProteinSequence;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static mendel.test.TestSequences.randomWords;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Verifies that a {@link FlatVPTree} answers nearest neighbor queries the
+ * same way as the {@link VPTree} it was flattened from.
+ *
+ * @author ctolooee
+ */
+public class FlatVPTreeTest {
+
+    private static List<String> words(List<ProteinSequence> sequences) {
+        List<String> words = new ArrayList<>(sequences.size());
+        for (ProteinSequence sequence : sequences) {
+            words.add(sequence.getWord());
+        }
+        return words;
+    }
+
+    @Test
+    public void testNearestNeighbors() throws Exception {
+        Random random = new Random(42);
+        VPTree<ProteinSequence> tree = new VPTree<>(
+                randomWords(random, 2000, 12), 16);
+        FlatVPTree flat = new FlatVPTree(tree);
+        assertEquals(tree.size(), flat.size());
+
+        /* Ties may be broken differently, so compare distances */
+        for (ProteinSequence query : randomWords(random, 50, 12)) {
+            List<ProteinSequence> expected = tree.getNearestNeighbors(query,
+                    5);
+            List<ProteinSequence> result = flat.getNearestNeighbors(query, 5);
+            assertEquals(expected.size(), result.size());
+            for (int i = 0; i < expected.size(); ++i) {
+                assertEquals(expected.get(i).getDistanceTo(query),
+                        result.get(i).getDistanceTo(query), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        Random random = new Random(7);
+        List<ProteinSequence> points = randomWords(random, 500, 10);
+        for (int i = 0; i < points.size(); ++i) {
+            points.get(i).setSequenceID("seq" + i % 7);
+            points.get(i).setSequencePos(i);
+            points.get(i).setParentID(i % 7);
+        }
+        FlatVPTree flat = new FlatVPTree(points);
+        FlatVPTree copy = Serializer.deserialize(FlatVPTree.class,
+                Serializer.serialize(flat));
+        assertEquals(flat.getNodeCount(), copy.getNodeCount());
+
+        for (ProteinSequence query : randomWords(random, 20, 10)) {
+            assertEquals(words(flat.getNearestNeighbors(query, 5)),
+                    words(copy.getNearestNeighbors(query, 5)));
+        }
+        for (ProteinSequence point : points) {
+            ProteinSequence match = copy.getNearestNeighbor(point);
+            assertEquals(point.getWord(), match.getWord());
+            assertEquals(point.getSequenceID(), match.getSequenceID());
+            assertEquals(point.getSequencePos(), match.getSequencePos());
+            assertEquals(point.getParentID(), match.getParentID());
+        }
+    }
+}
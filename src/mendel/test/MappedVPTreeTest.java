@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.test;
+
+import mendel.vptree.FlatVPTree;
+import mendel.vptree.MappedVPTree;
+import mendel.vptree.types.ProteinSequence;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static mendel.test.TestSequences.randomWords;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Verifies that a {@link MappedVPTree} finds the true nearest neighbors and
+ * preserves window metadata through the index file.
+ *
+ * @author ctolooee
+ */
+public class MappedVPTreeTest {
+
+    @Test
+    public void testNearestNeighbors() throws Exception {
+        Random random = new Random(42);
+        List<ProteinSequence> points = randomWords(random, 2000, 12);
+        File file = File.createTempFile("mendel", ".vpt");
+        file.deleteOnExit();
+        MappedVPTree.write(new FlatVPTree(points, 16), file);
+        MappedVPTree tree = MappedVPTree.open(file);
+        assertEquals(points.size(), tree.size());
+
+        for (ProteinSequence query : randomWords(random, 50, 12)) {
+            List<Double> expected = new ArrayList<>();
+            for (ProteinSequence point : points) {
+                expected.add(point.getDistanceTo(query));
+            }
+            Collections.sort(expected);
+
+            List<ProteinSequence> result = tree.getNearestNeighbors(query, 5);
+            assertEquals(5, result.size());
+            for (int i = 0; i < result.size(); ++i) {
+                assertEquals(expected.get(i),
+                        result.get(i).getDistanceTo(query), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testRange() throws Exception {
+        Random random = new Random(11);
+        List<ProteinSequence> points = randomWords(random, 2000, 8);
+        File file = File.createTempFile("mendel", ".vpt");
+        file.deleteOnExit();
+        MappedVPTree.write(new FlatVPTree(points, 16), file);
+        MappedVPTree tree = MappedVPTree.open(file);
+
+        for (ProteinSequence query : randomWords(random, 20, 8)) {
+            List<Double> expected = new ArrayList<>();
+            for (ProteinSequence point : points) {
+                expected.add(point.getDistanceTo(query));
+            }
+            Collections.sort(expected);
+            double radius = expected.get(25);
+            expected = expected.subList(0, expected.lastIndexOf(radius) + 1);
+
+            List<Double> found = new ArrayList<>();
+            for (ProteinSequence point
+                    : tree.getPointsWithinRange(query, radius)) {
+                found.add(point.getDistanceTo(query));
+            }
+            Collections.sort(found);
+            assertEquals(expected, found);
+
+            /* A bounded k-NN search never returns anything beyond range */
+            List<ProteinSequence> bounded = tree.getNearestNeighbors(query,
+                    expected.size() + 10, radius);
+            assertEquals(expected.size(), bounded.size());
+        }
+    }
+
+    @Test
+    public void testBatchNearestNeighbors() throws Exception {
+        Random random = new Random(19);
+        List<ProteinSequence> points = randomWords(random, 2000, 8);
+        File file = File.createTempFile("mendel", ".vpt");
+        file.deleteOnExit();
+        MappedVPTree.write(new FlatVPTree(points, 16), file);
+        MappedVPTree tree = MappedVPTree.open(file);
+
+        List<ProteinSequence> queries = randomWords(random, 30, 8);
+        double[] maxDistances = new double[queries.size()];
+        Arrays.fill(maxDistances, Double.POSITIVE_INFINITY);
+        List<List<ProteinSequence>> batch = tree.getNearestNeighbors(queries,
+                5, maxDistances);
+        for (int i = 0; i < queries.size(); ++i) {
+            ProteinSequence query = queries.get(i);
+            List<ProteinSequence> single = tree.getNearestNeighbors(query, 5);
+            assertEquals(single.size(), batch.get(i).size());
+            for (int j = 0; j < single.size(); ++j) {
+                assertEquals(single.get(j).getDistanceTo(query),
+                        batch.get(i).get(j).getDistanceTo(query), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testMetadata() throws Exception {
+        List<ProteinSequence> points = randomWords(new Random(7), 100, 10);
+        File file = File.createTempFile("mendel", ".vpt");
+        file.deleteOnExit();
+        MappedVPTree.write(new FlatVPTree(points, 8), file);
+        MappedVPTree tree = MappedVPTree.open(file);
+
+        for (ProteinSequence point : points) {
+            ProteinSequence match = tree.getNearestNeighbor(point);
+            assertEquals(point.getWord(), match.getWord());
+            assertEquals(point.getSequenceID(), match.getSequenceID());
+            assertEquals(point.getSequencePos(), match.getSequencePos());
+            assertEquals(point.getParentID(), match.getParentID());
+        }
+    }
+}
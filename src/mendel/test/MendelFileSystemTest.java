@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.test;
+
+import mendel.data.Metadata;
+import mendel.fs.Block;
+import mendel.fs.MendelFileSystem;
+import mendel.serialize.Serializer;
+import mendel.vptree.types.ProteinSequence;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing the metadata index of the Mendel file system under concurrent
+ * queries.
+ *
+ * @author ctolooee
+ */
+public class MendelFileSystemTest {
+
+    private static Block randomBlock(Random random, int windows) {
+        Block block = null;
+        for (int i = 0; i < windows; ++i) {
+            String word = TestSequences.randomWord(random, 10);
+            ProteinSequence window = new ProteinSequence(word);
+            window.setSequenceID("seq" + random.nextInt(10));
+            Metadata meta = new Metadata(window, "");
+            if (block == null) {
+                block = new Block(meta, word.getBytes());
+            } else {
+                block.addData(meta, word.getBytes());
+            }
+        }
+        return block;
+    }
+
+    @Test
+    public void testBlockSerialization() throws Exception {
+        Block block = randomBlock(new Random(29), 50);
+        Block copy = Serializer.deserialize(Block.class,
+                Serializer.serialize(block));
+
+        /* Windows travel with their parent's ID alone */
+        assertEquals(block.getMetadata().size(), copy.getMetadata().size());
+        for (int i = 0; i < block.getMetadata().size(); ++i) {
+            ProteinSequence window = block.getMetadata().get(i).getSegment();
+            ProteinSequence match = copy.getMetadata().get(i).getSegment();
+            assertEquals(window.getWord(), match.getWord());
+            assertEquals(window.getParentID(), match.getParentID());
+            assertEquals(window.getSequenceID(), match.getSequenceID());
+        }
+    }
+
+    @Test
+    public void testFlushIndex() throws Exception {
+        String root = Files.createTempDirectory("mendel").toString();
+        MendelFileSystem fs = new MendelFileSystem(root, true);
+        Random random = new Random(31);
+        for (int i = 0; i < 10; ++i) {
+            fs.storeBlock(randomBlock(random, 50));
+        }
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            queries.add(TestSequences.randomWord(random, 10));
+        }
+        List<List<ProteinSequence>> expected = new ArrayList<>();
+        for (String query : queries) {
+            expected.add(fs.nearestNeighborQuery(query));
+        }
+
+        /* One window stays in memory, the rest move to a segment */
+        assertEquals(500, fs.flushIndex());
+        assertEquals(0, fs.flushIndex());
+        fs.storeBlock(randomBlock(random, 1));
+        assertEquals(1, fs.flushIndex());
+        fs.storeBlock(randomBlock(random, 1));
+        assertDistances(queries, expected, fs);
+
+        /* Segments and the journal are both recovered, without repeats */
+        fs.shutdown();
+        MendelFileSystem reopened = new MendelFileSystem(root, true);
+        assertDistances(queries, expected, reopened);
+        List<ProteinSequence> all = new ArrayList<>();
+        reopened.rangeQuery(queries.get(0), Double.POSITIVE_INFINITY,
+                (window, distance) -> all.add(window));
+        assertEquals(502, all.size());
+    }
+
+    private static void assertDistances(List<String> queries,
+                                        List<List<ProteinSequence>> expected,
+                                        MendelFileSystem fs) {
+        for (int i = 0; i < queries.size(); ++i) {
+            ProteinSequence query = new ProteinSequence(queries.get(i));
+            List<ProteinSequence> results = fs.nearestNeighborQuery(
+                    queries.get(i));
+            assertEquals(expected.get(i).size(), results.size());
+            for (int j = 0; j < results.size(); ++j) {
+                assertTrue(results.get(j).getDistanceTo(query)
+                        <= expected.get(i).get(j).getDistanceTo(query));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentQueries() throws Exception {
+        String root = Files.createTempDirectory("mendel").toString();
+        MendelFileSystem fs = new MendelFileSystem(root, true);
+        Random random = new Random(23);
+        for (int i = 0; i < 20; ++i) {
+            fs.storeBlock(randomBlock(random, 50));
+        }
+
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < 16; ++i) {
+            queries.add(randomBlock(random, 1).getMetadata().get(0)
+                    .getSegment().getWord());
+        }
+        double[] maxDistances = new double[queries.size()];
+        Arrays.fill(maxDistances, Double.POSITIVE_INFINITY);
+
+        /* Readers search while windows keep being stored */
+        AtomicBoolean storing = new AtomicBoolean(true);
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> searches = new ArrayList<>();
+        for (int t = 0; t < 4; ++t) {
+            searches.add(readers.submit(() -> {
+                int rounds = 0;
+                while (storing.get() || rounds == 0) {
+                    List<List<ProteinSequence>> results
+                            = fs.nearestNeighborQuery(queries, 5,
+                            maxDistances);
+                    for (List<ProteinSequence> neighbors : results) {
+                        assertEquals(5, neighbors.size());
+                    }
+                    rounds++;
+                }
+                return rounds;
+            }));
+        }
+        for (int i = 0; i < 20; ++i) {
+            fs.storeBlock(randomBlock(random, 50));
+        }
+        storing.set(false);
+        for (Future<Integer> search : searches) {
+            assertTrue(search.get() > 0);
+        }
+        readers.shutdown();
+        assertTrue(readers.awaitTermination(10, TimeUnit.SECONDS));
+
+        /* Once storing settles the batch agrees with single searches */
+        List<List<ProteinSequence>> results = fs.nearestNeighborQuery(
+                queries, 5, maxDistances);
+        for (int i = 0; i < queries.size(); ++i) {
+            List<ProteinSequence> single = fs.nearestNeighborQuery(
+                    queries.get(i));
+            ProteinSequence query = new ProteinSequence(queries.get(i));
+            for (int j = 0; j < single.size(); ++j) {
+                assertEquals(single.get(j).getDistanceTo(query),
+                        results.get(i).get(j).getDistanceTo(query), 0.0);
+            }
+        }
+    }
+}
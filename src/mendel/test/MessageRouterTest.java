@@ -0,0 +1,511 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.test;
+
+import mendel.dht.PeerOutbox;
+import mendel.network.BackpressureException;
+import mendel.network.BufferPool;
+import mendel.network.ClientMessageRouter;
+import mendel.network.MendelMessage;
+import mendel.network.MessageContext;
+import mendel.network.MessageListener;
+import mendel.network.MessageRouter;
+import mendel.network.NetworkDestination;
+import mendel.network.ServerMessageRouter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends messages between a client and server router over the loopback
+ * interface.
+ *
+ * @author ctolooee
+ */
+public class MessageRouterTest {
+
+    private static class Receiver implements MessageListener {
+        private BlockingQueue<MendelMessage> messages
+                = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onMessage(MendelMessage message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void onConnect(NetworkDestination endpoint) { }
+
+        @Override
+        public void onDisconnect(NetworkDestination endpoint) { }
+
+        public MendelMessage take() throws InterruptedException {
+            return messages.poll(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    public void testBufferPool() {
+        BufferPool pool = new BufferPool(65536, 1 << 20);
+        byte[] small = pool.acquire(10);
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, small.length);
+        byte[] medium = pool.acquire(5000);
+        assertEquals(8192, medium.length);
+        assertEquals(100000, pool.acquire(100000).length);
+        assertEquals(3, pool.getMisses());
+
+        pool.release(medium);
+        pool.release(new byte[100000]);
+        assertEquals(1, pool.getReleases());
+        assertEquals(1, pool.getDiscards());
+        assertTrue(medium == pool.acquire(8000));
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getPooledBuffers());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        int port = freePort();
+        Receiver receiver = new Receiver();
+        ServerMessageRouter server = new ServerMessageRouter();
+        server.addListener(receiver);
+        server.listen(port);
+        ClientMessageRouter client = new ClientMessageRouter();
+
+        try {
+            NetworkDestination destination
+                    = new NetworkDestination("localhost", port);
+            Random random = new Random(7);
+
+            /* Payloads from a few bytes up to several read buffers long */
+            int[] sizes = { 3, 1024, 1025, 70000, 1000000 };
+            for (int round = 0; round < 2; ++round) {
+                for (int size : sizes) {
+                    byte[] payload = new byte[size];
+                    random.nextBytes(payload);
+                    client.sendMessage(destination, new MendelMessage(payload));
+
+                    MendelMessage received = receiver.take();
+                    assertNotNull(received);
+                    assertEquals(size, received.getLength());
+                    assertTrue(received.getPayload().length >= size);
+                    assertTrue(Arrays.equals(payload, Arrays.copyOf(
+                            received.getPayload(), received.getLength())));
+                    received.release();
+                }
+            }
+
+            /* The second round reuses the first round's buffers */
+            assertTrue(server.getBufferPool().getHits() >= sizes.length);
+        } finally {
+            client.forceShutdown();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        try (ServerSocket slowPeer = new ServerSocket(0)) {
+            NetworkDestination destination = new NetworkDestination(
+                    "localhost", slowPeer.getLocalPort());
+            ClientMessageRouter client = new ClientMessageRouter();
+            client.setWriteLimit(destination, 1 << 20);
+
+            try {
+                /* The peer never reads, so once the socket buffers fill up
+                  the queue stays full */
+                client.sendMessageAsync(destination, new MendelMessage(
+                        new byte[256 * 1024]));
+                Socket peer = slowPeer.accept();
+                int idle = 0;
+                for (int i = 0; i < 2000 && idle < 5; ++i) {
+                    if (client.isWritable(destination)) {
+                        client.sendMessageAsync(destination, new MendelMessage(
+                                new byte[256 * 1024]));
+                        idle = 0;
+                    } else {
+                        Thread.sleep(50);
+                        idle++;
+                    }
+                }
+                assertFalse(client.isWritable(destination));
+                try {
+                    client.sendMessageAsync(destination,
+                            new MendelMessage(new byte[1024])).join();
+                    fail("Expected backpressure");
+                } catch (CompletionException e) {
+                    assertTrue(e.getCause() instanceof BackpressureException);
+                }
+                CompletableFuture<Void> writable
+                        = client.whenWritable(destination);
+                assertFalse(writable.isDone());
+
+                /* Once the peer catches up, producers may carry on */
+                InputStream in = peer.getInputStream();
+                Thread reader = new Thread(() -> {
+                    byte[] sink = new byte[65536];
+                    try {
+                        while (in.read(sink) >= 0) { }
+                    } catch (IOException e) {
+                        /* Closed */
+                    }
+                });
+                reader.start();
+                writable.get(10, TimeUnit.SECONDS);
+                client.sendMessageAsync(destination,
+                        new MendelMessage(new byte[1024]))
+                        .get(10, TimeUnit.SECONDS);
+                peer.close();
+            } finally {
+                client.forceShutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testSlowPeer() throws Exception {
+        int port = freePort();
+        int numUploads = 1000;
+        int uploadSize = 64 * 1024;
+        long maxBacklog = 1 << 20;
+
+        try (ServerSocket slowPeer = new ServerSocket(0)) {
+            NetworkDestination peerDestination = new NetworkDestination(
+                    "localhost", slowPeer.getLocalPort());
+            ClientMessageRouter peers = new ClientMessageRouter();
+            peers.setWriteLimit(peerDestination, 1 << 20);
+            PeerOutbox outbox = new PeerOutbox(peers, peerDestination);
+
+            /* Forward uploads to the peer and answer queries from a single
+              thread, as a storage node's EventReactor would */
+            AtomicInteger forwarded = new AtomicInteger();
+            ExecutorService reactor = Executors.newSingleThreadExecutor();
+            ServerMessageRouter server = new ServerMessageRouter();
+            server.addListener(new Receiver() {
+                @Override
+                public void onMessage(MendelMessage message) {
+                    reactor.execute(() -> {
+                        byte type = message.getPayload()[0];
+                        MessageContext context = message.getContext();
+                        message.release();
+                        try {
+                            if (type == 'Q') {
+                                context.sendMessage(new MendelMessage(
+                                        new byte[] { 'A' }));
+                                return;
+                            }
+                            outbox.send(new MendelMessage(
+                                    new byte[uploadSize]));
+                            forwarded.incrementAndGet();
+                            CompletableFuture<Void> caughtUp
+                                    = outbox.whenBacklogAtMost(maxBacklog);
+                            if (caughtUp.isDone() == false) {
+                                context.pauseReading();
+                                caughtUp.thenRun(context::resumeReading);
+                            }
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                }
+            });
+            server.listen(port);
+            NetworkDestination destination
+                    = new NetworkDestination("localhost", port);
+
+            ClientMessageRouter uploader = new ClientMessageRouter();
+            uploader.setWriteLimit(destination, 4 << 20);
+            ClientMessageRouter querier = new ClientMessageRouter();
+            Receiver answers = new Receiver();
+            querier.addListener(answers);
+            Thread upload = new Thread(() -> {
+                try {
+                    for (int i = 0; i < numUploads; ++i) {
+                        byte[] payload = new byte[uploadSize];
+                        payload[0] = 'S';
+                        uploader.sendMessage(destination,
+                                new MendelMessage(payload));
+                    }
+                } catch (IOException e) {
+                    /* Shut down */
+                }
+            });
+            upload.setDaemon(true);
+
+            try {
+                upload.start();
+                Socket peer = slowPeer.accept();
+
+                /* The peer never reads, so the upload stalls, but queries
+                  are still answered */
+                for (int i = 0; i < 20; ++i) {
+                    querier.sendMessage(destination,
+                            new MendelMessage(new byte[] { 'Q' }));
+                    MendelMessage answer = answers.take();
+                    assertNotNull(answer);
+                    answer.release();
+                    Thread.sleep(50);
+                }
+                int stalled = forwarded.get();
+                assertTrue(stalled < numUploads);
+                Thread.sleep(500);
+                assertTrue(upload.isAlive());
+                assertEquals(stalled, forwarded.get());
+
+                /* Once the peer catches up, so does the upload */
+                InputStream in = peer.getInputStream();
+                Thread reader = new Thread(() -> {
+                    byte[] sink = new byte[65536];
+                    try {
+                        while (in.read(sink) >= 0) { }
+                    } catch (IOException e) {
+                        /* Closed */
+                    }
+                });
+                reader.start();
+                upload.join(30000);
+                assertFalse(upload.isAlive());
+                for (int i = 0; i < 300 && forwarded.get() < numUploads;
+                        ++i) {
+                    Thread.sleep(100);
+                }
+                assertEquals(numUploads, forwarded.get());
+                peer.close();
+            } finally {
+                uploader.forceShutdown();
+                querier.forceShutdown();
+                peers.forceShutdown();
+                server.shutdown();
+                reactor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentSenders() throws Exception {
+        int port = freePort();
+        int numThreads = 8;
+        int numMessages = 200;
+
+        AtomicInteger connections = new AtomicInteger();
+        Receiver receiver = new Receiver() {
+            @Override
+            public void onConnect(NetworkDestination endpoint) {
+                connections.incrementAndGet();
+            }
+        };
+        ServerMessageRouter server = new ServerMessageRouter();
+        server.addListener(receiver);
+        server.listen(port);
+        ClientMessageRouter client = new ClientMessageRouter();
+
+        ExecutorService senders = Executors.newFixedThreadPool(numThreads);
+        try {
+            /* Every thread sends to the same new destination at once */
+            NetworkDestination destination
+                    = new NetworkDestination("localhost", port);
+            CyclicBarrier start = new CyclicBarrier(numThreads);
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < numThreads; ++t) {
+                results.add(senders.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < numMessages; ++i) {
+                        client.sendMessage(destination,
+                                new MendelMessage(new byte[16]));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+
+            for (int i = 0; i < numThreads * numMessages; ++i) {
+                MendelMessage message = receiver.take();
+                assertNotNull(message);
+                message.release();
+            }
+            assertEquals(1, connections.get());
+        } finally {
+            senders.shutdownNow();
+            client.forceShutdown();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatchedWrites() throws Exception {
+        int port = freePort();
+        int numThreads = 4;
+        int numMessages = 5000;
+
+        Receiver receiver = new Receiver();
+        ServerMessageRouter server = new ServerMessageRouter();
+        server.addListener(receiver);
+        server.listen(port);
+        ClientMessageRouter client = new ClientMessageRouter();
+
+        ExecutorService senders = Executors.newFixedThreadPool(numThreads);
+        try {
+            /* Many small messages of mixed sizes, queued from several threads
+              while the selector drains them in batches */
+            NetworkDestination destination
+                    = new NetworkDestination("localhost", port);
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < numThreads; ++t) {
+                int thread = t;
+                results.add(senders.submit(() -> {
+                    Random random = new Random(thread);
+                    for (int i = 0; i < numMessages; ++i) {
+                        ByteBuffer payload = ByteBuffer.allocate(
+                                8 + random.nextInt(2000));
+                        payload.putInt(thread).putInt(i);
+                        client.sendMessage(destination,
+                                new MendelMessage(payload.array()));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+
+            /* Every message arrives whole, in order for each sender */
+            int[] next = new int[numThreads];
+            for (int i = 0; i < numThreads * numMessages; ++i) {
+                MendelMessage message = receiver.take();
+                assertNotNull(message);
+                ByteBuffer payload = ByteBuffer.wrap(
+                        message.getPayload(), 0, message.getLength());
+                int thread = payload.getInt();
+                assertEquals(next[thread]++, payload.getInt());
+                message.release();
+            }
+        } finally {
+            senders.shutdownNow();
+            client.forceShutdown();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testManyConnections() throws Exception {
+        int port = freePort();
+        int numClients = 6;
+        int numMessages = 500;
+
+        /* Echo every message back to its sender from a worker thread, as an
+          EventReactor would; replying from an I/O thread could block it on
+          its own write queue */
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        ServerMessageRouter server = new ServerMessageRouter(
+                MessageRouter.DEFAULT_READ_BUFFER_SIZE,
+                MessageRouter.DEFAULT_WRITE_QUEUE_SIZE, 3);
+        server.addListener(new Receiver() {
+            @Override
+            public void onMessage(MendelMessage message) {
+                worker.execute(() -> {
+                    byte[] copy = Arrays.copyOf(
+                            message.getPayload(), message.getLength());
+                    message.release();
+                    try {
+                        message.getContext().sendMessage(
+                                new MendelMessage(copy));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+            }
+        });
+        server.listen(port);
+
+        List<ClientMessageRouter> clients = new ArrayList<>();
+        List<Receiver> receivers = new ArrayList<>();
+        try {
+            NetworkDestination destination
+                    = new NetworkDestination("localhost", port);
+            for (int c = 0; c < numClients; ++c) {
+                ClientMessageRouter client = new ClientMessageRouter();
+                Receiver receiver = new Receiver();
+                client.addListener(receiver);
+                clients.add(client);
+                receivers.add(receiver);
+            }
+            for (int i = 0; i < numMessages; ++i) {
+                for (ClientMessageRouter client : clients) {
+                    client.sendMessage(destination, new MendelMessage(
+                            ByteBuffer.allocate(4).putInt(i).array()));
+                }
+            }
+
+            /* Each connection's echoes come back in the order sent */
+            for (Receiver receiver : receivers) {
+                for (int i = 0; i < numMessages; ++i) {
+                    MendelMessage echo = receiver.take();
+                    assertNotNull(echo);
+                    assertEquals(i, ByteBuffer.wrap(
+                            echo.getPayload(), 0, echo.getLength()).getInt());
+                }
+            }
+        } finally {
+            for (ClientMessageRouter client : clients) {
+                client.forceShutdown();
+            }
+            server.shutdown();
+            worker.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.test;
+
+import mendel.vptree.MultiVPTree;
+import mendel.vptree.VPNode;
+import mendel.vptree.VPTree;
+import mendel.vptree.types.ProteinSequence;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static mendel.test.TestSequences.randomWords;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing correctness of the m-ary vp-tree implementation.
+ *
+ * @author ctolooee
+ */
+public class MultiVPTreeTest {
+
+    @Test
+    public void testNearestNeighbor() {
+        Random random = new Random(42);
+        List<ProteinSequence> points = randomWords(random, 5000, 10);
+        MultiVPTree<ProteinSequence> tree = new MultiVPTree<>(points, 16, 4);
+        assertEquals(points.size(), tree.size());
+
+        for (ProteinSequence query : randomWords(random, 100, 10)) {
+            double best = Double.POSITIVE_INFINITY;
+            for (ProteinSequence point : points) {
+                best = Math.min(best, point.getDistanceTo(query));
+            }
+            assertEquals(best,
+                    tree.getNearestNeighbor(query).getDistanceTo(query), 0.0);
+        }
+    }
+
+    @Test
+    public void testAddAndPrefix() {
+        Random random = new Random(7);
+        List<ProteinSequence> points = randomWords(random, 3000, 10);
+        MultiVPTree<ProteinSequence> tree = new MultiVPTree<>(8, 3);
+        tree.addAll(points);
+        assertEquals(points.size(), tree.size());
+        assertEquals(points.size(), tree.getRoot().size());
+        assertEquals(points.size(), tree.getPoints().size());
+
+        for (ProteinSequence point : points.subList(0, 200)) {
+            assertTrue(tree.contains(point));
+            /* Prefixes at each depth extend the prefix of the depth above */
+            long parent = tree.getPrefixOf(point, 1);
+            long child = tree.getPrefixOf(point, 2);
+            assertEquals(parent, child / 3);
+        }
+    }
+
+    @Test
+    public void testShallowerThanBinary() {
+        List<ProteinSequence> points = randomWords(new Random(1), 20000, 12);
+        VPTree<ProteinSequence> binary = new VPTree<>(points, 16);
+        MultiVPTree<ProteinSequence> multi = new MultiVPTree<>(points, 16, 8);
+        assertTrue(multi.getHeight() < height(binary.getRoot()));
+    }
+
+    @Test
+    public void testDeepTree() {
+        /* Adding points in order of distance from one of them grows a
+          deep, narrow tree */
+        List<ProteinSequence> points = randomWords(new Random(3), 12000, 10);
+        ProteinSequence origin = points.get(0);
+        Collections.sort(points, (a, b) -> Double.compare(
+                a.getDistanceTo(origin), b.getDistanceTo(origin)));
+        MultiVPTree<ProteinSequence> tree = new MultiVPTree<>(2, 2);
+        for (ProteinSequence point : points) {
+            tree.add(point);
+        }
+        assertEquals(points.size(), tree.getRoot().size());
+        assertTrue(tree.getHeight() > 10000);
+
+        for (ProteinSequence query : points.subList(0, 100)) {
+            assertTrue(tree.contains(query));
+            assertEquals(0.0, tree.getNearestNeighbor(query)
+                    .getDistanceTo(query), 0.0);
+        }
+    }
+
+    private int height(VPNode<ProteinSequence> node) {
+        if (node.isLeafNode()) {
+            return 1;
+        }
+        return 1 + Math.max(height(node.getCloserNode()),
+                height(node.getFartherNode()));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.test;
+
+import mendel.client.EventPublisher;
+import mendel.comm.MendelEventMap;
+import mendel.comm.QueryEvent;
+import mendel.comm.QueryResponse;
+import mendel.dht.StorageNode;
+import mendel.event.BasicEventWrapper;
+import mendel.event.EventReactor;
+import mendel.fs.MendelFileSystem;
+import mendel.network.ClientMessageRouter;
+import mendel.network.MendelMessage;
+import mendel.network.MessageListener;
+import mendel.network.NetworkDestination;
+import mendel.network.ServerMessageRouter;
+import mendel.query.SimilarityQuery;
+import mendel.vptree.SearchBudget;
+import mendel.vptree.types.ProteinSequence;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing how a storage node answers queries sent to it over the network.
+ *
+ * @author ctolooee
+ */
+public class StorageNodeTest {
+
+    @Test
+    public void testFailedQueryReplies() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        /* Every search of the index fails */
+        String root = Files.createTempDirectory("mendel").toString();
+        MendelFileSystem fs = new MendelFileSystem(root, true) {
+            @Override
+            public List<List<ProteinSequence>> nearestNeighborQuery(
+                    List<String> queryStrings, int k, double[] maxDistances,
+                    SearchBudget budget) {
+                throw new IllegalStateException("Index unavailable");
+            }
+        };
+        ForkJoinPool queryPool = new ForkJoinPool(2);
+        StorageNode node = new StorageNode(fs, queryPool);
+
+        EventReactor reactor = new EventReactor(node, new MendelEventMap());
+        ServerMessageRouter server = new ServerMessageRouter();
+        server.addListener(reactor);
+        server.listen(port);
+        Thread reactorThread = new Thread(() -> {
+            try {
+                while (true) {
+                    reactor.processNextEvent();
+                }
+            } catch (InterruptedException e) {
+                /* Shut down */
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reactorThread.setDaemon(true);
+        reactorThread.start();
+
+        BlockingQueue<MendelMessage> replies = new LinkedBlockingQueue<>();
+        ClientMessageRouter client = new ClientMessageRouter();
+        client.addListener(new MessageListener() {
+            @Override
+            public void onConnect(NetworkDestination endpoint) { }
+
+            @Override
+            public void onDisconnect(NetworkDestination endpoint) { }
+
+            @Override
+            public void onMessage(MendelMessage message) {
+                replies.add(message);
+            }
+        });
+
+        try {
+            SimilarityQuery query = new SimilarityQuery(
+                    Arrays.asList("ACDEFGHIK", "CDEFGHIKL"), "ACDEFGHIKL");
+            client.sendMessage(new NetworkDestination("localhost", port),
+                    EventPublisher.wrapEvent(
+                            new QueryEvent(query, "failing query")));
+
+            /* The querying node still hears back, with no results */
+            MendelMessage reply = replies.poll(10, TimeUnit.SECONDS);
+            assertNotNull(reply);
+            QueryResponse response = (QueryResponse) new BasicEventWrapper(
+                    new MendelEventMap()).unwrap(reply);
+            assertEquals("failing query", response.getQueryID());
+            assertTrue(response.getResponse().isEmpty());
+        } finally {
+            client.forceShutdown();
+            server.shutdown();
+            reactorThread.interrupt();
+            queryPool.shutdownNow();
+        }
+    }
+}
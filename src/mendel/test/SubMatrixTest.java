@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.test;
+
+import mendel.vptree.types.ProteinSequence;
+import mendel.vptree.types.SubMatrix;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Verifies the flattened substitution table against the original
+ * {@link SubMatrix#SUB_MATRIX} lookups.
+ *
+ * @author ctolooee
+ */
+public class SubMatrixTest {
+
+    private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWYacdxXBZ*-";
+
+    /* Scores two words the way ProteinSequence originally did */
+    private static int mapDistance(String word1, String word2) {
+        char[] c1 = word1.toUpperCase().toCharArray();
+        char[] c2 = word2.toUpperCase().toCharArray();
+        int len = c1.length < c2.length ? c1.length : c2.length;
+        int score = 0;
+        for (int i = 0; i < len; i++) {
+            Double val = SubMatrix.SUB_MATRIX.get(
+                    String.valueOf(c1[i]) + String.valueOf(c2[i]));
+            if (val == null) {
+                val = 13.0;
+            }
+            score += val;
+        }
+        return score;
+    }
+
+    private static String randomWord(Random rand, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; ++i) {
+            sb.append(RESIDUES.charAt(rand.nextInt(RESIDUES.length())));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testDistanceMatchesMap() {
+        Random rand = new Random(0);
+        for (int i = 0; i < 10000; ++i) {
+            String w1 = randomWord(rand, 1 + rand.nextInt(40));
+            String w2 = randomWord(rand, 1 + rand.nextInt(40));
+            assertEquals(mapDistance(w1, w2),
+                    new ProteinSequence(w1).getDistanceTo(
+                            new ProteinSequence(w2)), 0.0);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.test;
+
+import mendel.data.parse.FastaParser;
+import mendel.vptree.types.ProteinSequence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Protein sequences for the vp-tree tests and benchmarks: random ones, the
+ * windows of a FASTA file, and queries made by mutating indexed windows.
+ *
+ * @author ctolooee
+ */
+public final class TestSequences {
+
+    /** The twenty standard amino acid residues */
+    public static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+
+    private TestSequences() {
+    }
+
+    /**
+     * Generates a string of residues drawn uniformly from {@link #RESIDUES}.
+     *
+     * @param random the source of randomness
+     * @param length the number of residues
+     * @return the random residues
+     */
+    public static String randomWord(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+            sb.append(RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generates sequences of residues drawn uniformly from
+     * {@link #RESIDUES}.
+     *
+     * @param random the source of randomness
+     * @param count  the number of sequences
+     * @param length the number of residues in each sequence
+     * @return the random sequences
+     */
+    public static List<ProteinSequence> randomWords(Random random, int count,
+                                                    int length) {
+        List<ProteinSequence> words = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            words.add(new ProteinSequence(randomWord(random, length)));
+        }
+        return words;
+    }
+
+    /**
+     * Reads up to {@code count} windows from a FASTA file.
+     *
+     * @param fasta the path of the FASTA file
+     * @param count the largest number of windows to read
+     * @return the windows, in file order
+     * @throws IOException if the file cannot be read
+     */
+    public static List<ProteinSequence> readWindows(String fasta, int count)
+            throws IOException {
+        List<ProteinSequence> windows = new ArrayList<>(count);
+        Iterator<ProteinSequence> it = new FastaParser(fasta).windowIterator();
+        while (it.hasNext() && windows.size() < count) {
+            windows.add(it.next());
+        }
+        return windows;
+    }
+
+    /**
+     * Makes queries that are near, but usually not equal to, indexed
+     * windows: each is a window chosen at random with three residues
+     * substituted.
+     *
+     * @param random  the source of randomness
+     * @param windows the windows to choose from
+     * @param count   the number of queries
+     * @return the queries
+     */
+    public static List<ProteinSequence> mutate(Random random,
+                                               List<ProteinSequence> windows,
+                                               int count) {
+        List<ProteinSequence> queries = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            char[] word = windows.get(random.nextInt(windows.size()))
+                    .getWord().toCharArray();
+            for (int j = 0; j < 3; ++j) {
+                word[random.nextInt(word.length)]
+                        = RESIDUES.charAt(random.nextInt(RESIDUES.length()));
+            }
+            queries.add(new ProteinSequence(new String(word)));
+        }
+        return queries;
+    }
+}
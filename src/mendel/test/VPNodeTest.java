@@ -29,6 +29,11 @@ public class VPNodeTest {
 
         int lower = 0, upper = 6, n = array.length/2;
         test.nth_element(array, lower, upper, n, array[4]);
-        assertEquals(new Sequence("AAAACCC").toString(), array[5].toString());
+        assertEquals(new Sequence("AAAACCC").toString(), array[n].toString());
+        /* Distances from AAAAAAA are 0..6, so the median is exactly 3 */
+        Sequence vp = new Sequence("AAAAAAA");
+        for (int i = lower; i <= upper; ++i) {
+            assertEquals(i < n, array[i].getDistanceTo(vp) < 3);
+        }
     }
 }
\ No newline at end of file
@@ -27,24 +27,41 @@ package mendel.test;
 
 import mendel.data.parse.FastaParser;
 import mendel.serialize.SerializationInputStream;
+import mendel.serialize.SerializationOutputStream;
 import mendel.serialize.Serializer;
+import mendel.vptree.BoundedPriorityQueue;
+import mendel.vptree.FlatVPTree;
+import mendel.vptree.MappedVPTree;
+import mendel.vptree.NearestNeighborIterator;
+import mendel.vptree.SearchBudget;
 import mendel.vptree.types.ProteinSequence;
 import mendel.vptree.types.Sequence;
+import mendel.vptree.VPNode;
+import mendel.vptree.VPPoint;
 import mendel.vptree.VPTree;
+import mendel.vptree.VantagePointStrategy;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
+import static mendel.test.TestSequences.randomWords;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Testing correctness of vp-tree implementation.
@@ -93,6 +110,393 @@ public class VPTreeTest {
         System.out.println(vpTree2.size());
     }
 
+    @Test
+    public void testDeserializeWithSelector() throws IOException {
+        List<ProteinSequence> points = randomWords(new Random(43), 1000, 10);
+        VPTree<ProteinSequence> vpTree = new VPTree<>(points, 16,
+                VantagePointStrategy.MAX_SPREAD);
+        byte[] serialized = Serializer.serialize(vpTree);
+
+        VPTree<ProteinSequence> copy = new VPTree<>(
+                new SerializationInputStream(
+                        new ByteArrayInputStream(serialized)),
+                VantagePointStrategy.MAX_SPREAD);
+        assertEquals(VantagePointStrategy.MAX_SPREAD, copy.getSelector());
+        assertEquals(points.size(), copy.size());
+
+        /* Without a selector, the policy falls back to the first element */
+        VPTree<ProteinSequence> plain = new VPTree<>(
+                new SerializationInputStream(
+                        new ByteArrayInputStream(serialized)));
+        assertEquals(VantagePointStrategy.FIRST, plain.getSelector());
+    }
+
+    @Test
+    public void testParallelBuild() {
+        Random random = new Random(42);
+        List<ProteinSequence> points = randomWords(random, 20000, 12);
+
+        int cutoff = 1000;
+        VPTree<ProteinSequence> vpTree = new VPTree<>(points, 16,
+                new ForkJoinPool(4), cutoff);
+        assertEquals(points.size(), vpTree.size());
+        checkPartitions(vpTree.getRoot(), cutoff);
+    }
+
+    @Test
+    public void testSequentialBuild() {
+        Random random = new Random(7);
+        List<ProteinSequence> points = randomWords(random, 5000, 10);
+
+        VPTree<ProteinSequence> vpTree = new VPTree<>(points, 8);
+        assertEquals(points.size(), vpTree.size());
+        checkPartitions(vpTree.getRoot(), 0);
+    }
+
+    @Test
+    public void testPivotFiltering() {
+        Random random = new Random(11);
+        List<ProteinSequence> points = randomWords(random, 4000, 10);
+
+        /* Large bins so that most of the search happens inside leaves; the
+          second half is added incrementally and a few points removed so
+          the leaves' pivot tables have to follow along */
+        VPTree<ProteinSequence> vpTree = new VPTree<>(
+                points.subList(0, 2000), 256);
+        vpTree.addAll(points.subList(2000, 3000));
+        for (ProteinSequence point : points.subList(3000, 4000)) {
+            vpTree.add(point);
+        }
+        List<ProteinSequence> removed = points.subList(0, 100);
+        for (ProteinSequence point : removed) {
+            assertTrue(vpTree.remove(point));
+        }
+        List<ProteinSequence> remaining = points.subList(100, 4000);
+        assertEquals(remaining.size(), vpTree.size());
+
+        for (int q = 0; q < 100; ++q) {
+            ProteinSequence query = points.get(random.nextInt(points.size()));
+            double best = Double.POSITIVE_INFINITY;
+            for (ProteinSequence point : remaining) {
+                best = Math.min(best, point.getDistanceTo(query));
+            }
+            assertEquals(best,
+                    vpTree.getNearestNeighbor(query).getDistanceTo(query), 0.0);
+        }
+    }
+
+    @Test
+    public void testApproximateSearch() {
+        Random random = new Random(19);
+        List<ProteinSequence> points = randomWords(random, 2000, 10);
+        VPTree<ProteinSequence> vpTree = new VPTree<>(points, 16);
+
+        SearchBudget budget = new SearchBudget(4, Long.MAX_VALUE, 0.0);
+        for (int q = 0; q < 50; ++q) {
+            ProteinSequence query = points.get(random.nextInt(points.size()));
+            List<ProteinSequence> exact = vpTree.getNearestNeighbors(query, 5);
+            List<ProteinSequence> unbounded = vpTree.getNearestNeighbors(
+                    query, 5, SearchBudget.EXACT);
+            assertEquals(exact.size(), unbounded.size());
+            for (int i = 0; i < exact.size(); ++i) {
+                assertEquals(exact.get(i).getDistanceTo(query),
+                        unbounded.get(i).getDistanceTo(query), 0.0);
+            }
+
+            /* The query is indexed, so even the first leaf finds it */
+            BoundedPriorityQueue<ProteinSequence> results
+                    = new BoundedPriorityQueue<>(query, 5);
+            results.setBudget(budget);
+            vpTree.getNearestNeighbors(query, results);
+            assertTrue(results.getLeavesVisited() <= budget.getMaxLeaves());
+            assertEquals(0.0, results.toSortedList(query).get(0)
+                    .getDistanceTo(query), 0.0);
+        }
+    }
+
+    @Test
+    public void testNearestNeighborIterator() {
+        Random random = new Random(23);
+        List<ProteinSequence> points = randomWords(random, 1000, 10);
+        VPTree<ProteinSequence> vpTree = new VPTree<>(points, 16);
+
+        for (int q = 0; q < 20; ++q) {
+            ProteinSequence query = points.get(random.nextInt(points.size()));
+            List<ProteinSequence> exact = vpTree.getNearestNeighbors(query,
+                    10);
+
+            NearestNeighborIterator<ProteinSequence> it
+                    = vpTree.nearestNeighborIterator(query);
+            double previous = 0.0;
+            int count = 0;
+            while (it.hasNext()) {
+                ProteinSequence neighbor = it.next();
+                double distance = neighbor.getDistanceTo(query);
+                assertEquals(distance, it.getLastDistance(), 0.0);
+                assertTrue(distance >= previous);
+                if (count < exact.size()) {
+                    assertEquals(exact.get(count).getDistanceTo(query),
+                            distance, 0.0);
+                }
+                previous = distance;
+                count++;
+            }
+            assertEquals(points.size(), count);
+        }
+    }
+
+    @Test
+    public void testDeepTree() throws IOException {
+        /* A chain of 20,000 nodes, each with a single point on its closer
+          side, written directly in the serialized form; a negative
+          threshold sends every point down the farther side */
+        int depth = 20000;
+        ProteinSequence center = new ProteinSequence("ACDEFGHIKL");
+        List<ProteinSequence> points = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SerializationOutputStream out = new SerializationOutputStream(bytes);
+        out.writeInt(1);
+        for (int i = 0; i < depth; ++i) {
+            out.writeBoolean(false);
+            out.writeSerializable(center);
+            out.writeDouble(-1.0);
+
+            ProteinSequence point = new ProteinSequence(
+                    Integer.toString(i, 20).toUpperCase().replace('0', 'W'));
+            points.add(point);
+            out.writeBoolean(true);
+            out.writeSerializable(center);
+            out.writeDouble(0.0);
+            out.writeInt(1);
+            out.writeSerializable(point);
+            out.writeInt(1);
+            out.writeLong(i);
+        }
+        ProteinSequence last = new ProteinSequence("MMMMMMMMMM");
+        points.add(last);
+        out.writeBoolean(true);
+        out.writeSerializable(center);
+        out.writeDouble(0.0);
+        out.writeInt(1);
+        out.writeSerializable(last);
+        out.writeInt(1);
+        out.writeLong(depth);
+        for (int i = depth - 1; i >= 0; --i) {
+            out.writeInt(0);
+            out.writeInt(1);
+            out.writeLong(i);
+        }
+        out.close();
+
+        VPTree<ProteinSequence> vpTree = new VPTree<>(
+                new SerializationInputStream(
+                        new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(points.size(), vpTree.size());
+        assertEquals(points.size(), vpTree.getRoot().size());
+        assertEquals(points.size(), vpTree.toArray().length);
+        assertTrue(vpTree.contains(last));
+        assertEquals(depth, vpTree.getPrefixOf(last, Integer.MAX_VALUE));
+        assertEquals(last, vpTree.getNearestNeighbor(last));
+        assertEquals(points.size(),
+                vpTree.getPointsWithinRange(center, 1.0e9).size());
+        assertTrue(vpTree.generateDot().length() > 0);
+
+        /* The array-backed forms walk it without recursion too */
+        FlatVPTree flat = new FlatVPTree(vpTree);
+        assertEquals(points.size(), flat.size());
+        assertEquals(last.getWord(), flat.getNearestNeighbor(last).getWord());
+        File file = File.createTempFile("mendel", ".vpt");
+        file.deleteOnExit();
+        MappedVPTree.write(flat, file);
+        MappedVPTree mapped = MappedVPTree.open(file);
+        assertEquals(last.getWord(),
+                mapped.getNearestNeighbor(last).getWord());
+        assertEquals(points.size(),
+                mapped.getPointsWithinRange(center, 1.0e9).size());
+        double[] maxDistances = {Double.POSITIVE_INFINITY};
+        assertEquals(last.getWord(), mapped.getNearestNeighbors(
+                Collections.singletonList(last), 1, maxDistances)
+                .get(0).get(0).getWord());
+
+        vpTree.add(new ProteinSequence("MMMMMMMMMK"));
+        assertEquals(points.size() + 1, vpTree.size());
+        assertTrue(vpTree.remove(last));
+        assertEquals(points.size(), vpTree.size());
+
+        byte[] serialized = Serializer.serialize(vpTree);
+        VPTree<ProteinSequence> copy = new VPTree<>(
+                new SerializationInputStream(
+                        new ByteArrayInputStream(serialized)));
+        assertEquals(vpTree.size(), copy.size());
+    }
+
+    @Test
+    public void testRebalance() {
+        Random random = new Random(37);
+        List<ProteinSequence> points = randomWords(random, 4000, 10);
+
+        /* Adding points in order of distance from one of them builds a
+          much deeper tree than a bulk load */
+        ProteinSequence origin = points.get(0);
+        List<ProteinSequence> sorted = new ArrayList<>(points);
+        Collections.sort(sorted, (a, b) -> Double.compare(
+                a.getDistanceTo(origin), b.getDistanceTo(origin)));
+        VPTree<ProteinSequence> vpTree = new VPTree<>(8);
+        for (ProteinSequence point : sorted) {
+            vpTree.add(point);
+        }
+        int height = vpTree.getHeight();
+
+        assertTrue(vpTree.rebalance() > 0);
+        assertTrue(vpTree.getHeight() < height);
+        assertTrue(vpTree.getHeight()
+                <= new VPTree<>(points, 8).getHeight() + 2);
+        assertEquals(points.size(), vpTree.size());
+        assertEquals(points.size(), vpTree.getRoot().size());
+        for (ProteinSequence point : points) {
+            assertTrue(vpTree.contains(point));
+        }
+
+        for (int q = 0; q < 50; ++q) {
+            ProteinSequence query = points.get(random.nextInt(points.size()));
+            assertEquals(0.0,
+                    vpTree.getNearestNeighbor(query).getDistanceTo(query), 0.0);
+        }
+    }
+
+    @Test
+    public void testRemoveAll() {
+        Random random = new Random(41);
+        List<ProteinSequence> points = randomWords(random, 5000, 10);
+        VPTree<ProteinSequence> vpTree = new VPTree<>(points, 16);
+        for (ProteinSequence point : points.subList(0, 1000)) {
+            vpTree.add(point);
+        }
+
+        /* Expire most of the points, including both copies of the first
+          thousand */
+        List<ProteinSequence> expired = points.subList(0, 4000);
+        List<ProteinSequence> kept = points.subList(4000, points.size());
+        int height = vpTree.getHeight();
+        assertTrue(vpTree.removeAll(expired));
+        assertFalse(vpTree.removeAll(expired));
+        assertEquals(kept.size(), vpTree.size());
+        assertEquals(kept.size(), vpTree.getRoot().size());
+        assertTrue(vpTree.getHeight() < height);
+        for (ProteinSequence point : expired) {
+            assertFalse(vpTree.contains(point));
+        }
+        for (ProteinSequence point : kept) {
+            assertTrue(vpTree.contains(point));
+        }
+
+        for (int q = 0; q < 20; ++q) {
+            ProteinSequence query = points.get(random.nextInt(points.size()));
+            double nearest = Double.POSITIVE_INFINITY;
+            for (ProteinSequence point : kept) {
+                nearest = Math.min(nearest, point.getDistanceTo(query));
+            }
+            assertEquals(nearest,
+                    vpTree.getNearestNeighbor(query).getDistanceTo(query), 0.0);
+        }
+
+        assertTrue(vpTree.removeIf(point -> true));
+        assertEquals(0, vpTree.size());
+        assertTrue(vpTree.isEmpty());
+        assertEquals(1, vpTree.getHeight());
+        vpTree.add(points.get(0));
+        assertTrue(vpTree.contains(points.get(0)));
+        assertFalse(vpTree.isEmpty());
+
+        vpTree.clear();
+        assertEquals(0, vpTree.size());
+        assertTrue(vpTree.isEmpty());
+    }
+
+    @Test
+    public void testRange() {
+        Random random = new Random(13);
+        List<ProteinSequence> points = randomWords(random, 3000, 8);
+        VPTree<ProteinSequence> vpTree = new VPTree<>(points, 32);
+
+        for (int q = 0; q < 20; ++q) {
+            ProteinSequence query = points.get(random.nextInt(points.size()));
+            List<Double> expected = new ArrayList<>();
+            for (ProteinSequence point : points) {
+                expected.add(point.getDistanceTo(query));
+            }
+            Collections.sort(expected);
+            double radius = expected.get(25);
+            expected = expected.subList(0, expected.lastIndexOf(radius) + 1);
+
+            List<Double> found = new ArrayList<>();
+            for (ProteinSequence point
+                    : vpTree.getPointsWithinRange(query, radius)) {
+                found.add(point.getDistanceTo(query));
+            }
+            Collections.sort(found);
+            assertEquals(expected, found);
+
+            /* The visitor can stop the walk early */
+            int[] visited = new int[1];
+            assertFalse(vpTree.getPointsWithinRange(query, radius,
+                    (point, distance) -> ++visited[0] < 10));
+            assertEquals(10, visited[0]);
+
+            List<ProteinSequence> bounded = vpTree.getNearestNeighbors(query,
+                    expected.size() + 10, radius);
+            assertEquals(expected.size(), bounded.size());
+        }
+    }
+
+    @Test
+    public void testBatchNearestNeighbors() {
+        Random random = new Random(17);
+        List<ProteinSequence> points = randomWords(random, 3000, 8);
+        VPTree<ProteinSequence> vpTree = new VPTree<>(points, 16);
+
+        /* Overlapping windows of one longer query, as StorageNode sees */
+        String sequence = TestSequences.randomWord(random, 60);
+        List<ProteinSequence> queries = new ArrayList<>();
+        for (int i = 0; i + 8 <= sequence.length(); ++i) {
+            queries.add(new ProteinSequence(sequence.substring(i, i + 8)));
+        }
+
+        List<List<ProteinSequence>> batch = vpTree.getNearestNeighbors(
+                queries, 5, Double.POSITIVE_INFINITY);
+        assertEquals(queries.size(), batch.size());
+        for (int i = 0; i < queries.size(); ++i) {
+            ProteinSequence query = queries.get(i);
+            List<ProteinSequence> single = vpTree.getNearestNeighbors(query, 5);
+            assertEquals(single.size(), batch.get(i).size());
+            for (int j = 0; j < single.size(); ++j) {
+                assertEquals(single.get(j).getDistanceTo(query),
+                        batch.get(i).get(j).getDistanceTo(query), 0.0);
+            }
+        }
+    }
+
+    /* Nodes above the cutoff must split exactly on their threshold */
+    private void checkPartitions(VPNode<ProteinSequence> node, int cutoff) {
+        if (node.isLeafNode() || node.size() <= cutoff) {
+            return;
+        }
+        Object[] closer = new Object[node.getCloserNode().size()];
+        node.getCloserNode().addPointsToArray(closer);
+        for (Object point : closer) {
+            assertTrue(node.getCenter().getDistanceTo((VPPoint) point)
+                    <= node.getThreshold());
+        }
+        Object[] farther = new Object[node.getFartherNode().size()];
+        node.getFartherNode().addPointsToArray(farther);
+        for (Object point : farther) {
+            assertTrue(node.getCenter().getDistanceTo((VPPoint) point)
+                    > node.getThreshold());
+        }
+        checkPartitions(node.getCloserNode(), cutoff);
+        checkPartitions(node.getFartherNode(), cutoff);
+    }
+
     private void testDOT() {
 
         VPTree<Sequence> vpTree = new VPTree<>(list, 3);
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.test;
+
+import mendel.vptree.BoundedPriorityQueue;
+import mendel.vptree.VPTree;
+import mendel.vptree.VantagePointStrategy;
+import mendel.vptree.types.ProteinSequence;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reports how many distance computations a nearest neighbor query performs
+ * under each {@link VantagePointStrategy}. Windows are read from a FASTA
+ * file if one is given, or generated at random otherwise. Queries are
+ * indexed windows with a few residues substituted.
+ *
+ * @author ctolooee
+ */
+public class VantagePointBenchmark {
+
+    private static final int WINDOW_SIZE = 30;
+    private static final int NEIGHBORS = 5;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 3) {
+            System.out.println("usage: mendel.test.VantagePointBenchmark " +
+                    "[points [queries [fasta-file]]]");
+            System.exit(1);
+        }
+        int points = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        Random random = new Random(42);
+        List<ProteinSequence> windows = args.length > 2
+                ? TestSequences.readWindows(args[2], points)
+                : TestSequences.randomWords(random, points, WINDOW_SIZE);
+        List<ProteinSequence> queryWindows = TestSequences.mutate(random,
+                windows, queries);
+
+        System.out.printf("%d windows, %d queries, k = %d%n",
+                windows.size(), queryWindows.size(), NEIGHBORS);
+        System.out.printf("%-12s %12s %18s %14s%n", "strategy", "build (ms)",
+                "distances/query", "query (us)");
+        for (VantagePointStrategy strategy : VantagePointStrategy.values()) {
+            long build = System.nanoTime();
+            VPTree<ProteinSequence> tree = new VPTree<>(windows,
+                    VPTree.DEFAULT_BIN_SIZE, strategy);
+            build = System.nanoTime() - build;
+
+            long distances = 0;
+            long time = System.nanoTime();
+            for (ProteinSequence query : queryWindows) {
+                BoundedPriorityQueue<ProteinSequence> results
+                        = new BoundedPriorityQueue<>(query, NEIGHBORS);
+                tree.getNearestNeighbors(query, results);
+                distances += results.getDistanceComputations();
+            }
+            time = System.nanoTime() - time;
+
+            System.out.printf("%-12s %12.1f %18.1f %14.1f%n", strategy,
+                    build / 1000000.0,
+                    (double) distances / queryWindows.size(),
+                    time / 1000.0 / queryWindows.size());
+        }
+    }
+}
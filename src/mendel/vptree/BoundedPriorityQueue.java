@@ -25,21 +25,36 @@
 
 package mendel.vptree;
 
+import java.util.AbstractQueue;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.NoSuchElementException;
 
 /**
+ * A bounded result set for k-nearest neighbor searches. Elements are kept in
+ * a binary max-heap ordered on their distance from the query point, so the
+ * head of the queue is always the furthest of the current results. Each
+ * element's distance is computed once, when it is offered, and cached in a
+ * primitive array alongside it; the heap is allocated up front and offering
+ * an element allocates nothing.
+ *
  * @param <E>
  * @author ctolooee
  */
-public class BoundedPriorityQueue<E extends VPPoint> extends PriorityQueue<E> {
+public class BoundedPriorityQueue<E extends VPPoint> extends AbstractQueue<E> {
 
     private VPPoint center;
     private int maxSize;
-    private double furthestDistance;
+    private double maxDistance;
+    private Object[] elements;
+    private double[] distances;
+    private int size;
+    private long distanceComputations;
+    private SearchBudget budget = SearchBudget.EXACT;
+    private int leavesVisited;
 
     /**
      * @param center  the query point to measure versus; i.e. the center of the
@@ -48,8 +63,32 @@ public class BoundedPriorityQueue<E extends VPPoint> extends PriorityQueue<E> {
      *                elements that can be stored in the queue
      */
     public BoundedPriorityQueue(VPPoint center, int maxSize) {
+        this(center, maxSize, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Creates a queue that additionally rejects any element further than
+     * {@code maxDistance} from the center. A search filling the queue can
+     * then prune everything outside that radius even before the queue is
+     * full.
+     *
+     * @param center      the query point to measure versus
+     * @param maxSize     the maximum capacity (upper bound) on the number of
+     *                    elements that can be stored in the queue
+     * @param maxDistance the largest distance (inclusive) from the center an
+     *                    element may have to be accepted
+     */
+    public BoundedPriorityQueue(VPPoint center, int maxSize,
+                                double maxDistance) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Queue capacity must be" +
+                    " greater than zero.");
+        }
         this.center = center;
         this.maxSize = maxSize;
+        this.maxDistance = maxDistance;
+        this.elements = new Object[maxSize];
+        this.distances = new double[maxSize];
     }
 
     /**
@@ -60,17 +99,51 @@ public class BoundedPriorityQueue<E extends VPPoint> extends PriorityQueue<E> {
      * @param element the element to be added to the queue
      * @return true if the element was added; false otherwise
      */
+    @Override
     public boolean add(E element) {
-        boolean added = false;
-        if (size() >= maxSize) {
-            if (this.getFurthestDistance() >= element.getDistanceTo(center)) {
-                this.poll();
-                added = super.add(element);
-            }
-        } else {
-            added = super.add(element);
+        return offer(element);
+    }
+
+    /**
+     * Computes the distance from the center to an element and offers it to
+     * the queue.
+     *
+     * @param element the element to be added to the queue
+     * @return true if the element was added; false otherwise
+     * @see #offer(VPPoint, double)
+     */
+    @Override
+    public boolean offer(E element) {
+        distanceComputations++;
+        return offer(element, element.getDistanceTo(center));
+    }
+
+    /**
+     * Offers an element whose distance from the center is already known.
+     * Elements beyond the queue's maximum distance are rejected. If the queue
+     * is full, the element replaces the current furthest element only if it
+     * is strictly closer.
+     *
+     * @param element  the element to be added to the queue
+     * @param distance the distance from the center to the element
+     * @return true if the element was added; false otherwise
+     */
+    public boolean offer(E element, double distance) {
+        if (element == null) {
+            throw new NullPointerException();
         }
-        return added;
+        if (distance > maxDistance) {
+            return false;
+        }
+        if (size < maxSize) {
+            siftUp(size++, element, distance);
+            return true;
+        }
+        if (distance < distances[0]) {
+            siftDown(0, element, distance);
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -82,15 +155,16 @@ public class BoundedPriorityQueue<E extends VPPoint> extends PriorityQueue<E> {
      *                   queue
      * @return true if an element is added; false otherwise
      */
+    @Override
     public boolean addAll(Collection<? extends E> collection) {
-        if (this.equals(collection)) {
+        if (collection == this) {
             throw new IllegalArgumentException("Cannot addAll of a " +
                     "queue to itself.");
         }
 
         boolean added = false;
         for (E e : collection) {
-            if (this.add(e)) {
+            if (offer(e)) {
                 added = true;
             }
         }
@@ -98,36 +172,254 @@ public class BoundedPriorityQueue<E extends VPPoint> extends PriorityQueue<E> {
     }
 
     /**
-     * Finds the distance of the element who is furthest from the center.
-     * Essentially this is the distance from the head of the queue to the
-     * center. This is functionally equivalent to
-     * <code>center.getDistanceTo(peek())</code>
+     * Removes and returns the furthest element from the center.
+     *
+     * @return the furthest element, or {@code null} if the queue is empty
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        if (size == 0) {
+            return null;
+        }
+        E head = (E) elements[0];
+        int last = --size;
+        Object moved = elements[last];
+        double movedDistance = distances[last];
+        elements[last] = null;
+        if (last > 0) {
+            siftDown(0, moved, movedDistance);
+        }
+        return head;
+    }
+
+    /**
+     * Returns, but does not remove, the furthest element from the center.
+     *
+     * @return the furthest element, or {@code null} if the queue is empty
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        return size == 0 ? null : (E) elements[0];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; ++i) {
+            elements[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue in no particular
+     * order. The iterator does not support removal.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return (E) elements[next++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Tests whether the queue holds as many elements as its capacity allows.
+     *
+     * @return {@code true} if the queue is full or {@code false} otherwise
+     */
+    public boolean isFull() {
+        return size >= maxSize;
+    }
+
+    /**
+     * Returns the maximum number of elements this queue will hold.
+     *
+     * @return the capacity of the queue
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the largest distance an element may have to be accepted.
+     *
+     * @return the maximum distance, or {@code Double.POSITIVE_INFINITY} if
+     * the queue is bounded by size alone
+     */
+    public double getMaxDistance() {
+        return maxDistance;
+    }
+
+    /**
+     * Returns the distance of the element that is furthest from the center,
+     * i.e. the element at the head of the queue. Until the queue is full any
+     * element within the maximum distance may still be added, so the bound
+     * is the maximum distance. The distance is the one cached when the
+     * element was offered; nothing is recomputed.
      *
      * @return the distance of the furthest element from the center in the
-     * queue or <code>Double.POSITIVE_INFINITY</code> if the queue is
-     * empty.
+     * queue or the maximum distance (by default
+     * <code>Double.POSITIVE_INFINITY</code>) if the queue is not yet full.
      */
     public double getFurthestDistance() {
-        double furthest;
-        if (super.isEmpty()) {
-            furthest = Double.POSITIVE_INFINITY;
-        } else {
-            furthest = this.center.getDistanceTo(this.peek());
-        }
-        return furthest;
+        return size < maxSize ? maxDistance : distances[0];
+    }
+
+    /**
+     * Limits the work of the search that fills this queue. By default the
+     * search is exact.
+     *
+     * @param budget the limits on the search
+     */
+    public void setBudget(SearchBudget budget) {
+        this.budget = budget;
+    }
+
+    public SearchBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the distance a subtree must be able to beat to be searched.
+     * This is the furthest distance, tightened by the budget's epsilon.
+     *
+     * @return the pruning distance of the search
+     */
+    public double getPruningDistance() {
+        double furthest = getFurthestDistance();
+        return budget.getEpsilon() == 0.0
+                ? furthest : furthest / (1.0 + budget.getEpsilon());
+    }
+
+    /**
+     * Tests whether the search has used up its budget of leaves or distance
+     * computations, in which case it should not backtrack any further.
+     *
+     * @return {@code true} if the search should stop backtracking
+     */
+    public boolean isExhausted() {
+        return leavesVisited >= budget.getMaxLeaves()
+                || distanceComputations >= budget.getMaxDistanceComputations();
+    }
+
+    /**
+     * Records that the search has offered the elements of a leaf.
+     */
+    public void countLeafVisit() {
+        leavesVisited++;
+    }
+
+    /**
+     * Returns the number of leaves visited by the search that filled this
+     * queue so far.
+     *
+     * @return the number of leaves visited
+     */
+    public int getLeavesVisited() {
+        return leavesVisited;
+    }
+
+    /**
+     * Records a distance computation made on behalf of this search outside
+     * of the queue, such as measuring the query against a node's center.
+     */
+    public void countDistanceComputation() {
+        distanceComputations++;
+    }
+
+    /**
+     * Returns the number of distances computed by the search that filled
+     * this queue so far.
+     *
+     * @return the number of distance computations
+     */
+    public long getDistanceComputations() {
+        return distanceComputations;
     }
 
     /**
      * Returns a list of the points in this result set sorted in order of
-     * increasing distance from the query point provided at construction time.
-     * The result set itself is not modified by calls to this method.
+     * increasing distance from the query point provided at construction time,
+     * using the distances cached when the points were offered. The result
+     * set itself is not modified by calls to this method.
      *
-     * @param queryPoint
+     * @param queryPoint the query point; kept for compatibility, the center
+     *                   given at construction time is always used
      * @return a sorted list of the points in this result set
      */
     public List<E> toSortedList(VPPoint queryPoint) {
-        ArrayList<E> sortedList = new ArrayList<>(this);
-        Collections.sort(sortedList, new VPNodeComparator(queryPoint));
+        BoundedPriorityQueue<E> copy = new BoundedPriorityQueue<>(center,
+                maxSize, maxDistance);
+        System.arraycopy(elements, 0, copy.elements, 0, size);
+        System.arraycopy(distances, 0, copy.distances, 0, size);
+        copy.size = size;
+
+        /* Draining the copy yields the furthest point first */
+        List<E> sortedList = new ArrayList<>(Collections.<E>nCopies(size,
+                null));
+        for (int i = size - 1; i >= 0; --i) {
+            sortedList.set(i, copy.poll());
+        }
         return sortedList;
     }
+
+    private void siftUp(int index, Object element, double distance) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (distances[parent] >= distance) {
+                break;
+            }
+            elements[index] = elements[parent];
+            distances[index] = distances[parent];
+            index = parent;
+        }
+        elements[index] = element;
+        distances[index] = distance;
+    }
+
+    private void siftDown(int index, Object element, double distance) {
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && distances[right] > distances[child]) {
+                child = right;
+            }
+            if (distance >= distances[child]) {
+                break;
+            }
+            elements[index] = elements[child];
+            distances[index] = distances[child];
+            index = child;
+        }
+        elements[index] = element;
+        distances[index] = distance;
+    }
 }
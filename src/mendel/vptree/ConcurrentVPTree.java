@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.vptree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * A vp-tree that may be searched and modified at the same time. Searches
+ * never block: published nodes are never modified in place. Instead, a
+ * writer builds a copy of the leaf it changes, or a whole new subtree if
+ * the copy has to be partitioned, and swaps it into the parent's child
+ * pointer in one volatile write. A search sees either the old or the new
+ * leaf, never one in the middle of a change.
+ * <p/>
+ * Writers are serialized per subtree by locking the parent of the leaf they
+ * replace (or the tree itself when the root is a leaf), so writes to
+ * different parts of the tree proceed in parallel. Leaves emptied by
+ * removals are left in place rather than pruned.
+ * <p/>
+ * {@link #rebalance()} may run alongside searches and writers. It builds
+ * the replacement of an unbalanced subtree without any locks, then briefly
+ * excludes writers while it replays onto the replacement the writes made to
+ * the subtree in the meantime and swaps the replacement in. The nodes it
+ * replaces are retired, so a writer that reached a leaf through one of them
+ * starts over.
+ *
+ * @see VPNode#copyWith(VPPoint)
+ */
+public class ConcurrentVPTree<E extends VPPoint> extends VPTree<E> {
+
+    /* Writers share the read lock; swapping in a rebuilt subtree or a new
+     * root takes the write lock */
+    private final ReadWriteLock structureLock = new ReentrantReadWriteLock();
+
+    /**
+     * Constructs a new, empty vp-tree with the specified node capacity.
+     *
+     * @param nodeCapacity the maximum number of points to store in a leaf node
+     */
+    public ConcurrentVPTree(int nodeCapacity) {
+        this(nodeCapacity, VantagePointStrategy.FIRST);
+    }
+
+    /**
+     * Constructs a new, empty vp-tree with the specified node capacity and
+     * vantage point selection policy.
+     *
+     * @param nodeCapacity the maximum number of points to store in a leaf node
+     * @param selector     the policy used to choose the vantage point of each
+     *                     node when it is partitioned
+     */
+    public ConcurrentVPTree(int nodeCapacity, VantagePointSelector selector) {
+        super(nodeCapacity, selector);
+    }
+
+    /**
+     * Constructs a new vp-tree that contains (and indexes) all of the points
+     * in the given collection, building it in parallel on the given fork/join
+     * pool.
+     *
+     * @param points       the points to use to populate this vp-tree
+     * @param nodeCapacity the maximum number of points to store in a leaf node
+     * @param pool         the pool to build the vp-tree on
+     * @param cutoff       the number of points below which subtrees are built
+     *                     sequentially
+     * @param selector     the policy used to choose the vantage point of each
+     *                     node when it is partitioned
+     */
+    public ConcurrentVPTree(Collection<? extends VPPoint> points,
+                            int nodeCapacity, ForkJoinPool pool, int cutoff,
+                            VantagePointSelector selector) {
+        super(points, nodeCapacity, pool, cutoff, selector);
+    }
+
+    /**
+     * Constructs a concurrent vp-tree that takes over the nodes of an
+     * existing vp-tree. The given tree must not be used afterwards.
+     *
+     * @param tree the vp-tree whose nodes to adopt
+     */
+    public ConcurrentVPTree(VPTree<E> tree) {
+        super(tree.getBinSize(), tree.getSelector());
+        if (tree.getRoot() != null) {
+            this.root = tree.getRoot();
+            this.count.set(tree.size());
+        }
+    }
+
+    @Override
+    public long add(E point) {
+        while (true) {
+            VPNode<E> parent = null;
+            VPNode<E> leaf = root;
+            while (!leaf.isLeafNode()) {
+                parent = leaf;
+                leaf = leaf.childFor(point);
+            }
+
+            Object lock = parent == null ? this : parent;
+            structureLock.readLock().lock();
+            try {
+                synchronized (lock) {
+                    if (!isCurrent(parent, leaf)) {
+                        /* Another writer replaced the leaf; find it again */
+                        continue;
+                    }
+                    swap(parent, leaf, leaf.copyWith(point));
+                    count.incrementAndGet();
+                    return leaf.getPrefix();
+                }
+            } finally {
+                structureLock.readLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> points) {
+        for (E point : points) {
+            add(point);
+        }
+        return !points.isEmpty();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        try {
+            @SuppressWarnings("unchecked")
+            E point = (E) o;
+            return remove(point);
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    private boolean remove(E point) {
+        while (true) {
+            VPNode<E> parent = null;
+            VPNode<E> leaf = root;
+            while (!leaf.isLeafNode()) {
+                parent = leaf;
+                leaf = leaf.childFor(point);
+            }
+
+            Object lock = parent == null ? this : parent;
+            structureLock.readLock().lock();
+            try {
+                synchronized (lock) {
+                    if (!isCurrent(parent, leaf)) {
+                        continue;
+                    }
+                    VPNode<E> replacement = leaf.copyWithout(point);
+                    if (replacement == null) {
+                        return false;
+                    }
+                    swap(parent, leaf, replacement);
+                    count.decrementAndGet();
+                    return true;
+                }
+            } finally {
+                structureLock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes all of the points that satisfy the given predicate in one pass,
+     * holding off writers until the changed leaves and merged subtrees have
+     * been swapped in. Searches carry on against the old nodes meanwhile.
+     */
+    @Override
+    public boolean removeIf(Predicate<? super E> filter) {
+        structureLock.writeLock().lock();
+        try {
+            return super.removeIf(filter);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all points from this vp-tree by swapping in an empty root.
+     */
+    @Override
+    public void clear() {
+        structureLock.writeLock().lock();
+        try {
+            VPNode<E> old = this.root;
+            this.root = new VPNode<>(binSize, 1, 0, selector);
+            this.count.set(0);
+            old.retire();
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Swaps in a rebuilt subtree, provided the subtree is still in the tree.
+     * Leaves of the subtree replaced by writers since the rebuild started
+     * are compared with the leaves the rebuild saw, and the points added or
+     * removed are added to or removed from the (still private) replacement
+     * first.
+     */
+    @Override
+    protected boolean replaceSubtree(VPNode<E> parent, VPNode<E> subtree,
+                                     List<VPNode<E>> leaves,
+                                     VPNode<E> replacement) {
+        structureLock.writeLock().lock();
+        try {
+            if (!isCurrent(parent, subtree)) {
+                return false;
+            }
+            List<VPNode<E>> current = new ArrayList<>(leaves.size());
+            subtree.gatherLeafNodes(current);
+
+            /* Leaves are copied on write, so only new leaves hold points
+              the rebuild did not see, and only replaced leaves hold points
+              that may since have been removed */
+            Set<VPNode<E>> before = Collections.newSetFromMap(
+                    new IdentityHashMap<>());
+            before.addAll(leaves);
+            Set<VPNode<E>> after = Collections.newSetFromMap(
+                    new IdentityHashMap<>());
+            after.addAll(current);
+            Map<E, Integer> changes = new IdentityHashMap<>();
+            for (VPNode<E> leaf : current) {
+                if (!before.contains(leaf)) {
+                    for (E point : leaf.getElements()) {
+                        changes.merge(point, 1, Integer::sum);
+                    }
+                }
+            }
+            for (VPNode<E> leaf : leaves) {
+                if (!after.contains(leaf)) {
+                    for (E point : leaf.getElements()) {
+                        changes.merge(point, -1, Integer::sum);
+                    }
+                }
+            }
+            for (Map.Entry<E, Integer> change : changes.entrySet()) {
+                for (int i = change.getValue(); i > 0; --i) {
+                    replacement.add(change.getKey());
+                }
+                for (int i = change.getValue(); i < 0; ++i) {
+                    ArrayDeque<VPNode<E>> path = new ArrayDeque<>();
+                    replacement.findNodeContainingPoint(change.getKey(), path);
+                    path.pop().remove(change.getKey());
+                }
+            }
+
+            swap(parent, subtree, replacement);
+            subtree.retire();
+            return true;
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns an array of the points in this vp-tree. Each leaf is copied as
+     * it was when it was reached, so the result is consistent per leaf even
+     * while writers are active.
+     *
+     * @return an array containing all of the points in this vp-tree
+     */
+    @Override
+    public Object[] toArray() {
+        List<VPNode<E>> leaves = new ArrayList<>();
+        root.gatherLeafNodes(leaves);
+        List<E> points = new ArrayList<>();
+        for (VPNode<E> leaf : leaves) {
+            points.addAll(leaf.getElements());
+        }
+        return points.toArray();
+    }
+
+    /* Must be called holding the lock of the parent, or of this tree when
+     * the leaf is the root, or the write lock */
+    private boolean isCurrent(VPNode<E> parent, VPNode<E> leaf) {
+        if (parent == null) {
+            return root == leaf;
+        }
+        return !parent.isRetired() && parent.hasChild(leaf);
+    }
+
+    private void swap(VPNode<E> parent, VPNode<E> leaf,
+                      VPNode<E> replacement) {
+        if (parent == null) {
+            root = replacement;
+        } else {
+            parent.replaceChild(leaf, replacement);
+        }
+    }
+}
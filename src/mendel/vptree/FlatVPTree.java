@@ -0,0 +1,519 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.vptree;
+
+import mendel.serialize.ByteSerializable;
+import mendel.serialize.SerializationInputStream;
+import mendel.serialize.SerializationOutputStream;
+import mendel.vptree.types.ProteinSequence;
+import mendel.vptree.types.Sequence;
+import mendel.vptree.types.SubMatrix;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An immutable, compacted form of a {@link VPTree} of
+ * {@link ProteinSequence} windows. Rather than a graph of {@link VPNode}
+ * objects, the nodes are laid out in pre-order across parallel arrays: a
+ * node's "closer" child immediately follows it and its "farther" child is
+ * found by index. Every node records the range of leaf points its subtree
+ * covers.
+ * <p/>
+ * No point objects are kept. The residues of the vantage points and the
+ * leaf points are stored encoded in one array and found by offset, the same
+ * layout a {@link MappedVPTree} file uses, and the window metadata is held
+ * in parallel arrays with the sequence IDs interned. Points are
+ * materialized as {@link ProteinSequence} objects only when they are
+ * returned as results.
+ *
+ * @author ctolooee
+ */
+public class FlatVPTree implements ByteSerializable {
+
+    /**
+     * Marks a node as a leaf in the {@code farther} array.
+     */
+    private static final int LEAF = -1;
+
+    /* Nodes */
+    private final int[] farther;
+    private final int[] lower;
+    private final int[] upper;
+    private final double[] thresholds;
+    private final int[] centerOffsets;
+    private final int[] centerLengths;
+
+    /* Leaf points */
+    private final int[] pointOffsets;
+    private final int[] pointLengths;
+    private final int[] sequencePositions;
+    private final int[] sequenceLengths;
+    private final int[] parentIDs;
+    private final int[] sequenceIDs;
+
+    private final String[] ids;
+    private final byte[] residues;
+
+    /**
+     * Constructs a flattened copy of the given vp-tree. The vp-tree is not
+     * modified and later changes to it are not reflected in the copy.
+     *
+     * @param tree the vp-tree to flatten
+     */
+    public FlatVPTree(VPTree<ProteinSequence> tree) {
+        VPNode<ProteinSequence> root = tree.getRoot();
+
+        /* Size the arrays first */
+        int nodes = 0;
+        int points = 0;
+        long residueBytes = 0;
+        ArrayDeque<VPNode<ProteinSequence>> stack = new ArrayDeque<>();
+        if (root != null) {
+            stack.push(root);
+        }
+        while (!stack.isEmpty()) {
+            VPNode<ProteinSequence> node = stack.pop();
+            nodes++;
+            if (node.isLeafNode()) {
+                for (ProteinSequence point : node.getElements()) {
+                    points++;
+                    residueBytes += point.getLength();
+                }
+            } else {
+                residueBytes += ((Sequence) node.getCenter()).getLength();
+                stack.push(node.getFartherNode());
+                stack.push(node.getCloserNode());
+            }
+        }
+        if (residueBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many residues to"
+                    + " flatten into one array.");
+        }
+
+        this.farther = new int[nodes];
+        this.lower = new int[nodes];
+        this.upper = new int[nodes];
+        this.thresholds = new double[nodes];
+        this.centerOffsets = new int[nodes];
+        this.centerLengths = new int[nodes];
+        this.pointOffsets = new int[points];
+        this.pointLengths = new int[points];
+        this.sequencePositions = new int[points];
+        this.sequenceLengths = new int[points];
+        this.parentIDs = new int[points];
+        this.sequenceIDs = new int[points];
+        this.residues = new byte[(int) residueBytes];
+
+        List<String> idList = new ArrayList<>();
+        flatten(root, idList);
+        this.ids = idList.toArray(new String[idList.size()]);
+    }
+
+    /**
+     * Constructs a flattened vp-tree that indexes all of the points in the
+     * given collection, with leaves of the default capacity.
+     *
+     * @param points the points to index
+     */
+    public FlatVPTree(Collection<ProteinSequence> points) {
+        this(points, VPTree.DEFAULT_BIN_SIZE);
+    }
+
+    /**
+     * Constructs a flattened vp-tree that indexes all of the points in the
+     * given collection.
+     *
+     * @param points       the points to index
+     * @param nodeCapacity the largest number of points any leaf should hold
+     */
+    public FlatVPTree(Collection<ProteinSequence> points, int nodeCapacity) {
+        this(new VPTree<ProteinSequence>(points, nodeCapacity));
+    }
+
+    /**
+     * Copies the nodes of the given tree into the arrays in pre-order. Each
+     * node is pushed along with the index of the node whose farther child
+     * it is (or -1), so that index can be filled in once the node is
+     * placed.
+     */
+    private void flatten(VPNode<ProteinSequence> root, List<String> idList) {
+        if (root == null) {
+            return;
+        }
+        Map<String, Integer> idIndex = new HashMap<>();
+        ArrayDeque<VPNode<ProteinSequence>> stack = new ArrayDeque<>();
+        ArrayDeque<Integer> parents = new ArrayDeque<>();
+        stack.push(root);
+        parents.push(-1);
+        int index = 0;
+        int point = 0;
+        int residueOffset = 0;
+        while (!stack.isEmpty()) {
+            VPNode<ProteinSequence> node = stack.pop();
+            int parent = parents.pop();
+            if (parent >= 0) {
+                farther[parent] = index;
+            }
+
+            lower[index] = point;
+            if (node.isLeafNode()) {
+                farther[index] = LEAF;
+                for (ProteinSequence element : node.getElements()) {
+                    pointOffsets[point] = residueOffset;
+                    pointLengths[point] = element.getLength();
+                    sequencePositions[point] = element.getSequencePos();
+                    sequenceLengths[point] = element.getSequenceLength();
+                    parentIDs[point] = element.getParentID();
+                    String id = element.getSequenceID();
+                    Integer idNumber = idIndex.get(id);
+                    if (idNumber == null) {
+                        idNumber = idList.size();
+                        idList.add(id);
+                        idIndex.put(id, idNumber);
+                    }
+                    sequenceIDs[point] = idNumber;
+                    residueOffset = copyResidues(element, residueOffset);
+                    point++;
+                }
+                upper[index] = point;
+            } else {
+                Sequence center = (Sequence) node.getCenter();
+                thresholds[index] = node.getThreshold();
+                centerOffsets[index] = residueOffset;
+                centerLengths[index] = center.getLength();
+                residueOffset = copyResidues(center, residueOffset);
+
+                stack.push(node.getFartherNode());
+                parents.push(index);
+                stack.push(node.getCloserNode());
+                parents.push(-1);
+            }
+            index++;
+        }
+
+        /* A subtree's points end where its farther child's do, and farther
+          children always follow their parents */
+        for (int i = farther.length - 1; i >= 0; --i) {
+            if (farther[i] != LEAF) {
+                upper[i] = upper[farther[i]];
+            }
+        }
+    }
+
+    private int copyResidues(Sequence sequence, int offset) {
+        String word = sequence.getWord();
+        byte[] encoded = Sequence.encode(word, 0, word.length());
+        System.arraycopy(encoded, 0, residues, offset, encoded.length);
+        return offset + encoded.length;
+    }
+
+    /**
+     * Encodes the residues of a query point for comparison against the
+     * residues stored in a flattened or mapped vp-tree.
+     */
+    static byte[] encode(VPPoint queryPoint) {
+        String word = ((Sequence) queryPoint).getWord();
+        return Sequence.encode(word, 0, word.length());
+    }
+
+    /**
+     * Returns the number of points stored in this vp-tree.
+     *
+     * @return the number of points stored in this vp-tree
+     */
+    public int size() {
+        return pointOffsets.length;
+    }
+
+    /**
+     * Tests whether this vp-tree is empty.
+     *
+     * @return {@code true} if this vp-tree contains no points
+     */
+    public boolean isEmpty() {
+        return pointOffsets.length == 0;
+    }
+
+    /**
+     * Returns the number of nodes (internal and leaf) in this vp-tree.
+     *
+     * @return the number of nodes in this vp-tree
+     */
+    public int getNodeCount() {
+        return farther.length;
+    }
+
+    /**
+     * Materializes all of the points in this vp-tree, in leaf order.
+     *
+     * @return a list of the points in this vp-tree
+     */
+    public List<ProteinSequence> getPoints() {
+        List<ProteinSequence> list = new ArrayList<>(size());
+        for (int i = 0; i < size(); ++i) {
+            list.add(getPoint(i));
+        }
+        return list;
+    }
+
+    /* Package-private views of the layout for writing it elsewhere, such
+     * as to a {@link MappedVPTree} file. */
+
+    boolean isLeaf(int node) {
+        return farther[node] == LEAF;
+    }
+
+    int getFarther(int node) {
+        return farther[node];
+    }
+
+    int getLower(int node) {
+        return lower[node];
+    }
+
+    int getUpper(int node) {
+        return upper[node];
+    }
+
+    double getThreshold(int node) {
+        return thresholds[node];
+    }
+
+    int getCenterOffset(int node) {
+        return centerOffsets[node];
+    }
+
+    int getCenterLength(int node) {
+        return centerLengths[node];
+    }
+
+    int getPointOffset(int point) {
+        return pointOffsets[point];
+    }
+
+    int getPointLength(int point) {
+        return pointLengths[point];
+    }
+
+    int getSequencePos(int point) {
+        return sequencePositions[point];
+    }
+
+    int getSequenceLength(int point) {
+        return sequenceLengths[point];
+    }
+
+    int getParentID(int point) {
+        return parentIDs[point];
+    }
+
+    int getSequenceIDIndex(int point) {
+        return sequenceIDs[point];
+    }
+
+    String[] getSequenceIDs() {
+        return ids;
+    }
+
+    byte[] getResidues() {
+        return residues;
+    }
+
+    /**
+     * Materializes the point at the given index as a ProteinSequence.
+     */
+    ProteinSequence getPoint(int index) {
+        ProteinSequence point = new ProteinSequence(new String(residues,
+                pointOffsets[index], pointLengths[index],
+                StandardCharsets.US_ASCII));
+        point.setSequencePos(sequencePositions[index]);
+        point.setSequenceLength(sequenceLengths[index]);
+        point.setParentID(parentIDs[index]);
+        point.setSequenceID(ids[sequenceIDs[index]]);
+        return point;
+    }
+
+    public List<ProteinSequence> getNearestNeighbors(VPPoint queryPoint,
+                                                     int maxResults) {
+        NeighborHeap results = new NeighborHeap(Math.max(0, maxResults),
+                Double.POSITIVE_INFINITY, SearchBudget.EXACT);
+        if (!isEmpty() && maxResults > 0) {
+            getNearestNeighbors(encode(queryPoint), results);
+        }
+
+        int[] order = results.sortedPoints();
+        List<ProteinSequence> list = new ArrayList<>(order.length);
+        for (int point : order) {
+            list.add(getPoint(point));
+        }
+        return list;
+    }
+
+    public ProteinSequence getNearestNeighbor(VPPoint queryPoint) {
+        List<ProteinSequence> result = getNearestNeighbors(queryPoint, 1);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Searches this vp-tree best-first, the same way as
+     * {@link VPNode#getNearestNeighbors(VPPoint, BoundedPriorityQueue)}:
+     * nodes wait in a priority queue keyed by the lower bound on the
+     * distance from the query to any point they cover.
+     */
+    private void getNearestNeighbors(byte[] query, NeighborHeap results) {
+        PriorityQueue<PendingNode> pending = new PriorityQueue<>();
+        pending.add(new PendingNode(0, 0.0));
+
+        while (!pending.isEmpty()) {
+            PendingNode next = pending.poll();
+            if (next.bound > results.getPruningDistance()) {
+                break;
+            }
+            /* An approximate search always reaches its first leaf */
+            if (results.getLeavesVisited() > 0 && results.isExhausted()) {
+                break;
+            }
+
+            int node = next.node;
+            if (farther[node] == LEAF) {
+                for (int i = lower[node]; i < upper[node]; ++i) {
+                    results.offer(i, SubMatrix.getDistance(residues,
+                            pointOffsets[i], pointLengths[i], query));
+                }
+                results.countLeafVisit();
+                continue;
+            }
+
+            double distanceToCenter = SubMatrix.getDistance(residues,
+                    centerOffsets[node], centerLengths[node], query);
+            results.countDistanceComputation();
+            double threshold = thresholds[node];
+            pending.add(new PendingNode(node + 1, Math.max(next.bound,
+                    distanceToCenter - threshold)));
+            pending.add(new PendingNode(farther[node], Math.max(next.bound,
+                    threshold - distanceToCenter)));
+        }
+    }
+
+    /**
+     * A node index waiting to be searched, along with a lower bound on the
+     * distance from the query to any of its points.
+     */
+    static final class PendingNode implements Comparable<PendingNode> {
+        final int node;
+        final double bound;
+
+        PendingNode(int node, double bound) {
+            this.node = node;
+            this.bound = bound;
+        }
+
+        @Override
+        public int compareTo(PendingNode other) {
+            return Double.compare(bound, other.bound);
+        }
+    }
+
+    @Override
+    public void serialize(SerializationOutputStream out) throws IOException {
+        out.writeInt(farther.length);
+        for (int i = 0; i < farther.length; ++i) {
+            out.writeInt(farther[i]);
+            out.writeInt(lower[i]);
+            out.writeInt(upper[i]);
+            if (farther[i] != LEAF) {
+                out.writeDouble(thresholds[i]);
+                out.writeInt(centerOffsets[i]);
+                out.writeInt(centerLengths[i]);
+            }
+        }
+        out.writeInt(pointOffsets.length);
+        for (int i = 0; i < pointOffsets.length; ++i) {
+            out.writeInt(pointOffsets[i]);
+            out.writeInt(pointLengths[i]);
+            out.writeInt(sequencePositions[i]);
+            out.writeInt(sequenceLengths[i]);
+            out.writeInt(parentIDs[i]);
+            out.writeInt(sequenceIDs[i]);
+        }
+        out.writeInt(ids.length);
+        for (String id : ids) {
+            out.writeString(id);
+        }
+        out.writeField(residues);
+    }
+
+    @Deserialize
+    public FlatVPTree(SerializationInputStream in) throws IOException {
+        int nodes = in.readInt();
+        this.farther = new int[nodes];
+        this.lower = new int[nodes];
+        this.upper = new int[nodes];
+        this.thresholds = new double[nodes];
+        this.centerOffsets = new int[nodes];
+        this.centerLengths = new int[nodes];
+        for (int i = 0; i < nodes; ++i) {
+            farther[i] = in.readInt();
+            lower[i] = in.readInt();
+            upper[i] = in.readInt();
+            if (farther[i] != LEAF) {
+                thresholds[i] = in.readDouble();
+                centerOffsets[i] = in.readInt();
+                centerLengths[i] = in.readInt();
+            }
+        }
+
+        int points = in.readInt();
+        this.pointOffsets = new int[points];
+        this.pointLengths = new int[points];
+        this.sequencePositions = new int[points];
+        this.sequenceLengths = new int[points];
+        this.parentIDs = new int[points];
+        this.sequenceIDs = new int[points];
+        for (int i = 0; i < points; ++i) {
+            pointOffsets[i] = in.readInt();
+            pointLengths[i] = in.readInt();
+            sequencePositions[i] = in.readInt();
+            sequenceLengths[i] = in.readInt();
+            parentIDs[i] = in.readInt();
+            sequenceIDs[i] = in.readInt();
+        }
+
+        this.ids = new String[in.readInt()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = in.readString();
+        }
+        this.residues = in.readField();
+    }
+}
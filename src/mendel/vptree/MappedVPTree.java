@@ -0,0 +1,623 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.vptree;
+
+import mendel.vptree.types.ProteinSequence;
+import mendel.vptree.types.SubMatrix;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A read-only vp-tree of {@link ProteinSequence} windows that is searched in
+ * place from a memory-mapped file. Opening the index only maps the file; no
+ * nodes or points are rebuilt on the heap, so the index is not bound by the
+ * heap size and JVMs on the same host share its pages through the page
+ * cache. Points are materialized as {@link ProteinSequence} objects only
+ * when they are returned as results.
+ * <p/>
+ * The file holds the pre-order layout of a {@link FlatVPTree}. All values
+ * are big-endian:
+ * <pre>
+ * header:   magic, version, node count, point count, ID count,
+ *           ID heap offset, residue heap offset, (reserved)   8 ints
+ * nodes:    farther child, lower, upper, center residue offset,
+ *           center length (ints), threshold (double)          28 bytes each
+ * points:   residue offset, length, sequence position,
+ *           sequence length, parent ID, sequence ID index     24 bytes each
+ * IDs:      (ID count + 1) offsets into the ID heap
+ * ID heap:  UTF-8 sequence IDs
+ * residues: encoded residues of the centers and points
+ * </pre>
+ * A single mapping is limited to 2GB, so index files are as well.
+ *
+ * @author ctolooee
+ */
+public class MappedVPTree {
+
+    private static final int MAGIC = 0x4D565054; /* "MVPT" */
+    private static final int VERSION = 1;
+    private static final int LEAF = -1;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int NODE_SIZE = 28;
+    private static final int POINT_SIZE = 24;
+
+    private final MappedByteBuffer buffer;
+    private final int nodeCount;
+    private final int pointCount;
+    private final int idCount;
+    private final int pointTable;
+    private final int idTable;
+    private final int idHeap;
+    private final int residueHeap;
+
+    private MappedVPTree(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a mapped vp-tree index.");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported mapped vp-tree version: "
+                    + buffer.getInt(4));
+        }
+        this.nodeCount = buffer.getInt(8);
+        this.pointCount = buffer.getInt(12);
+        this.idCount = buffer.getInt(16);
+        this.idHeap = buffer.getInt(20);
+        this.residueHeap = buffer.getInt(24);
+        this.pointTable = HEADER_SIZE + nodeCount * NODE_SIZE;
+        this.idTable = pointTable + pointCount * POINT_SIZE;
+    }
+
+    /**
+     * Maps an index file written by {@link #write(FlatVPTree, File)}.
+     *
+     * @param file the index file
+     * @return the mapped vp-tree
+     * @throws IOException if the file cannot be mapped or is not an index
+     */
+    public static MappedVPTree open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            return new MappedVPTree(channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes a vp-tree in the mapped index format.
+     *
+     * @param tree the vp-tree to write
+     * @param file the file to write the index to
+     * @throws IOException if the file cannot be written or the index would
+     *                     exceed 2GB
+     */
+    public static void write(VPTree<ProteinSequence> tree, File file)
+            throws IOException {
+        write(new FlatVPTree(tree), file);
+    }
+
+    /**
+     * Writes a flattened vp-tree in the mapped index format.
+     *
+     * @param tree the vp-tree to write
+     * @param file the file to write the index to
+     * @throws IOException if the file cannot be written or the index would
+     *                     exceed 2GB
+     */
+    public static void write(FlatVPTree tree, File file) throws IOException {
+        int nodes = tree.getNodeCount();
+        int points = tree.size();
+
+        /* The sequence IDs are already interned by the flattened tree */
+        String[] idStrings = tree.getSequenceIDs();
+        byte[][] ids = new byte[idStrings.length][];
+        long idBytes = 0;
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = idStrings[i].getBytes(StandardCharsets.UTF_8);
+            idBytes += ids[i].length;
+        }
+
+        byte[] residues = tree.getResidues();
+        long idHeap = HEADER_SIZE + (long) nodes * NODE_SIZE
+                + (long) points * POINT_SIZE + (ids.length + 1) * 4L;
+        long residueHeap = idHeap + idBytes;
+        if (residueHeap + residues.length > Integer.MAX_VALUE) {
+            throw new IOException("Mapped vp-tree index would exceed 2GB.");
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nodes);
+            out.writeInt(points);
+            out.writeInt(ids.length);
+            out.writeInt((int) idHeap);
+            out.writeInt((int) residueHeap);
+            out.writeInt(0);
+
+            for (int i = 0; i < nodes; ++i) {
+                boolean leaf = tree.isLeaf(i);
+                out.writeInt(leaf ? LEAF : tree.getFarther(i));
+                out.writeInt(tree.getLower(i));
+                out.writeInt(tree.getUpper(i));
+                out.writeInt(leaf ? 0 : tree.getCenterOffset(i));
+                out.writeInt(leaf ? 0 : tree.getCenterLength(i));
+                out.writeDouble(leaf ? 0 : tree.getThreshold(i));
+            }
+            for (int i = 0; i < points; ++i) {
+                out.writeInt(tree.getPointOffset(i));
+                out.writeInt(tree.getPointLength(i));
+                out.writeInt(tree.getSequencePos(i));
+                out.writeInt(tree.getSequenceLength(i));
+                out.writeInt(tree.getParentID(i));
+                out.writeInt(tree.getSequenceIDIndex(i));
+            }
+
+            int idOffset = 0;
+            for (byte[] id : ids) {
+                out.writeInt(idOffset);
+                idOffset += id.length;
+            }
+            out.writeInt(idOffset);
+            for (byte[] id : ids) {
+                out.write(id);
+            }
+
+            /* The residue heap is the flattened tree's residue array */
+            out.write(residues);
+        }
+    }
+
+    /**
+     * Returns the number of points stored in this vp-tree.
+     *
+     * @return the number of points stored in this vp-tree
+     */
+    public int size() {
+        return pointCount;
+    }
+
+    /**
+     * Tests whether this vp-tree is empty.
+     *
+     * @return {@code true} if this vp-tree contains no points
+     */
+    public boolean isEmpty() {
+        return pointCount == 0;
+    }
+
+    /**
+     * Materializes every point in this vp-tree, in leaf order. This is
+     * intended for rebuilding the index.
+     *
+     * @return a list of all the points in this vp-tree
+     */
+    public List<ProteinSequence> getPoints() {
+        List<ProteinSequence> list = new ArrayList<>(pointCount);
+        for (int i = 0; i < pointCount; ++i) {
+            list.add(getPoint(i));
+        }
+        return list;
+    }
+
+    public List<ProteinSequence> getNearestNeighbors(VPPoint queryPoint,
+                                                     int maxResults) {
+        return getNearestNeighbors(queryPoint, maxResults,
+                Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Finds up to {@code maxResults} nearest neighbors of the query point
+     * that are no further than {@code maxDistance} from it.
+     *
+     * @see VPTree#getNearestNeighbors(VPPoint, int, double)
+     */
+    public List<ProteinSequence> getNearestNeighbors(VPPoint queryPoint,
+                                                     int maxResults,
+                                                     double maxDistance) {
+        byte[] query = FlatVPTree.encode(queryPoint);
+
+        NeighborHeap results = new NeighborHeap(Math.max(0, maxResults),
+                maxDistance, SearchBudget.EXACT);
+        if (!isEmpty() && maxResults > 0) {
+            getNearestNeighbors(query, results);
+        }
+
+        int[] order = results.sortedPoints();
+        List<ProteinSequence> list = new ArrayList<>(order.length);
+        for (int point : order) {
+            list.add(getPoint(point));
+        }
+        return list;
+    }
+
+    /**
+     * Finds the nearest neighbors of each of several query points in a
+     * single walk of the tree, giving each query its own maximum distance.
+     *
+     * @param queryPoints  the points for which to find nearby neighbors
+     * @param maxResults   the maximum number of neighbors of each query
+     * @param maxDistances the largest distance (inclusive) of a neighbor
+     *                     from each query point, by index
+     * @return for each query point, in order, its neighbors in order of
+     * increasing distance
+     * @see VPTree#getNearestNeighbors(VPPoint[], BoundedPriorityQueue[])
+     */
+    public List<List<ProteinSequence>> getNearestNeighbors(
+            List<? extends VPPoint> queryPoints, int maxResults,
+            double[] maxDistances) {
+        return getNearestNeighbors(queryPoints, maxResults, maxDistances,
+                SearchBudget.EXACT);
+    }
+
+    /**
+     * Finds the nearest neighbors of each of several query points in a
+     * single walk of the tree, limiting the search of each query to the
+     * given budget.
+     *
+     * @see #getNearestNeighbors(List, int, double[])
+     * @see SearchBudget
+     */
+    public List<List<ProteinSequence>> getNearestNeighbors(
+            List<? extends VPPoint> queryPoints, int maxResults,
+            double[] maxDistances, SearchBudget budget) {
+        byte[][] queries = new byte[queryPoints.size()][];
+        NeighborHeap[] results = new NeighborHeap[queries.length];
+        int[] active = new int[queries.length];
+        for (int i = 0; i < queries.length; ++i) {
+            queries[i] = FlatVPTree.encode(queryPoints.get(i));
+            results[i] = new NeighborHeap(Math.max(0, maxResults),
+                    maxDistances[i], budget);
+            active[i] = i;
+        }
+        if (!isEmpty() && maxResults > 0) {
+            getNearestNeighbors(queries, results, active, active.length);
+        }
+
+        List<List<ProteinSequence>> neighbors = new ArrayList<>(
+                queries.length);
+        for (NeighborHeap result : results) {
+            int[] order = result.sortedPoints();
+            List<ProteinSequence> list = new ArrayList<>(order.length);
+            for (int point : order) {
+                list.add(getPoint(point));
+            }
+            neighbors.add(list);
+        }
+        return neighbors;
+    }
+
+    /**
+     * Searches for the neighbors of a batch of queries in a single walk, in
+     * the same order as
+     * {@link VPTree#getNearestNeighbors(VPPoint[], BoundedPriorityQueue[])}:
+     * at each node the closer-first queries descend first, then the farther
+     * child is searched, then the queries returning to the closer child. The
+     * walk is driven by an explicit stack, so the depth of the tree is not
+     * limited by the call stack.
+     */
+    private void getNearestNeighbors(byte[][] queries, NeighborHeap[] results,
+                                     int[] active, int count) {
+        ArrayDeque<BatchVisit> stack = new ArrayDeque<>();
+        stack.push(new BatchVisit(0, active, count));
+        while (!stack.isEmpty()) {
+            BatchVisit visit = stack.peek();
+            switch (visit.step++) {
+                case 0: {
+                    if (visit.count == 0) {
+                        stack.pop();
+                        break;
+                    }
+                    int record = HEADER_SIZE + visit.node * NODE_SIZE;
+                    visit.farther = buffer.getInt(record);
+                    if (visit.farther == LEAF) {
+                        offerToAll(record, queries, results, visit.active,
+                                visit.count);
+                        stack.pop();
+                        break;
+                    }
+                    visit.split(record, queries, results);
+                    stack.push(new BatchVisit(visit.node + 1, visit.order,
+                            visit.nCloser));
+                    break;
+                }
+
+                case 1: {
+                    int[] farther = new int[visit.count];
+                    int nFarther = 0;
+                    for (int j = visit.nCloser; j < visit.count; ++j) {
+                        farther[nFarther++] = visit.order[j];
+                    }
+                    for (int j = 0; j < visit.nCloser; ++j) {
+                        int q = visit.order[j];
+                        if (!results[q].isExhausted()
+                                && results[q].getPruningDistance()
+                                > visit.threshold - visit.distances[j]) {
+                            farther[nFarther++] = q;
+                        }
+                    }
+                    stack.push(new BatchVisit(visit.farther, farther,
+                            nFarther));
+                    break;
+                }
+
+                case 2: {
+                    /* The closer child is done with the front of the
+                      order */
+                    int nReturning = 0;
+                    for (int j = visit.nCloser; j < visit.count; ++j) {
+                        int q = visit.order[j];
+                        if (!results[q].isExhausted()
+                                && visit.distances[j] - visit.threshold
+                                <= results[q].getPruningDistance()) {
+                            visit.order[nReturning++] = q;
+                        }
+                    }
+                    stack.push(new BatchVisit(visit.node + 1, visit.order,
+                            nReturning));
+                    break;
+                }
+
+                default:
+                    stack.pop();
+            }
+        }
+    }
+
+    /**
+     * Offers the points of the leaf with the given record to each of the
+     * given queries.
+     */
+    private void offerToAll(int record, byte[][] queries,
+                            NeighborHeap[] results, int[] active, int count) {
+        int upper = buffer.getInt(record + 8);
+        for (int i = buffer.getInt(record + 4); i < upper; ++i) {
+            int point = pointTable + i * POINT_SIZE;
+            int offset = residueHeap + buffer.getInt(point);
+            int length = buffer.getInt(point + 4);
+            for (int j = 0; j < count; ++j) {
+                int q = active[j];
+                results[q].offer(i, SubMatrix.getDistance(buffer, offset,
+                        length, queries[q]));
+            }
+        }
+        for (int j = 0; j < count; ++j) {
+            results[active[j]].countLeafVisit();
+        }
+    }
+
+    /**
+     * The state of a batched search at one node: which queries reached it,
+     * how they split at the threshold, and how far through its children the
+     * search has got.
+     */
+    private final class BatchVisit {
+        final int node;
+        final int[] active;
+        final int count;
+        int step;
+
+        int farther;
+        double threshold;
+
+        /* The queries that search the closer child first, followed by
+          those that search the farther child first, and the distance from
+          each to the center */
+        int[] order;
+        double[] distances;
+        int nCloser;
+
+        BatchVisit(int node, int[] active, int count) {
+            this.node = node;
+            this.active = active;
+            this.count = count;
+        }
+
+        void split(int record, byte[][] queries, NeighborHeap[] results) {
+            int offset = residueHeap + buffer.getInt(record + 12);
+            int length = buffer.getInt(record + 16);
+            threshold = buffer.getDouble(record + 20);
+            order = new int[count];
+            distances = new double[count];
+            int next = count;
+            for (int j = 0; j < count; ++j) {
+                int q = active[j];
+                double distance = SubMatrix.getDistance(buffer, offset,
+                        length, queries[q]);
+                results[q].countDistanceComputation();
+                int slot = distance <= threshold ? nCloser++ : --next;
+                order[slot] = q;
+                distances[slot] = distance;
+            }
+        }
+    }
+
+    public ProteinSequence getNearestNeighbor(VPPoint queryPoint) {
+        List<ProteinSequence> result = getNearestNeighbors(queryPoint, 1);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Returns every point within the given distance of the query point. The
+     * order of the points is not defined.
+     *
+     * @see VPTree#getPointsWithinRange(VPPoint, double)
+     */
+    public List<ProteinSequence> getPointsWithinRange(VPPoint queryPoint,
+                                                      double radius) {
+        List<ProteinSequence> points = new ArrayList<>();
+        getPointsWithinRange(queryPoint, radius,
+                (point, distance) -> points.add(point));
+        return points;
+    }
+
+    /**
+     * Passes every point within the given distance of the query point to the
+     * visitor as it is found. Only the points within range are materialized.
+     *
+     * @see VPTree#getPointsWithinRange(VPPoint, double, PointVisitor)
+     */
+    public boolean getPointsWithinRange(VPPoint queryPoint, double radius,
+                                        PointVisitor<ProteinSequence> visitor) {
+        return isEmpty() || getPointsWithinRange(
+                FlatVPTree.encode(queryPoint), radius, visitor);
+    }
+
+    /**
+     * Visits the points within range best-first, so the nearer subtrees are
+     * passed to the visitor before the further ones.
+     */
+    private boolean getPointsWithinRange(byte[] query, double radius,
+                                         PointVisitor<ProteinSequence> visitor) {
+        PriorityQueue<FlatVPTree.PendingNode> pending = new PriorityQueue<>();
+        pending.add(new FlatVPTree.PendingNode(0, 0.0));
+
+        while (!pending.isEmpty()) {
+            FlatVPTree.PendingNode next = pending.poll();
+            int record = HEADER_SIZE + next.node * NODE_SIZE;
+            int farther = buffer.getInt(record);
+            if (farther == LEAF) {
+                int upper = buffer.getInt(record + 8);
+                for (int i = buffer.getInt(record + 4); i < upper; ++i) {
+                    int point = pointTable + i * POINT_SIZE;
+                    double distance = SubMatrix.getDistance(buffer,
+                            residueHeap + buffer.getInt(point),
+                            buffer.getInt(point + 4), query);
+                    if (distance <= radius
+                            && !visitor.visit(getPoint(i), distance)) {
+                        return false;
+                    }
+                }
+                continue;
+            }
+
+            double distanceToCenter = SubMatrix.getDistance(buffer,
+                    residueHeap + buffer.getInt(record + 12),
+                    buffer.getInt(record + 16), query);
+            double threshold = buffer.getDouble(record + 20);
+            if (distanceToCenter - radius <= threshold) {
+                pending.add(new FlatVPTree.PendingNode(next.node + 1,
+                        Math.max(next.bound, distanceToCenter - threshold)));
+            }
+            if (distanceToCenter + radius > threshold) {
+                pending.add(new FlatVPTree.PendingNode(farther,
+                        Math.max(next.bound, threshold - distanceToCenter)));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Searches this vp-tree best-first, the same way as
+     * {@link VPNode#getNearestNeighbors(VPPoint, BoundedPriorityQueue)}:
+     * nodes wait in a priority queue keyed by the lower bound on the
+     * distance from the query to any point they cover, and the search ends
+     * as soon as no pending node can improve on the results.
+     */
+    private void getNearestNeighbors(byte[] query, NeighborHeap results) {
+        PriorityQueue<FlatVPTree.PendingNode> pending = new PriorityQueue<>();
+        pending.add(new FlatVPTree.PendingNode(0, 0.0));
+
+        while (!pending.isEmpty()) {
+            FlatVPTree.PendingNode next = pending.poll();
+            if (next.bound > results.getPruningDistance()) {
+                break;
+            }
+            /* An approximate search always reaches its first leaf */
+            if (results.getLeavesVisited() > 0 && results.isExhausted()) {
+                break;
+            }
+
+            int record = HEADER_SIZE + next.node * NODE_SIZE;
+            int farther = buffer.getInt(record);
+            if (farther == LEAF) {
+                int upper = buffer.getInt(record + 8);
+                for (int i = buffer.getInt(record + 4); i < upper; ++i) {
+                    int point = pointTable + i * POINT_SIZE;
+                    results.offer(i, SubMatrix.getDistance(buffer,
+                            residueHeap + buffer.getInt(point),
+                            buffer.getInt(point + 4), query));
+                }
+                results.countLeafVisit();
+                continue;
+            }
+
+            double distanceToCenter = SubMatrix.getDistance(buffer,
+                    residueHeap + buffer.getInt(record + 12),
+                    buffer.getInt(record + 16), query);
+            results.countDistanceComputation();
+            double threshold = buffer.getDouble(record + 20);
+            pending.add(new FlatVPTree.PendingNode(next.node + 1,
+                    Math.max(next.bound, distanceToCenter - threshold)));
+            pending.add(new FlatVPTree.PendingNode(farther,
+                    Math.max(next.bound, threshold - distanceToCenter)));
+        }
+    }
+
+    /**
+     * Materializes the point at the given index as a ProteinSequence.
+     */
+    private ProteinSequence getPoint(int index) {
+        int record = pointTable + index * POINT_SIZE;
+        int offset = residueHeap + buffer.getInt(record);
+        byte[] residues = new byte[buffer.getInt(record + 4)];
+        for (int i = 0; i < residues.length; ++i) {
+            residues[i] = buffer.get(offset + i);
+        }
+
+        ProteinSequence point = new ProteinSequence(
+                new String(residues, StandardCharsets.US_ASCII));
+        point.setSequencePos(buffer.getInt(record + 8));
+        point.setSequenceLength(buffer.getInt(record + 12));
+        point.setParentID(buffer.getInt(record + 16));
+        point.setSequenceID(getSequenceID(buffer.getInt(record + 20)));
+        return point;
+    }
+
+    private String getSequenceID(int index) {
+        int start = buffer.getInt(idTable + index * 4);
+        int end = buffer.getInt(idTable + (index + 1) * 4);
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = buffer.get(idHeap + start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
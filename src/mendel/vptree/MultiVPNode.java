@@ -0,0 +1,471 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.vptree;
+
+import mendel.vptree.types.ProteinSequence;
+
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * {@code MultiVPNodes} are the nodes of an m-ary vantage point tree
+ * ({@link MultiVPTree}). A non-leaf node splits its elements into up to
+ * {@code fanout} concentric shells around its center: child {@code i} holds
+ * the elements whose distance from the center is greater than
+ * {@code boundaries[i - 1]} and at most {@code boundaries[i]}, and the last
+ * child holds everything beyond the last boundary. Leaf nodes have no
+ * children and store their elements directly.
+ * <p/>
+ * The prefix of child {@code i} is {@code prefix * fanout + i}, so prefixes
+ * identify a path through the tree the same way the binary prefixes of
+ * {@link VPNode} do.
+ */
+public class MultiVPNode<T extends VPPoint> {
+    private VPPoint center;
+    private double[] boundaries;
+    private List<MultiVPNode<T>> children;
+
+    private ArrayList<T> elements;
+    private final int binSize;
+    private final int fanout;
+    private final VantagePointSelector selector;
+
+    private final long prefix;
+    private final int depth;
+
+    /**
+     * Constructs a new, empty leaf node.
+     *
+     * @param binSize  the largest number of elements this node should hold
+     * @param fanout   the largest number of children this node may split into
+     * @param selector the vantage point selection policy for this node and
+     *                 its children
+     */
+    public MultiVPNode(int binSize, int fanout, long prefix, int depth,
+                       VantagePointSelector selector) {
+        this.binSize = binSize;
+        this.fanout = fanout;
+        this.selector = selector;
+        this.prefix = prefix;
+        this.depth = depth;
+        this.elements = new ArrayList<>(0);
+    }
+
+    /**
+     * Constructs a new node that contains a subset of the given array of
+     * {@code VPPoints}. If the subset of elements is larger than the given bin
+     * capacity, child nodes will be created recursively.
+     *
+     * @param elements the array of elements from which to build this node
+     * @param lower    the starting index (inclusive) of the subset of
+     *                 the array from which to build this node
+     * @param upper    the end index (exclusive) of the subset of the array from
+     *                 which to build this node
+     * @param binSize  the largest number of elements this node should hold
+     * @param fanout   the largest number of children this node may split into
+     * @param selector the vantage point selection policy for this node and
+     *                 its children
+     */
+    public MultiVPNode(T[] elements, int lower, int upper, int binSize,
+                       int fanout, long prefix, int depth,
+                       VantagePointSelector selector) {
+        this.binSize = binSize;
+        this.fanout = fanout;
+        this.selector = selector;
+        this.prefix = prefix;
+        this.depth = depth;
+        if (upper - lower <= binSize) {
+            storeElements(elements, lower, upper);
+        } else {
+            try {
+                partition(elements, lower, upper);
+            } catch (PartitionException e) {
+                /* All of the elements we were given are coincident */
+                storeElements(elements, lower, upper);
+            }
+        }
+    }
+
+    private void storeElements(T[] elements, int lower, int upper) {
+        this.elements = new ArrayList<>(upper - lower);
+        for (int i = lower; i < upper; i++) {
+            this.elements.add(elements[i]);
+        }
+        this.children = null;
+        this.boundaries = null;
+    }
+
+    /**
+     * Splits a subset of the given array into shells of (as near as
+     * possible) equal size around a vantage point. Elements tied on a
+     * boundary distance stay in the inner shell, so fewer than
+     * {@code fanout} children are created when the distances are heavily
+     * tied.
+     *
+     * @throws PartitionException if all of the elements are equally distant
+     *                            from the vantage point
+     */
+    @SuppressWarnings("unchecked")
+    private void partition(T[] elements, int lower, int upper)
+            throws PartitionException {
+        if (upper - lower < 2) {
+            throw new PartitionException("Cannot partition fewer" +
+                    " than two elements.");
+        }
+
+        int vantagePoint = selector.select(elements, lower, upper);
+        T element = elements[lower];
+        elements[lower] = elements[vantagePoint];
+        elements[vantagePoint] = element;
+        center = new ProteinSequence(elements[lower]);
+
+        /* Each element's distance to the center is computed exactly once */
+        double[] distances = new double[upper - lower];
+        for (int i = lower; i < upper; ++i) {
+            distances[i - lower] = center.getDistanceTo(elements[i]);
+        }
+
+        int n = upper - lower;
+        List<Double> bounds = new ArrayList<>(fanout - 1);
+        List<Integer> ends = new ArrayList<>(fanout - 1);
+        int start = lower;
+        for (int k = 1; k < fanout; ++k) {
+            int quantile = lower + (int) ((long) k * n / fanout) - 1;
+            if (quantile < start) {
+                /* Swallowed by the ties of the previous shell */
+                continue;
+            }
+            VPNode.select(elements, distances, lower, start, upper - 1,
+                    quantile);
+            double bound = distances[quantile - lower];
+
+            /* Keep ties with the boundary in this shell */
+            int end = quantile + 1;
+            for (int i = quantile + 1; i < upper; ++i) {
+                if (distances[i - lower] <= bound) {
+                    VPNode.swap(elements, distances, lower, i, end++);
+                }
+            }
+            if (end == upper) {
+                break;
+            }
+            bounds.add(bound);
+            ends.add(end);
+            start = end;
+        }
+
+        if (bounds.isEmpty()) {
+            /* Everything from the first quantile out is tied; split off the
+               elements closer than the largest distance instead. */
+            double max = Double.NEGATIVE_INFINITY;
+            for (double distance : distances) {
+                max = Math.max(max, distance);
+            }
+            double bound = Double.NEGATIVE_INFINITY;
+            int end = lower;
+            for (int i = lower; i < upper; ++i) {
+                if (distances[i - lower] < max) {
+                    bound = Math.max(bound, distances[i - lower]);
+                    VPNode.swap(elements, distances, lower, i, end++);
+                }
+            }
+            if (end == lower) {
+                throw new PartitionException(
+                        "No viable partition threshold found (all elements " +
+                                "have equal distance from center).");
+            }
+            bounds.add(bound);
+            ends.add(end);
+        }
+
+        boundaries = new double[bounds.size()];
+        children = new ArrayList<>(bounds.size() + 1);
+        start = lower;
+        for (int i = 0; i <= bounds.size(); ++i) {
+            int end = i < bounds.size() ? ends.get(i) : upper;
+            if (i < bounds.size()) {
+                boundaries[i] = bounds.get(i);
+            }
+            children.add(new MultiVPNode<>(elements, start, end, binSize,
+                    fanout, prefix * fanout + i, depth + 1, selector));
+            start = end;
+        }
+
+        /* No longer a leaf node */
+        this.elements = null;
+    }
+
+    /**
+     * Re-partitions this leaf node after it has grown beyond its capacity.
+     *
+     * @throws PartitionException if this is not a leaf node or no viable
+     *                            partition exists
+     */
+    @SuppressWarnings("unchecked")
+    public void partition() throws PartitionException {
+        if (!isLeafNode()) {
+            throw new PartitionException("Cannot partition a non-leaf node.");
+        }
+        if (elements.isEmpty()) {
+            throw new PartitionException("Cannot partition an empty node.");
+        }
+        T[] pointArray = elements.toArray((T[]) Array.newInstance(
+                elements.get(0).getClass(), 0));
+        partition(pointArray, 0, pointArray.length);
+    }
+
+    /**
+     * Returns the index of the child whose shell contains the given distance
+     * from this node's center.
+     */
+    private int childFor(double distance) {
+        for (int i = 0; i < boundaries.length; ++i) {
+            if (distance <= boundaries[i]) {
+                return i;
+            }
+        }
+        return boundaries.length;
+    }
+
+    /**
+     * Returns the smallest possible distance between a query at the given
+     * distance from this node's center and any element of a child's shell.
+     */
+    private double gapTo(int child, double distance) {
+        if (child > 0 && distance <= boundaries[child - 1]) {
+            return boundaries[child - 1] - distance;
+        }
+        if (child < boundaries.length && distance > boundaries[child]) {
+            return distance - boundaries[child];
+        }
+        return 0;
+    }
+
+    public boolean isLeafNode() {
+        return children == null;
+    }
+
+    public boolean isEmpty() {
+        ArrayDeque<MultiVPNode<T>> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            MultiVPNode<T> node = stack.pop();
+            if (node.isLeafNode()) {
+                if (!node.elements.isEmpty()) {
+                    return false;
+                }
+            } else {
+                node.children.forEach(stack::push);
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        int size = 0;
+        ArrayDeque<MultiVPNode<T>> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            MultiVPNode<T> node = stack.pop();
+            if (node.isLeafNode()) {
+                size += node.elements.size();
+            } else {
+                node.children.forEach(stack::push);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the height of the subtree rooted at this node; a leaf has a
+     * height of one.
+     *
+     * @return the height of this subtree
+     */
+    public int getHeight() {
+        int deepest = depth;
+        ArrayDeque<MultiVPNode<T>> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            MultiVPNode<T> node = stack.pop();
+            if (node.isLeafNode()) {
+                deepest = Math.max(deepest, node.depth);
+            } else {
+                node.children.forEach(stack::push);
+            }
+        }
+        return deepest - depth + 1;
+    }
+
+    /**
+     * Returns the leaf whose shell contains the given point.
+     */
+    private MultiVPNode<T> leafFor(VPPoint point) {
+        MultiVPNode<T> node = this;
+        while (!node.isLeafNode()) {
+            node = node.children.get(node.childFor(
+                    node.center.getDistanceTo(point)));
+        }
+        return node;
+    }
+
+    /**
+     * Adds a point to this node if it is a leaf node or to the child whose
+     * shell contains it if not. A leaf loaded beyond its capacity is
+     * partitioned.
+     *
+     * @param point the point to add
+     * @return the prefix of the node the point was added to
+     */
+    public long add(T point) {
+        MultiVPNode<T> leaf = leafFor(point);
+        leaf.elements.add(point);
+        if (leaf.elements.size() > binSize) {
+            try {
+                leaf.partition();
+            } catch (PartitionException e) {
+                /* Nothing to do here; just hold on to all of our elements */
+            }
+        }
+        return leaf.prefix;
+    }
+
+    public boolean contains(T point) {
+        return leafFor(point).elements.contains(point);
+    }
+
+    public long getPrefix() {
+        return prefix;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the prefix of the node at the given depth on the path the
+     * given value would take through the tree, or the prefix of the deepest
+     * node on that path if the tree is not that deep.
+     *
+     * @param value the value to find a prefix for
+     * @param depth the depth at which to stop descending
+     * @return the prefix of the node at (or above) the given depth
+     */
+    public long getPrefixOf(T value, int depth) {
+        MultiVPNode<T> node = this;
+        while (!node.isLeafNode() && depth > node.depth) {
+            node = node.children.get(node.childFor(
+                    node.center.getDistanceTo(value)));
+        }
+        return node.prefix;
+    }
+
+    /**
+     * Populates the given search result set with elements close to the query
+     * point. As in {@link VPNode#getNearestNeighbors(VPPoint,
+     * BoundedPriorityQueue)}, the search is best-first: subtrees wait in a
+     * priority queue keyed by the lower bound on the distance from the query
+     * to any element of their shell, and the search ends as soon as no
+     * pending subtree can improve on the results.
+     *
+     * @param queryPoint the point for which to find nearby neighbors
+     * @param results    the result set to which to offer elements
+     */
+    public void getNearestNeighbors(final VPPoint queryPoint,
+                                    BoundedPriorityQueue<T> results) {
+        PriorityQueue<PendingNode<T>> pending = new PriorityQueue<>();
+        pending.add(new PendingNode<>(this, 0.0));
+
+        while (!pending.isEmpty()) {
+            PendingNode<T> next = pending.poll();
+            if (next.bound > results.getPruningDistance()) {
+                break;
+            }
+            /* An approximate search always reaches its first leaf */
+            if (results.getLeavesVisited() > 0 && results.isExhausted()) {
+                break;
+            }
+
+            MultiVPNode<T> node = next.node;
+            if (node.isLeafNode()) {
+                results.addAll(node.elements);
+                results.countLeafVisit();
+                continue;
+            }
+
+            double distanceToCenter = node.center.getDistanceTo(queryPoint);
+            results.countDistanceComputation();
+            for (int i = 0; i < node.children.size(); ++i) {
+                pending.add(new PendingNode<>(node.children.get(i),
+                        Math.max(next.bound,
+                                node.gapTo(i, distanceToCenter))));
+            }
+        }
+    }
+
+    /**
+     * A subtree waiting to be searched, along with a lower bound on the
+     * distance from the query to any of its elements.
+     */
+    private static final class PendingNode<T extends VPPoint>
+            implements Comparable<PendingNode<T>> {
+        final MultiVPNode<T> node;
+        final double bound;
+
+        PendingNode(MultiVPNode<T> node, double bound) {
+            this.node = node;
+            this.bound = bound;
+        }
+
+        @Override
+        public int compareTo(PendingNode<T> other) {
+            return Double.compare(bound, other.bound);
+        }
+    }
+
+    /**
+     * Adds all of the elements from this node and its children to the given
+     * list.
+     *
+     * @param list the list to which to add elements
+     */
+    public void addPointsToList(Collection<? super T> list) {
+        ArrayDeque<MultiVPNode<T>> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            MultiVPNode<T> node = stack.pop();
+            if (node.isLeafNode()) {
+                list.addAll(node.elements);
+            } else {
+                node.children.forEach(stack::push);
+            }
+        }
+    }
+}
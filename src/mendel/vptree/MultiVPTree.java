@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.vptree;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An m-ary vantage point tree. Each non-leaf node splits its elements into up
+ * to {@code fanout} distance shells around its vantage point rather than two,
+ * so the tree is shallower than a binary {@link VPTree} and a search computes
+ * fewer distances to vantage points on its way down.
+ * <p/>
+ * Like {@link VPTree}, the tree supports {@link #getPrefixOf(VPPoint, int)},
+ * where prefixes are built in base {@code fanout}. It is a standalone
+ * alternative to {@link VPTree}; the file system and VPHashTree still index
+ * with the binary tree.
+ *
+ * @see MultiVPNode
+ */
+public class MultiVPTree<E extends VPPoint> {
+
+    /**
+     * The default number ({@value}) of children per node.
+     */
+    public static final int DEFAULT_FANOUT = 4;
+
+    protected final int binSize;
+    protected final int fanout;
+    protected final VantagePointSelector selector;
+
+    protected MultiVPNode<E> root;
+
+    /**
+     * The number of points in this tree, maintained as points are added so
+     * that {@link #size()} does not have to walk the tree.
+     */
+    protected int count;
+
+    /**
+     * Constructs a new, empty tree with a default node capacity and fan-out.
+     */
+    public MultiVPTree() {
+        this(VPTree.DEFAULT_BIN_SIZE, DEFAULT_FANOUT);
+    }
+
+    /**
+     * Constructs a new, empty tree with the specified node capacity and
+     * fan-out.
+     *
+     * @param nodeCapacity the maximum number of points to store in a leaf node
+     * @param fanout       the maximum number of children of a node
+     */
+    public MultiVPTree(int nodeCapacity, int fanout) {
+        this(nodeCapacity, fanout, VantagePointStrategy.FIRST);
+    }
+
+    /**
+     * Constructs a new, empty tree with the specified node capacity, fan-out
+     * and vantage point selection policy.
+     *
+     * @param nodeCapacity the maximum number of points to store in a leaf node
+     * @param fanout       the maximum number of children of a node
+     * @param selector     the policy used to choose the vantage point of each
+     *                     node when it is partitioned
+     */
+    public MultiVPTree(int nodeCapacity, int fanout,
+                       VantagePointSelector selector) {
+        checkArguments(nodeCapacity, fanout);
+        this.binSize = nodeCapacity;
+        this.fanout = fanout;
+        this.selector = selector;
+        this.root = new MultiVPNode<>(nodeCapacity, fanout, 1, 0, selector);
+    }
+
+    /**
+     * Constructs a new tree that contains (and indexes) all of the points in
+     * the given collection.
+     *
+     * @param points       the points to use to populate this tree
+     * @param nodeCapacity the maximum number of points to store in a leaf node
+     * @param fanout       the maximum number of children of a node
+     */
+    public MultiVPTree(Collection<? extends VPPoint> points, int nodeCapacity,
+                       int fanout) {
+        this(points, nodeCapacity, fanout, VantagePointStrategy.FIRST);
+    }
+
+    /**
+     * Constructs a new tree that contains (and indexes) all of the points in
+     * the given collection, choosing vantage points with the given policy.
+     *
+     * @param points       the points to use to populate this tree
+     * @param nodeCapacity the maximum number of points to store in a leaf node
+     * @param fanout       the maximum number of children of a node
+     * @param selector     the policy used to choose the vantage point of each
+     *                     node when it is partitioned
+     */
+    @SuppressWarnings("unchecked")
+    public MultiVPTree(Collection<? extends VPPoint> points, int nodeCapacity,
+                       int fanout, VantagePointSelector selector) {
+        checkArguments(nodeCapacity, fanout);
+        this.binSize = nodeCapacity;
+        this.fanout = fanout;
+        this.selector = selector;
+
+        if (points.isEmpty()) {
+            this.root = new MultiVPNode<>(nodeCapacity, fanout, 1, 0,
+                    selector);
+        } else {
+            E[] pointArray = points.toArray((E[]) Array.newInstance(
+                    points.iterator().next().getClass(), 0));
+            this.root = new MultiVPNode<>(pointArray, 0, pointArray.length,
+                    nodeCapacity, fanout, 1, 0, selector);
+            this.count = pointArray.length;
+        }
+    }
+
+    private static void checkArguments(int nodeCapacity, int fanout) {
+        if (nodeCapacity < 1) {
+            throw new IllegalArgumentException("Node capacity must be" +
+                    " greater than zero.");
+        }
+        if (fanout < 2) {
+            throw new IllegalArgumentException("Fan-out must be at least" +
+                    " two.");
+        }
+    }
+
+    public MultiVPNode<E> getRoot() {
+        return root;
+    }
+
+    public int getBinSize() {
+        return binSize;
+    }
+
+    public int getFanout() {
+        return fanout;
+    }
+
+    /**
+     * Returns the number of levels in this tree; a tree with only a root
+     * leaf has a height of one.
+     *
+     * @return the height of this tree
+     */
+    public int getHeight() {
+        return root.getHeight();
+    }
+
+    public long add(E point) {
+        count++;
+        return root.add(point);
+    }
+
+    public boolean addAll(Collection<? extends E> points) {
+        for (E point : points) {
+            root.add(point);
+        }
+        count += points.size();
+        return !points.isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    public boolean contains(Object o) {
+        try {
+            return root.contains((E) o);
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Returns all of the points in this tree. The order of the points is not
+     * defined.
+     *
+     * @return a list of all the points in this tree
+     */
+    public List<E> getPoints() {
+        List<E> points = new ArrayList<>(size());
+        root.addPointsToList(points);
+        return points;
+    }
+
+    public long getPrefixOf(E value, int depth) {
+        if (count == 0) {
+            return -1;
+        }
+        return root.getPrefixOf(value, depth);
+    }
+
+    public List<E> getNearestNeighbors(VPPoint queryPoint, int maxResults) {
+        BoundedPriorityQueue<E> results = new BoundedPriorityQueue<>(
+                queryPoint, maxResults);
+        root.getNearestNeighbors(queryPoint, results);
+        return results.toSortedList(queryPoint);
+    }
+
+    /**
+     * Searches this tree for the nearest neighbors of the query point,
+     * offering candidates to the given result set.
+     *
+     * @param queryPoint the point for which to find nearby neighbors
+     * @param results    the result set to which to offer points
+     */
+    public void getNearestNeighbors(VPPoint queryPoint,
+                                    BoundedPriorityQueue<E> results) {
+        root.getNearestNeighbors(queryPoint, results);
+    }
+
+    public E getNearestNeighbor(VPPoint queryPoint) {
+        BoundedPriorityQueue<E> results = new BoundedPriorityQueue<>(
+                queryPoint, 1);
+        root.getNearestNeighbors(queryPoint, results);
+        return results.peek();
+    }
+}
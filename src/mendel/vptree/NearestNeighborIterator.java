@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.vptree;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Iterates over the points of a vp-tree in order of increasing distance
+ * from a query point. Subtrees and points share a single priority queue:
+ * subtrees are keyed by a lower bound on the distance to any point they
+ * contain and points by their actual distance, so a point is only returned
+ * once nothing left in the queue can be closer. Only as much of the tree as
+ * is needed to produce the neighbors actually consumed is ever visited,
+ * which makes the iterator suitable for paging through results.
+ * <p/>
+ * Modifying the tree while iterating leaves the iterator's behavior
+ * undefined, except for a {@link ConcurrentVPTree}. There the iterator is
+ * weakly consistent: it does not take a snapshot, but reads each subtree as
+ * it stands when the iterator first expands it. Points added or removed
+ * while iterating may or may not be returned, but a leaf is never seen in
+ * the middle of a change. The iterator's remove method is not supported.
+ *
+ * @author ctolooee
+ */
+public class NearestNeighborIterator<E extends VPPoint>
+        implements Iterator<E> {
+
+    private final VPPoint queryPoint;
+    private final PriorityQueue<Entry> pending = new PriorityQueue<>();
+    private double lastDistance = Double.NaN;
+    private long distanceComputations;
+
+    NearestNeighborIterator(VPNode<E> root, VPPoint queryPoint) {
+        this.queryPoint = queryPoint;
+        pending.add(new Entry(root, 0.0));
+    }
+
+    /**
+     * Expands subtrees at the head of the queue until the closest remaining
+     * entry is a point, or the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    private void advance() {
+        while (!pending.isEmpty() && pending.peek().item instanceof VPNode) {
+            Entry next = pending.poll();
+            VPNode<E> node = (VPNode<E>) next.item;
+            VPNode<E> closer = node.getCloserNode();
+            VPNode<E> farther = node.getFartherNode();
+            if (closer == null || farther == null) {
+                for (E point : node.getElements()) {
+                    pending.add(new Entry(point,
+                            point.getDistanceTo(queryPoint)));
+                    distanceComputations++;
+                }
+                continue;
+            }
+
+            double distanceToCenter
+                    = node.getCenter().getDistanceTo(queryPoint);
+            distanceComputations++;
+            pending.add(new Entry(closer, Math.max(next.distance,
+                    distanceToCenter - node.getThreshold())));
+            pending.add(new Entry(farther, Math.max(next.distance,
+                    node.getThreshold() - distanceToCenter)));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        advance();
+        return !pending.isEmpty();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Entry next = pending.poll();
+        lastDistance = next.distance;
+        return (E) next.item;
+    }
+
+    /**
+     * Returns the distance from the query point to the point most recently
+     * returned by {@link #next()}, or {@code NaN} before the first call.
+     *
+     * @return the distance of the last neighbor returned
+     */
+    public double getLastDistance() {
+        return lastDistance;
+    }
+
+    /**
+     * Returns the number of distance computations performed so far.
+     *
+     * @return the number of distance computations
+     */
+    public long getDistanceComputations() {
+        return distanceComputations;
+    }
+
+    /**
+     * NOT SUPPORTED
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * A subtree or a point, keyed by its (lower bound) distance to the
+     * query point.
+     */
+    private static final class Entry implements Comparable<Entry> {
+        final Object item;
+        final double distance;
+
+        Entry(Object item, double distance) {
+            this.item = item;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+}
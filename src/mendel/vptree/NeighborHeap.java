@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.vptree;
+
+import java.util.Arrays;
+
+/**
+ * A bounded max-heap of point indices keyed by their distance to the
+ * query. It plays the part of {@link BoundedPriorityQueue} for the
+ * array-backed vp-trees ({@link FlatVPTree} and {@link MappedVPTree}),
+ * whose points are only materialized once the search is complete.
+ *
+ * @author ctolooee
+ */
+class NeighborHeap {
+    private final int[] points;
+    private final double[] distances;
+    private final double maxDistance;
+    private final SearchBudget budget;
+    private int size;
+    private int leavesVisited;
+    private long distanceComputations;
+
+    NeighborHeap(int capacity, double maxDistance, SearchBudget budget) {
+        this.points = new int[capacity];
+        this.distances = new double[capacity];
+        this.maxDistance = maxDistance;
+        this.budget = budget;
+    }
+
+    double getFurthestDistance() {
+        return size < points.length ? maxDistance : distances[0];
+    }
+
+    /* See BoundedPriorityQueue#getPruningDistance() */
+    double getPruningDistance() {
+        return getFurthestDistance() / (1.0 + budget.getEpsilon());
+    }
+
+    boolean isExhausted() {
+        return leavesVisited >= budget.getMaxLeaves()
+                || distanceComputations
+                >= budget.getMaxDistanceComputations();
+    }
+
+    int getLeavesVisited() {
+        return leavesVisited;
+    }
+
+    void countLeafVisit() {
+        leavesVisited++;
+    }
+
+    void countDistanceComputation() {
+        distanceComputations++;
+    }
+
+    void offer(int point, double distance) {
+        distanceComputations++;
+        if (distance > maxDistance) {
+            return;
+        }
+        if (size < points.length) {
+            int i = size++;
+            while (i > 0 && distances[(i - 1) / 2] < distance) {
+                int parent = (i - 1) / 2;
+                points[i] = points[parent];
+                distances[i] = distances[parent];
+                i = parent;
+            }
+            points[i] = point;
+            distances[i] = distance;
+        } else if (distance < distances[0]) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size
+                        && distances[child + 1] > distances[child]) {
+                    child++;
+                }
+                if (distances[child] <= distance) {
+                    break;
+                }
+                points[i] = points[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            points[i] = point;
+            distances[i] = distance;
+        }
+    }
+
+    /* Point indices in order of increasing distance */
+    int[] sortedPoints() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order,
+                (a, b) -> Double.compare(distances[a], distances[b]));
+        int[] sorted = new int[size];
+        for (int i = 0; i < size; ++i) {
+            sorted[i] = points[order[i]];
+        }
+        return sorted;
+    }
+}
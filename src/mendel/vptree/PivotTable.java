@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.vptree;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A table of precomputed distances from the elements of a leaf
+ * {@link VPNode} to a handful of pivots chosen from among those elements.
+ * When the leaf is searched, the distances from the query to the pivots give
+ * a lower bound on the distance from the query to every element by the
+ * triangle inequality, {@code d(q, e) >= |d(q, p) - d(e, p)|}. Elements whose
+ * bound already exceeds the furthest result are skipped without computing
+ * their distance to the query.
+ * <p/>
+ * Rows of the table are kept in the same order as the leaf's element list;
+ * the owning node is responsible for keeping the two in step.
+ */
+class PivotTable<T extends VPPoint> {
+
+    /**
+     * The number of pivots ({@value}) chosen for each leaf.
+     */
+    static final int PIVOTS = 3;
+
+    /**
+     * The smallest leaf ({@value} elements) worth building a table for;
+     * smaller leaves are simply scanned.
+     */
+    static final int MIN_ELEMENTS = 8;
+
+    private final VPPoint[] pivots;
+    private double[] distances;
+    private int rows;
+
+    /**
+     * Builds a pivot table over the given elements. The first pivot is the
+     * first element; each following pivot is the element farthest from the
+     * pivots chosen so far.
+     *
+     * @param elements the elements of the leaf to index
+     */
+    PivotTable(List<T> elements) {
+        int n = elements.size();
+        int count = Math.min(PIVOTS, n);
+        this.pivots = new VPPoint[count];
+        this.distances = new double[n * count];
+        this.rows = n;
+
+        double[] nearest = new double[n];
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+        int next = 0;
+        for (int j = 0; j < count; ++j) {
+            VPPoint pivot = elements.get(next);
+            pivots[j] = pivot;
+
+            int farthest = 0;
+            for (int i = 0; i < n; ++i) {
+                double d = pivot.getDistanceTo(elements.get(i));
+                distances[i * count + j] = d;
+                nearest[i] = Math.min(nearest[i], d);
+                if (nearest[i] > nearest[farthest]) {
+                    farthest = i;
+                }
+            }
+            next = farthest;
+        }
+    }
+
+    private PivotTable(VPPoint[] pivots, double[] distances, int rows) {
+        this.pivots = pivots;
+        this.distances = distances;
+        this.rows = rows;
+    }
+
+    /**
+     * Returns a new table with a row appended for an element added to the
+     * end of the leaf, leaving this table untouched.
+     *
+     * @param element the element added to the leaf
+     * @return the extended copy of this table
+     */
+    PivotTable<T> copyWith(T element) {
+        int count = pivots.length;
+        PivotTable<T> copy = new PivotTable<>(pivots,
+                Arrays.copyOf(distances, (rows + 1) * count), rows);
+        copy.add(element);
+        return copy;
+    }
+
+    /**
+     * Returns a new table without the row of the element at the given index
+     * of the leaf, leaving this table untouched.
+     *
+     * @param index the index of the removed element
+     * @return the reduced copy of this table
+     */
+    PivotTable<T> copyWithout(int index) {
+        PivotTable<T> copy = new PivotTable<>(pivots,
+                Arrays.copyOf(distances, rows * pivots.length), rows);
+        copy.remove(index);
+        return copy;
+    }
+
+    /**
+     * Appends a row for an element added to the end of the leaf.
+     *
+     * @param element the element added to the leaf
+     */
+    void add(T element) {
+        int count = pivots.length;
+        if ((rows + 1) * count > distances.length) {
+            distances = Arrays.copyOf(distances,
+                    Math.max(distances.length * 2, (rows + 1) * count));
+        }
+        for (int j = 0; j < count; ++j) {
+            distances[rows * count + j] = pivots[j].getDistanceTo(element);
+        }
+        rows++;
+    }
+
+    /**
+     * Removes the row of the element at the given index of the leaf. The
+     * pivots themselves remain valid reference points even if the removed
+     * element was one of them.
+     *
+     * @param index the index of the removed element
+     */
+    void remove(int index) {
+        int count = pivots.length;
+        System.arraycopy(distances, (index + 1) * count, distances,
+                index * count, (rows - index - 1) * count);
+        rows--;
+    }
+
+    /**
+     * Offers the elements of the leaf to the result set, skipping those that
+     * the pivot bounds show cannot be closer than the furthest result.
+     *
+     * @param queryPoint the point for which to find nearby neighbors
+     * @param elements   the elements of the leaf, in table order
+     * @param results    the result set to which to offer elements
+     */
+    void search(VPPoint queryPoint, List<T> elements,
+                BoundedPriorityQueue<T> results) {
+        int count = pivots.length;
+        double[] toPivot = new double[count];
+        for (int j = 0; j < count; ++j) {
+            toPivot[j] = pivots[j].getDistanceTo(queryPoint);
+            results.countDistanceComputation();
+        }
+
+        double furthest = results.getPruningDistance();
+        for (int i = 0; i < rows; ++i) {
+            int row = i * count;
+            double bound = 0.0;
+            for (int j = 0; j < count && bound <= furthest; ++j) {
+                bound = Math.max(bound,
+                        Math.abs(toPivot[j] - distances[row + j]));
+            }
+            if (bound > furthest) {
+                continue;
+            }
+            if (results.add(elements.get(i))) {
+                furthest = results.getPruningDistance();
+            }
+        }
+    }
+
+    /**
+     * Passes the elements of the leaf within the given radius of the query
+     * to the visitor, skipping those that the pivot bounds rule out.
+     *
+     * @param queryPoint the center of the search
+     * @param elements   the elements of the leaf, in table order
+     * @param radius     the largest distance (inclusive) from the query
+     * @param visitor    the visitor to pass matching elements to
+     * @return {@code false} if the visitor stopped the search or
+     * {@code true} otherwise
+     */
+    boolean searchRange(VPPoint queryPoint, List<T> elements, double radius,
+                        PointVisitor<T> visitor) {
+        int count = pivots.length;
+        double[] toPivot = new double[count];
+        for (int j = 0; j < count; ++j) {
+            toPivot[j] = pivots[j].getDistanceTo(queryPoint);
+        }
+
+        for (int i = 0; i < rows; ++i) {
+            int row = i * count;
+            boolean excluded = false;
+            for (int j = 0; j < count && !excluded; ++j) {
+                excluded = Math.abs(toPivot[j] - distances[row + j]) > radius;
+            }
+            if (excluded) {
+                continue;
+            }
+            T element = elements.get(i);
+            double distance = element.getDistanceTo(queryPoint);
+            if (distance <= radius && !visitor.visit(element, distance)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.vptree;
+
+/**
+ * Receives the points found by a range search as the search walks the tree,
+ * so that large result sets never have to be collected in memory.
+ *
+ * @author ctolooee
+ * @see VPTree#getPointsWithinRange(VPPoint, double, PointVisitor)
+ */
+public interface PointVisitor<T extends VPPoint> {
+
+    /**
+     * Called for each point within the search radius, in no particular order.
+     *
+     * @param point    the point found
+     * @param distance the distance from the query point to the point found
+     * @return {@code true} to continue the search or {@code false} to stop it
+     */
+    boolean visit(T point, double distance);
+}
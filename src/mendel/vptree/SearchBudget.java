@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.vptree;
+
+import mendel.serialize.ByteSerializable;
+import mendel.serialize.SerializationInputStream;
+import mendel.serialize.SerializationOutputStream;
+
+import java.io.IOException;
+
+/**
+ * Limits on how much work a nearest neighbor search may do, trading recall
+ * for latency. A search always descends to the leaf its query falls in; the
+ * limits only decide whether it backtracks into the other children along
+ * the way.
+ * <ul>
+ * <li>{@code maxLeaves} caps the number of leaves visited,</li>
+ * <li>{@code maxDistanceComputations} caps the number of distances
+ * computed, and</li>
+ * <li>{@code epsilon} relaxes the pruning test, so a subtree is only
+ * searched if it could hold a point closer than {@code 1 / (1 + epsilon)}
+ * of the current furthest result.</li>
+ * </ul>
+ * The {@link #EXACT} budget has no limits and gives exact results.
+ *
+ * @author ctolooee
+ */
+public class SearchBudget implements ByteSerializable {
+
+    /**
+     * A budget with no limits, for exact searches.
+     */
+    public static final SearchBudget EXACT = new SearchBudget(
+            Integer.MAX_VALUE, Long.MAX_VALUE, 0.0);
+
+    private final int maxLeaves;
+    private final long maxDistanceComputations;
+    private final double epsilon;
+
+    /**
+     * @param maxLeaves               the most leaves a search may visit
+     * @param maxDistanceComputations the most distances a search may compute
+     * @param epsilon                 the relaxation of the pruning test; zero
+     *                                for exact pruning
+     */
+    public SearchBudget(int maxLeaves, long maxDistanceComputations,
+                        double epsilon) {
+        if (maxLeaves < 1 || maxDistanceComputations < 1) {
+            throw new IllegalArgumentException("Search limits must be" +
+                    " greater than zero.");
+        }
+        if (epsilon < 0.0) {
+            throw new IllegalArgumentException("Epsilon must not be" +
+                    " negative.");
+        }
+        this.maxLeaves = maxLeaves;
+        this.maxDistanceComputations = maxDistanceComputations;
+        this.epsilon = epsilon;
+    }
+
+    public int getMaxLeaves() {
+        return maxLeaves;
+    }
+
+    public long getMaxDistanceComputations() {
+        return maxDistanceComputations;
+    }
+
+    public double getEpsilon() {
+        return epsilon;
+    }
+
+    /**
+     * Tests whether this budget places no limits on a search.
+     *
+     * @return {@code true} if searches with this budget are exact
+     */
+    public boolean isExact() {
+        return maxLeaves == Integer.MAX_VALUE
+                && maxDistanceComputations == Long.MAX_VALUE
+                && epsilon == 0.0;
+    }
+
+    @Deserialize
+    public SearchBudget(SerializationInputStream in) throws IOException {
+        this.maxLeaves = in.readInt();
+        this.maxDistanceComputations = in.readLong();
+        this.epsilon = in.readDouble();
+    }
+
+    @Override
+    public void serialize(SerializationOutputStream out) throws IOException {
+        out.writeInt(maxLeaves);
+        out.writeLong(maxDistanceComputations);
+        out.writeDouble(epsilon);
+    }
+
+    @Override
+    public String toString() {
+        return "SearchBudget(leaves=" + maxLeaves + ", distances="
+                + maxDistanceComputations + ", epsilon=" + epsilon + ")";
+    }
+}
@@ -38,7 +38,11 @@ import java.util.Collection;
 import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * {@code VPNodes} are the nodes of a vantage point vp-tree. {@code VPNodes}
@@ -54,11 +58,18 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
     private VPPoint center;
     private double threshold;
 
-    private VPNode<T> closer;
-    private VPNode<T> farther;
+    /* Volatile so that a subtree swapped in by a ConcurrentVPTree writer is
+     * published whole to readers */
+    private volatile VPNode<T> closer;
+    private volatile VPNode<T> farther;
+
+    /* Set once this node has been replaced by a rebuilt subtree */
+    private volatile boolean retired;
 
     private ArrayList<T> elements;
-    private final int binSize;
+    private PivotTable<T> pivots;
+    private int binSize;
+    private final VantagePointSelector selector;
 
     private long prefix;
     private int depth;
@@ -69,7 +80,21 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
      * @param binSize the largest number of elements this node should hold
      */
     public VPNode(int binSize, long prefix, int depth) {
+        this(binSize, prefix, depth, VantagePointStrategy.FIRST);
+    }
+
+    /**
+     * Constructs a new, empty node with the given capacity that chooses its
+     * vantage points with the given selector.
+     *
+     * @param binSize  the largest number of elements this node should hold
+     * @param selector the vantage point selection policy for this node and
+     *                 its children
+     */
+    public VPNode(int binSize, long prefix, int depth,
+                  VantagePointSelector selector) {
         this.binSize = binSize;
+        this.selector = selector;
         this.elements = new ArrayList<>(0);
         this.center = new ProteinSequence("");
         this.prefix = prefix;
@@ -90,8 +115,30 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
      */
     public VPNode(T[] elements, int lower, int upper,
                   int binSize, long prefix, int depth) {
+        this(elements, lower, upper, binSize, prefix, depth,
+                VantagePointStrategy.FIRST);
+    }
+
+    /**
+     * Constructs a new node that contains a subset of the given array of
+     * {@code VPPoints}, choosing vantage points with the given selector. If
+     * the subset of elements is larger than the given bin capacity, child
+     * nodes will be created recursively.
+     *
+     * @param elements the array of elements from which to build this node
+     * @param lower    the starting index (inclusive) of the subset of
+     *                 the array from which to build this node
+     * @param upper    the end index (exclusive) of the subset of the array from
+     *                 which to build this node
+     * @param binSize  the largest number of elements this node should hold
+     * @param selector the vantage point selection policy for this node and
+     *                 its children
+     */
+    public VPNode(T[] elements, int lower, int upper, int binSize,
+                  long prefix, int depth, VantagePointSelector selector) {
         this.prefix = prefix;
         this.binSize = binSize;
+        this.selector = selector;
         this.depth = depth;
         if (upper - lower <= binSize) {
             /* All done! This is a leaf node. */
@@ -108,6 +155,92 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
         }
     }
 
+    /**
+     * Recursively builds a node from a subset of the given array on a
+     * fork/join pool. Subsets larger than the cutoff are partitioned with
+     * their distances to the vantage point computed in parallel, and their
+     * two children are built as separate tasks; smaller subsets are built
+     * sequentially with
+     * {@link #VPNode(VPPoint[], int, int, int, long, int,
+     * VantagePointSelector)}.
+     */
+    static class BuildTask<T extends VPPoint> extends RecursiveTask<VPNode<T>> {
+        private static final long serialVersionUID = -2964015587930641763L;
+
+        private final T[] elements;
+        private final int lower, upper, binSize, depth, cutoff;
+        private final long prefix;
+        private final VantagePointSelector selector;
+
+        BuildTask(T[] elements, int lower, int upper, int binSize,
+                  long prefix, int depth, int cutoff,
+                  VantagePointSelector selector) {
+            this.elements = elements;
+            this.lower = lower;
+            this.upper = upper;
+            this.binSize = binSize;
+            this.prefix = prefix;
+            this.depth = depth;
+            this.cutoff = cutoff;
+            this.selector = selector;
+        }
+
+        @Override
+        protected VPNode<T> compute() {
+            if (upper - lower <= Math.max(cutoff, binSize)) {
+                return new VPNode<>(elements, lower, upper, binSize, prefix,
+                        depth, selector);
+            }
+            VPNode<T> node = new VPNode<>(binSize, prefix, depth, selector);
+            try {
+                node.partitionInParallel(elements, lower, upper, cutoff);
+            } catch (PartitionException e) {
+                /* All of the elements we were given are coincident */
+                node.storeElements(elements, lower, upper);
+            }
+            return node;
+        }
+    }
+
+    /**
+     * Computes the distances from a vantage point to a range of elements,
+     * splitting the range across the pool.
+     */
+    private static class DistanceTask extends RecursiveAction {
+        private static final long serialVersionUID = 6410718236917125048L;
+        private static final int THRESHOLD = 4096;
+
+        private final VPPoint center;
+        private final VPPoint[] elements;
+        private final double[] distances;
+        private final int base, from, to;
+
+        DistanceTask(VPPoint center, VPPoint[] elements, double[] distances,
+                     int base, int from, int to) {
+            this.center = center;
+            this.elements = elements;
+            this.distances = distances;
+            this.base = base;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; ++i) {
+                    distances[i - base] = center.getDistanceTo(elements[i]);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DistanceTask(center, elements, distances,
+                                base, from, mid),
+                        new DistanceTask(center, elements, distances,
+                                base, mid, to));
+            }
+        }
+    }
+
     /**
      * Returns a reference to this node's child that contains elements that
      * are closer to this node's center than this node's distance threshold.
@@ -168,52 +301,28 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
 
     @Deprecated
     public long getPrefixOf(T value) {
-        if (isLeafNode()) {
-            // TODO Can change this to return only the prefix at a certain depth
-            /* If distance from value to this center is 0, its a match! */
-            for (T element : elements) {
-                if (value.getDistanceTo(element) == 0) {
-                    return prefix;
-                }
-            }
-        } else {
-            if (center.getDistanceTo(value) <= threshold) {
-                return closer.getPrefixOf(value);
-            } else {
-                return farther.getPrefixOf(value);
-            }
+        VPNode<T> node = this;
+        while (!node.isLeafNode()) {
+            node = node.childFor(value);
         }
-            /* By this point we know the exact value is not in the vp-tree
-             * so return the most recent (this) prefix */
-
-        return prefix;
+        // TODO Can change this to return only the prefix at a certain depth
+        /* Whether or not the leaf holds the exact value, its prefix is the
+         * most recent one on the value's path */
+        return node.prefix;
     }
 
     public long getPrefixOf(T value, int depth) {
-
-        if(center != null) {
+        VPNode<T> node = this;
         /* Are we deep enough? If not delve deeper */
-            if (depth > this.depth) {
-                if (center.getDistanceTo(value) <= threshold) {
-                    if (closer == null) {
-                        return prefix;
-                    } else {
-                        return closer.getPrefixOf(value, depth);
-                    }
-                } else {
-                    if (farther == null) {
-                        return prefix;
-                    } else {
-                        return farther.getPrefixOf(value, depth);
-                    }
-                }
-            } else {
-            /* We made it down a path deep enough */
-                return prefix;
+        while (node.center != null && depth > node.depth) {
+            VPNode<T> child = node.center.getDistanceTo(value)
+                    <= node.threshold ? node.closer : node.farther;
+            if (child == null) {
+                break;
             }
-        } else {
-            return prefix;
+            node = child;
         }
+        return node.prefix;
     }
 
     /**
@@ -246,6 +355,9 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
                 /* Node isn't full but may need to trim it to size */
                 node.elements.trimToSize();
             }
+            if (node.isLeafNode()) {
+                node.indexElements();
+            }
         }
 
         return !elements.isEmpty();
@@ -296,33 +408,37 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
                     "passed a null nodes affected set");
         }
 
-        if (isLeafNode()) {
-            elements.add(point);
+        VPNode<T> leaf = this;
+        while (!leaf.isLeafNode()) {
+            leaf = leaf.childFor(point);
+        }
+        leaf.elements.add(point);
 
-            if (deferMaintenance) {
-                nodesAffected.add(this);
+        if (deferMaintenance) {
+            /* The pivot table is rebuilt once the caller is done */
+            leaf.pivots = null;
+            nodesAffected.add(leaf);
+        } else {
+            /* Maintenance may have to be done */
+            if (leaf.isOverloaded()) {
+                try {
+                    leaf.partition();
+                } catch (PartitionException e) {
+                    /* Nothing to do here; just hold on to all of our */
+                    leaf.indexElements();
+                }
             } else {
-                /* Maintenance may have to be done */
-                if (isOverloaded()) {
-                    try {
-                        partition();
-                    } catch (PartitionException e) {
-                        /* Nothing to do here; just hold on to all of our */
-                    }
-                } else {
                 /* Node isn't full but may need to trim it to size */
-                    elements.trimToSize();
+                leaf.elements.trimToSize();
+                if (leaf.pivots != null) {
+                    leaf.pivots.add(point);
+                } else {
+                    leaf.indexElements();
                 }
             }
-        } else {
-            if (center.getDistanceTo(point) <= threshold) {
-                return closer.add(point);
-            } else {
-                return farther.add(point);
-            }
         }
 
-        return prefix;
+        return leaf.prefix;
     }
 
     /**
@@ -334,15 +450,11 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
      * one of its children or {@code false} otherwise
      */
     public boolean contains(T point) {
-        if (isLeafNode()) {
-            return elements.contains(point);
-        } else {
-            if (center.getDistanceTo(point) <= threshold) {
-                return closer.contains(point);
-            } else {
-                return farther.contains(point);
-            }
+        VPNode<T> node = this;
+        while (!node.isLeafNode()) {
+            node = node.childFor(point);
         }
+        return node.elements.contains(point);
     }
 
     /**
@@ -352,11 +464,20 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
      * @return the number of elements in this node and its children
      */
     public int size() {
-        if (isLeafNode()) {
-            return elements.size();
-        } else {
-            return closer.size() + farther.size();
+        int size = 0;
+        ArrayDeque<VPNode<T>> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            VPNode<T> node = stack.pop();
+            VPNode<T> closer = node.closer;
+            if (closer == null) {
+                size += node.elements.size();
+            } else {
+                stack.push(node.farther);
+                stack.push(closer);
+            }
         }
+        return size;
     }
 
     /**
@@ -383,6 +504,19 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
 
         this.closer = null;
         this.farther = null;
+        indexElements();
+    }
+
+    /**
+     * Rebuilds the {@link PivotTable} of this leaf node's elements, or drops
+     * it if the leaf is too small for one to pay off.
+     */
+    private void indexElements() {
+        if (elements.size() >= PivotTable.MIN_ELEMENTS) {
+            pivots = new PivotTable<>(elements);
+        } else {
+            pivots = null;
+        }
     }
 
     /**
@@ -453,72 +587,177 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
         }
 
         /* Choose a center point and distance threshold (the median distance) */
-        if (center == null || ((ProteinSequence) center).getWord().equals("")) {
-            center = new ProteinSequence(elements[lower]);
+        chooseCenter(elements, lower, upper);
+
+        /* Each element's distance to the center is computed exactly once */
+        double[] distances = new double[upper - lower];
+        for (int i = lower; i < upper; ++i) {
+            distances[i - lower] = center.getDistanceTo(elements[i]);
         }
+        int partitionIndex = splitAtMedian(elements, distances, lower, upper);
 
-        /* Find the median element with selection algorithm at the middle pos */
-        int median = (lower + upper - 1) / 2;
-        nth_element(elements, lower, upper - 1, median, center);
+        long leftPrefix = prefix << 1;
+        long rightPrefix = leftPrefix + 1;
 
-        double medianDistance = center.getDistanceTo(elements[median]);
+        /* Partition the array */
+        closer = new VPNode<>(elements, lower,
+                partitionIndex, binSize, leftPrefix, this.depth + 1, selector);
+        farther = new VPNode<>(elements, partitionIndex,
+                upper, binSize, rightPrefix, this.depth + 1, selector);
 
-        /* Left subtree will contain elements <= the threshold. Make sure there
-           is at least one point further away than the threshold or this node
-           will have no right children. */
-        int partitionIndex = -1;
+        /* No longer a leaf nodes */
+        this.elements = null;
+        this.pivots = null;
+    }
 
-        for (int i = median + 1; i < upper; i++) {
-            if (center.getDistanceTo(elements[i]) > medianDistance) {
-                partitionIndex = i;
-                threshold = center.getDistanceTo(elements[i]);
-                /* Found one! Break free! */
-                break;
-            }
+    /**
+     * Partitions a subset of the given array into two child nodes like
+     * {@link #partition(VPPoint[], int, int)}, but computes the distances to
+     * the center in parallel, selects the median from those cached
+     * distances, and builds both children as fork/join tasks. This must be
+     * called from within a {@link java.util.concurrent.ForkJoinPool}.
+     * <p/>
+     * Elements at a distance of at most the threshold go to the closer
+     * child and the rest to the farther child, matching how points are
+     * routed by {@link #add(VPPoint)}.
+     *
+     * @throws PartitionException if no viable distance threshold exists
+     */
+    private void partitionInParallel(T[] elements, int lower, int upper,
+                                     int cutoff) throws PartitionException {
+        if (upper - lower < 2) {
+            throw new PartitionException("Cannot partition fewer" +
+                    " than two elements.");
         }
 
-        /* If no such point exists, lower the threshold until a point whose
-           distance is greater than the threshold found. If the median distance
-           is 0 then there is no such element. */
-        if (partitionIndex == -1) {
-            if (medianDistance != 0) {
-                for (int i = median; i > lower; i--) {
-                    if (center.getDistanceTo(elements[i]) < medianDistance) {
-                        partitionIndex = i;
-                        threshold = center.getDistanceTo(elements[i]);
+        chooseCenter(elements, lower, upper);
 
-                        break;
-                    }
-                }
+        double[] distances = new double[upper - lower];
+        new DistanceTask(center, elements, distances, lower, lower, upper)
+                .invoke();
 
-                /* Everything except the center has the same non-zero distance
-                  from the center, therefore partition the center by itself
-                  on the left (closer) and everything else on the right
-                  (further) */
-                if (partitionIndex == -1) {
-                    partitionIndex = lower + 1;
-                }
-            }
-        }
-
-        /* All elements have equals distance, no partitioning is possible */
-        if (partitionIndex == -1) {
-            throw new PartitionException(
-                    "No viable partition threshold found (all elements have" +
-                            " equal distance from center).");
-        }
+        int partitionIndex = splitAtMedian(elements, distances, lower, upper);
 
         long leftPrefix = prefix << 1;
         long rightPrefix = leftPrefix + 1;
 
-        /* Partition the array */
-        closer = new VPNode<>(elements, lower,
-                partitionIndex, binSize, leftPrefix, this.depth + 1);
-        farther = new VPNode<>(elements, partitionIndex,
-                upper, binSize, rightPrefix, this.depth + 1);
+        BuildTask<T> closerTask = new BuildTask<>(elements, lower,
+                partitionIndex, binSize, leftPrefix, depth + 1, cutoff,
+                selector);
+        BuildTask<T> fartherTask = new BuildTask<>(elements, partitionIndex,
+                upper, binSize, rightPrefix, depth + 1, cutoff, selector);
+        ForkJoinTask.invokeAll(closerTask, fartherTask);
+        closer = closerTask.join();
+        farther = fartherTask.join();
 
         /* No longer a leaf nodes */
         this.elements = null;
+        this.pivots = null;
+    }
+
+    /**
+     * Chooses this node's center with its vantage point selector and moves
+     * the chosen element to the front of the range.
+     */
+    private void chooseCenter(T[] elements, int lower, int upper) {
+        int vantagePoint = selector.select(elements, lower, upper);
+        T element = elements[lower];
+        elements[lower] = elements[vantagePoint];
+        elements[vantagePoint] = element;
+        center = new ProteinSequence(elements[lower]);
+    }
+
+    /**
+     * Chooses this node's distance threshold as the median of the cached
+     * distances of {@code elements[lower..upper)} and rearranges the elements
+     * (and their distances) so that those at a distance of at most the
+     * threshold precede the rest. If no element is farther than the median,
+     * the threshold is lowered to the largest distance below the median.
+     *
+     * @param distances the distances to the center, where
+     *                  {@code distances[i - lower]} belongs to
+     *                  {@code elements[i]}
+     * @return the index of the first element farther than the threshold
+     * @throws PartitionException if all of the elements are equally distant
+     *                            from the center
+     */
+    private int splitAtMedian(T[] elements, double[] distances, int lower,
+                              int upper) throws PartitionException {
+        int median = (lower + upper - 1) / 2;
+        select(elements, distances, lower, lower, upper - 1, median);
+        double medianDistance = distances[median - lower];
+
+        /* Everything after the median is at least as far as the median;
+           move the ties to the closer side and split after them. */
+        int partitionIndex = median + 1;
+        for (int i = median + 1; i < upper; ++i) {
+            if (distances[i - lower] <= medianDistance) {
+                swap(elements, distances, lower, i, partitionIndex++);
+            }
+        }
+        threshold = medianDistance;
+
+        /* Nothing is farther than the median, so split below it instead */
+        if (partitionIndex == upper) {
+            partitionIndex = lower;
+            threshold = Double.NEGATIVE_INFINITY;
+            for (int i = lower; i < upper; ++i) {
+                double distance = distances[i - lower];
+                if (distance < medianDistance) {
+                    threshold = Math.max(threshold, distance);
+                    swap(elements, distances, lower, i, partitionIndex++);
+                }
+            }
+            if (partitionIndex == lower) {
+                throw new PartitionException(
+                        "No viable partition threshold found (all elements " +
+                                "have equal distance from center).");
+            }
+        }
+        return partitionIndex;
+    }
+
+    /**
+     * Rearranges {@code elements[left..right]} (inclusive) and their cached
+     * distances so that position n holds the element with the n'th smallest
+     * distance, with no larger distances before it and no smaller ones after
+     * it. {@code distances[i - base]} is the distance of {@code elements[i]}.
+     */
+    static <T> void select(T[] elements, double[] distances, int base,
+                           int left, int right, int n) {
+        while (left < right) {
+            double pivot = distances[((left + right) >>> 1) - base];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (distances[i - base] < pivot) {
+                    i++;
+                }
+                while (distances[j - base] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(elements, distances, base, i++, j--);
+                }
+            }
+            if (n <= j) {
+                right = j;
+            } else if (n >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    static <T> void swap(T[] elements, double[] distances, int base,
+                         int i, int j) {
+        T element = elements[i];
+        elements[i] = elements[j];
+        elements[j] = element;
+        double distance = distances[i - base];
+        distances[i - base] = distances[j - base];
+        distances[j - base] = distance;
     }
 
     /**
@@ -538,11 +777,21 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
      * elements or {@code false} otherwise
      */
     public boolean isEmpty() {
-        if (isLeafNode()) {
-            return elements.isEmpty();
-        } else {
-            return (closer.isEmpty() && farther.isEmpty());
+        ArrayDeque<VPNode<T>> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            VPNode<T> node = stack.pop();
+            VPNode<T> closer = node.closer;
+            if (closer == null) {
+                if (!node.elements.isEmpty()) {
+                    return false;
+                }
+            } else {
+                stack.push(node.farther);
+                stack.push(closer);
+            }
         }
+        return true;
     }
 
     /**
@@ -563,49 +812,280 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
 
     /**
      * Populates the given search result set with elements close to the query
-     * point. If this node is a leaf node, all of its contained elements are
-     * "offered" to the search result set as potential nearest neighbors. If
-     * this is not a leaf node, one or both of its children are searched
-     * recursively.
+     * point. The search is best-first: subtrees wait in a priority queue
+     * keyed by the lower bound on the distance from the query to any point
+     * they contain, and the most promising one is always expanded next. The
+     * search ends as soon as no pending subtree can improve on the results.
      *
      * @param queryPoint the point for which to find nearby neighbors
      * @param results    the result set to which to offer elements
      */
     public void getNearestNeighbors(final VPPoint queryPoint,
                                     BoundedPriorityQueue<T> results) {
+        PriorityQueue<PendingNode<T>> pending = new PriorityQueue<>();
+        pending.add(new PendingNode<>(this, 0.0));
 
-        /* If this is a leaf node, offer all elements */
-        if (isLeafNode()) {
-            results.addAll(elements);
-        } else {
-            /* Descend through the vptree recursively */
-            boolean searchedCloserFirst;
-            double distanceToCenter = center.getDistanceTo(queryPoint);
+        while (!pending.isEmpty()) {
+            PendingNode<T> next = pending.poll();
+            if (next.bound > results.getPruningDistance()) {
+                break;
+            }
+            /* An approximate search always reaches its first leaf */
+            if (results.getLeavesVisited() > 0 && results.isExhausted()) {
+                break;
+            }
 
-            if (distanceToCenter <= threshold) {
-                closer.getNearestNeighbors(queryPoint, results);
-                searchedCloserFirst = true;
-            } else {
-                farther.getNearestNeighbors(queryPoint, results);
-                searchedCloserFirst = false;
+            VPNode<T> node = next.node;
+            VPNode<T> closer = node.closer;
+            VPNode<T> farther = node.farther;
+            if (closer == null || farther == null) {
+                /* Offer all elements that the pivot table cannot rule out */
+                if (node.pivots != null) {
+                    node.pivots.search(queryPoint, node.elements, results);
+                } else {
+                    results.addAll(node.elements);
+                }
+                results.countLeafVisit();
+                continue;
             }
 
-            /* Decide to search whichever child  wasn't searched on the
-              way down */
-            if (searchedCloserFirst) {
-                double distanceToThreshold = threshold - distanceToCenter;
+            double distanceToCenter = node.center.getDistanceTo(queryPoint);
+            results.countDistanceComputation();
+            pending.add(new PendingNode<>(closer, Math.max(next.bound,
+                    distanceToCenter - node.threshold)));
+            pending.add(new PendingNode<>(farther, Math.max(next.bound,
+                    node.threshold - distanceToCenter)));
+        }
+    }
+
+    /**
+     * A subtree waiting to be searched, along with a lower bound on the
+     * distance from the query to any of its points.
+     */
+    static final class PendingNode<T extends VPPoint>
+            implements Comparable<PendingNode<T>> {
+        final VPNode<T> node;
+        final double bound;
+
+        PendingNode(VPNode<T> node, double bound) {
+            this.node = node;
+            this.bound = bound;
+        }
+
+        @Override
+        public int compareTo(PendingNode<T> other) {
+            return Double.compare(bound, other.bound);
+        }
+    }
 
-                if (results.getFurthestDistance() > distanceToThreshold) {
-                    farther.getNearestNeighbors(queryPoint, results);
+    /**
+     * Searches for the nearest neighbors of several query points in a single
+     * walk of this node and its children. Each query keeps its own result
+     * set, and so its own pruning bound, but the queries that reach a node
+     * are handled together: each child is entered at most twice per visit of
+     * its parent, once for the queries that descend into it first and once
+     * for the queries that come back to it, rather than once per query.
+     *
+     * @param queryPoints the points for which to find nearby neighbors
+     * @param results     the result set of each query point, by index
+     * @param active      the indices of the queries that reach this node; only
+     *                    the first {@code count} entries are used
+     * @param count       the number of queries that reach this node
+     */
+    void getNearestNeighbors(VPPoint[] queryPoints,
+                             BoundedPriorityQueue<T>[] results,
+                             int[] active, int count) {
+        ArrayDeque<BatchVisit<T>> stack = new ArrayDeque<>();
+        stack.push(new BatchVisit<>(this, active, count));
+        while (!stack.isEmpty()) {
+            BatchVisit<T> visit = stack.peek();
+            VPNode<T> node = visit.node;
+            switch (visit.step++) {
+                case 0:
+                    if (visit.count == 0) {
+                        stack.pop();
+                    } else if (visit.closer == null
+                            || visit.farther == null) {
+                        node.offerToAll(queryPoints, results, visit.active,
+                                visit.count);
+                        stack.pop();
+                    } else {
+                        /* Queries that fall inside the threshold descend
+                          into the closer child first */
+                        visit.split(queryPoints, results);
+                        stack.push(new BatchVisit<>(visit.closer,
+                                visit.order, visit.nCloser));
+                    }
+                    break;
+
+                case 1: {
+                    /* The farther child serves both the queries that start
+                      there and the closer-first queries whose bound still
+                      crosses the threshold */
+                    int[] farther = new int[visit.count];
+                    int nFartherVisit = 0;
+                    for (int i = visit.nCloser; i < visit.count; ++i) {
+                        farther[nFartherVisit++] = visit.order[i];
+                    }
+                    for (int i = 0; i < visit.nCloser; ++i) {
+                        int q = visit.order[i];
+                        if (!results[q].isExhausted()
+                                && results[q].getPruningDistance()
+                                > node.threshold - visit.distances[i]) {
+                            farther[nFartherVisit++] = q;
+                        }
+                    }
+                    stack.push(new BatchVisit<>(visit.farther, farther,
+                            nFartherVisit));
+                    break;
                 }
+
+                case 2: {
+                    /* Finally, return to the closer child for farther-first
+                      queries. The closer child is done with the front of
+                      the order, so the returning queries are packed there */
+                    int nReturning = 0;
+                    for (int i = visit.nCloser; i < visit.count; ++i) {
+                        int q = visit.order[i];
+                        if (!results[q].isExhausted()
+                                && visit.distances[i] - node.threshold
+                                <= results[q].getPruningDistance()) {
+                            visit.order[nReturning++] = q;
+                        }
+                    }
+                    stack.push(new BatchVisit<>(visit.closer,
+                            visit.order, nReturning));
+                    break;
+                }
+
+                default:
+                    stack.pop();
+            }
+        }
+    }
+
+    /**
+     * Offers the elements of this leaf node to the result set of each of the
+     * given queries.
+     */
+    private void offerToAll(VPPoint[] queryPoints,
+                            BoundedPriorityQueue<T>[] results,
+                            int[] active, int count) {
+        for (int i = 0; i < count; ++i) {
+            int q = active[i];
+            if (pivots != null) {
+                pivots.search(queryPoints[q], elements, results[q]);
             } else {
-                double distanceToThreshold = distanceToCenter - threshold;
+                results[q].addAll(elements);
+            }
+            results[q].countLeafVisit();
+        }
+    }
+
+    /**
+     * The state of a batched search at one node: which queries reached it,
+     * how they split at the threshold, and how far through its children the
+     * search has got.
+     */
+    private static final class BatchVisit<T extends VPPoint> {
+        final VPNode<T> node;
+        final VPNode<T> closer;
+        final VPNode<T> farther;
+        final int[] active;
+        final int count;
+        int step;
+
+        /* The queries that search the closer child first, followed by
+          those that search the farther child first, and the distance from
+          each to the center */
+        int[] order;
+        double[] distances;
+        int nCloser;
+
+        BatchVisit(VPNode<T> node, int[] active, int count) {
+            this.node = node;
+            this.closer = node.closer;
+            this.farther = node.farther;
+            this.active = active;
+            this.count = count;
+        }
 
-                if (distanceToThreshold <= results.getFurthestDistance()) {
-                    closer.getNearestNeighbors(queryPoint, results);
+        /* Measures each query against the center and sorts the queries by
+          the child they search first */
+        void split(VPPoint[] queryPoints, BoundedPriorityQueue<T>[] results) {
+            order = new int[count];
+            distances = new double[count];
+            int next = count;
+            for (int i = 0; i < count; ++i) {
+                int q = active[i];
+                double distance = node.center.getDistanceTo(queryPoints[q]);
+                results[q].countDistanceComputation();
+                int slot = distance <= node.threshold ? nCloser++ : --next;
+                order[slot] = q;
+                distances[slot] = distance;
+            }
+        }
+    }
+
+    /**
+     * Passes every element of this node and its children within the given
+     * radius of the query point to the visitor. Children are pruned the same
+     * way as in a nearest neighbor search, with the radius taking the place
+     * of the furthest result.
+     *
+     * @param queryPoint the center of the search
+     * @param radius     the largest distance (inclusive) from the query point
+     * @param visitor    the visitor to pass matching elements to
+     * @return {@code false} if the visitor stopped the search or
+     * {@code true} otherwise
+     */
+    public boolean getPointsWithinRange(final VPPoint queryPoint,
+                                        double radius,
+                                        PointVisitor<T> visitor) {
+        ArrayDeque<VPNode<T>> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            VPNode<T> node = stack.pop();
+            VPNode<T> closer = node.closer;
+            VPNode<T> farther = node.farther;
+            if (closer == null || farther == null) {
+                if (!node.visitRange(queryPoint, radius, visitor)) {
+                    return false;
                 }
+                continue;
+            }
+
+            /* The closer child is pushed last so it is searched first */
+            double distanceToCenter = node.center.getDistanceTo(queryPoint);
+            if (distanceToCenter + radius > node.threshold) {
+                stack.push(farther);
+            }
+            if (distanceToCenter - radius <= node.threshold) {
+                stack.push(closer);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Passes the elements of this leaf node within the given radius of the
+     * query point to the visitor.
+     *
+     * @return {@code false} if the visitor stopped the search or
+     * {@code true} otherwise
+     */
+    private boolean visitRange(VPPoint queryPoint, double radius,
+                               PointVisitor<T> visitor) {
+        if (pivots != null) {
+            return pivots.searchRange(queryPoint, elements, radius, visitor);
+        }
+        for (T element : elements) {
+            double distance = element.getDistanceTo(queryPoint);
+            if (distance <= radius && !visitor.visit(element, distance)) {
+                return false;
             }
         }
+        return true;
     }
 
     /**
@@ -632,22 +1112,17 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
      * @return the number of elements added to the array
      */
     public int addPointsToArray(Object[] array, int offset) {
-        if (isLeafNode()) {
-            if (isEmpty()) {
-                return 0;
-            }
-
-            System.arraycopy(elements.toArray(), 0, array,
-                    offset, elements.size());
-
-            return elements.size();
-        } else {
-            int nAddedFromCloser = closer.addPointsToArray(array, offset);
-            int nAddedFromFarther = farther.addPointsToArray(array,
-                    offset + nAddedFromCloser);
-
-            return nAddedFromCloser + nAddedFromFarther;
+        List<VPNode<T>> leaves = new ArrayList<>();
+        gatherLeafNodes(leaves);
+
+        int added = 0;
+        for (VPNode<T> leaf : leaves) {
+            Object[] points = leaf.elements.toArray();
+            System.arraycopy(points, 0, array, offset + added,
+                    points.length);
+            added += points.length;
         }
+        return added;
     }
 
     /**
@@ -662,17 +1137,12 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
      */
     public void findNodeContainingPoint(final VPPoint p,
                                         final Deque<VPNode<T>> stack) {
-        // First things first; add ourselves to the stack.
-        stack.push(this);
-
-        // If this is a leaf node, we don't need to do anything else. If
-        // it's not a leaf node, recurse!
-        if (!isLeafNode()) {
-            if (center.getDistanceTo(p) <= threshold) {
-                closer.findNodeContainingPoint(p, stack);
-            } else {
-                farther.findNodeContainingPoint(p, stack);
-            }
+        /* Push each node on the path, down to the leaf node */
+        VPNode<T> node = this;
+        stack.push(node);
+        while (!node.isLeafNode()) {
+            node = node.childFor(p);
+            stack.push(node);
         }
     }
 
@@ -687,13 +1157,17 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
      */
     public boolean remove(T point) {
         if (isLeafNode()) {
-            boolean pointRemoved = elements.remove(point);
-
-            if (pointRemoved) {
-                elements.trimToSize();
+            int index = elements.indexOf(point);
+            if (index < 0) {
+                return false;
             }
 
-            return pointRemoved;
+            elements.remove(index);
+            elements.trimToSize();
+            if (pivots != null) {
+                pivots.remove(index);
+            }
+            return true;
         } else {
             throw new IllegalStateException("Cannot remove elements from" +
                     " a non-leaf node.");
@@ -712,21 +1186,206 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
                     "to absorb.");
         }
 
-        elements = new ArrayList<>(size());
+        /* Collect the leaves in the same closer-then-farther order as the
+          children would absorb them one level at a time */
+        List<VPNode<T>> leaves = new ArrayList<>();
+        gatherLeafNodes(leaves);
+        int size = 0;
+        for (VPNode<T> leaf : leaves) {
+            size += leaf.elements.size();
+        }
+        elements = new ArrayList<>(size);
+        for (VPNode<T> leaf : leaves) {
+            elements.addAll(leaf.elements);
+        }
+
+        closer = null;
+        farther = null;
+        indexElements();
+    }
+
+    /**
+     * Constructs a leaf node that replaces the given leaf with a new set of
+     * elements, keeping its center, prefix and depth.
+     */
+    private VPNode(VPNode<T> leaf, ArrayList<T> elements,
+                   PivotTable<T> pivots) {
+        this.binSize = leaf.binSize;
+        this.selector = leaf.selector;
+        this.center = leaf.center;
+        this.prefix = leaf.prefix;
+        this.depth = leaf.depth;
+        this.elements = elements;
+        this.pivots = pivots;
+    }
+
+    /**
+     * Returns a new leaf node holding the given elements in place of this
+     * node's subtree, keeping this node's center, prefix and depth. This
+     * node is left untouched.
+     *
+     * @param elements the elements of the new leaf
+     * @return the new leaf node
+     */
+    VPNode<T> copyAsLeaf(ArrayList<T> elements) {
+        elements.trimToSize();
+        VPNode<T> leaf = new VPNode<>(this, elements, null);
+        leaf.indexElements();
+        return leaf;
+    }
 
-        if (!closer.isLeafNode()) {
-            closer.absorbChildren();
+    /**
+     * Returns the child of this non-leaf node that contains (or would
+     * contain) the given point.
+     */
+    VPNode<T> childFor(VPPoint point) {
+        if (center.getDistanceTo(point) <= threshold) {
+            return closer;
+        } else {
+            return farther;
+        }
+    }
+
+    /**
+     * Tests whether the given node is currently a child of this node.
+     */
+    boolean hasChild(VPNode<T> node) {
+        return closer == node || farther == node;
+    }
+
+    /**
+     * Replaces one of this node's children with a new subtree. The new
+     * subtree must be fully built; it becomes visible to readers atomically.
+     *
+     * @param child       the current child to replace
+     * @param replacement the subtree to put in its place
+     */
+    void replaceChild(VPNode<T> child, VPNode<T> replacement) {
+        if (closer == child) {
+            closer = replacement;
+        } else if (farther == child) {
+            farther = replacement;
+        } else {
+            throw new IllegalArgumentException("Not a child of this node.");
         }
+    }
 
-        if (!farther.isLeafNode()) {
-            farther.absorbChildren();
+    /**
+     * Returns a copy of this leaf node with the given point added, leaving
+     * this node untouched. If the copy would be over capacity, it is
+     * partitioned into a new subtree instead.
+     *
+     * @param point the point to add
+     * @return the leaf or subtree that replaces this node
+     * @throws IllegalStateException if this node is not a leaf node
+     */
+    @SuppressWarnings("unchecked")
+    VPNode<T> copyWith(T point) {
+        if (!isLeafNode()) {
+            throw new IllegalStateException("Cannot copy elements of a" +
+                    " non-leaf node.");
         }
 
-        elements.addAll(closer.getElements());
-        elements.addAll(farther.getElements());
+        if (elements.size() + 1 > binSize) {
+            T[] pointArray = (T[]) Array.newInstance(point.getClass(),
+                    elements.size() + 1);
+            elements.toArray(pointArray);
+            pointArray[elements.size()] = point;
+            return new VPNode<>(pointArray, 0, pointArray.length, binSize,
+                    prefix, depth, selector);
+        }
 
-        closer = null;
-        farther = null;
+        ArrayList<T> copy = new ArrayList<>(elements.size() + 1);
+        copy.addAll(elements);
+        copy.add(point);
+        VPNode<T> leaf = new VPNode<>(this, copy, null);
+        if (pivots != null) {
+            leaf.pivots = pivots.copyWith(point);
+        } else {
+            leaf.indexElements();
+        }
+        return leaf;
+    }
+
+    /**
+     * Returns a copy of this leaf node without the given point, leaving this
+     * node untouched.
+     *
+     * @param point the point to remove
+     * @return the leaf that replaces this node, or {@code null} if this node
+     * does not contain the point
+     * @throws IllegalStateException if this node is not a leaf node
+     */
+    VPNode<T> copyWithout(T point) {
+        if (!isLeafNode()) {
+            throw new IllegalStateException("Cannot copy elements of a" +
+                    " non-leaf node.");
+        }
+
+        int index = elements.indexOf(point);
+        if (index < 0) {
+            return null;
+        }
+        ArrayList<T> copy = new ArrayList<>(elements);
+        copy.remove(index);
+        return new VPNode<>(this, copy,
+                pivots == null ? null : pivots.copyWithout(index));
+    }
+
+    /**
+     * Marks this node and the non-leaf nodes below it as replaced by a
+     * rebuilt subtree. Writers that reach a leaf through a retired node must
+     * find the leaf again from the root.
+     */
+    void retire() {
+        ArrayDeque<VPNode<T>> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            VPNode<T> node = stack.pop();
+            node.retired = true;
+            VPNode<T> closer = node.closer;
+            VPNode<T> farther = node.farther;
+            if (closer != null && !closer.isLeafNode()) {
+                stack.push(closer);
+            }
+            if (farther != null && !farther.isLeafNode()) {
+                stack.push(farther);
+            }
+        }
+    }
+
+    /**
+     * Tests whether this node has been replaced by a rebuilt subtree.
+     */
+    boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * Returns the number of levels in this node's subtree; a leaf node has a
+     * height of one.
+     *
+     * @return the height of this subtree
+     */
+    public int getHeight() {
+        int height = 0;
+        ArrayDeque<VPNode<T>> stack = new ArrayDeque<>();
+        ArrayDeque<Integer> levels = new ArrayDeque<>();
+        stack.push(this);
+        levels.push(1);
+        while (!stack.isEmpty()) {
+            VPNode<T> node = stack.pop();
+            int level = levels.pop();
+            height = Math.max(height, level);
+            VPNode<T> closer = node.closer;
+            if (closer != null) {
+                stack.push(node.farther);
+                levels.push(level + 1);
+                stack.push(closer);
+                levels.push(level + 1);
+            }
+        }
+        return height;
     }
 
     /**
@@ -736,11 +1395,17 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
      * @param leafNodes the list to populate with leaf nodes
      */
     public void gatherLeafNodes(List<VPNode<T>> leafNodes) {
-        if (isLeafNode()) {
-            leafNodes.add(this);
-        } else {
-            closer.gatherLeafNodes(leafNodes);
-            farther.gatherLeafNodes(leafNodes);
+        ArrayDeque<VPNode<T>> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            VPNode<T> node = stack.pop();
+            VPNode<T> closer = node.closer;
+            if (closer == null) {
+                leafNodes.add(node);
+            } else {
+                stack.push(node.farther);
+                stack.push(closer);
+            }
         }
     }
 
@@ -766,13 +1431,14 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
 
 
     /**
-     * Implementation of the selection algorithm. This
-     * method partitions the {@code elements} array from {@code lower} to
-     * {@code upper} around n such that the values preceding n are less than it
-     * and values following are greater. This is a more efficient way to find
-     * the median of a collection than sorting and selecting the middle element.
-     * The runtime is O(n) in all cases. This algorithm is run
-     * <strong>in place</strong> and therefore will modify the elements array.
+     * Implementation of the selection algorithm. This method partitions the
+     * {@code elements} array from {@code lower} to {@code upper} around n
+     * such that the elements preceding n are no farther from the vantage
+     * point than it and the elements following are no closer. This is a
+     * more efficient way to find the median of a collection than sorting and
+     * selecting the middle element; each distance is computed once and the
+     * expected runtime is O(n). This algorithm is run <strong>in
+     * place</strong> and therefore will modify the elements array.
      *
      * @param elements the array to perform the selection algorithm on
      * @param lower    the lower bound (inclusive) of the range to be
@@ -780,6 +1446,7 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
      * @param upper    the upper bound (inclusive) of the range to be
      *                 partitioned
      * @param n        the position to partition around
+     * @param vp       the vantage point distances are measured from
      * @return the index of the n'th element
      */
     public int nth_element(T[] elements, int lower,
@@ -788,74 +1455,100 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
         if (elements == null || upper < n || lower > n) {
             throw new IllegalArgumentException();
         }
-        int medianDist = (int) elements[n].getDistanceTo(vp);
-        while (lower <= upper) {
-            while (elements[lower].getDistanceTo(vp) < medianDist) {
-                lower++;
-            }
-            while (elements[upper].getDistanceTo(vp) > medianDist) {
-                upper--;
-            }
-            if (lower <= upper) {
-                T temp = elements[lower];
-                elements[lower] = elements[upper];
-                elements[upper] = temp;
-
-                lower++;
-                upper--;
-            }
+        double[] distances = new double[upper - lower + 1];
+        for (int i = lower; i <= upper; ++i) {
+            distances[i - lower] = vp.getDistanceTo(elements[i]);
         }
+        select(elements, distances, lower, lower, upper, n);
         return n;
     }
 
     public String generateDot(int count) {
-        if (isLeafNode()) {
-            if (elements.size() < 1) {
-                return "";
-            }
-            String node = "\tstruct" + (count) + " [shape=record,label=\""
-                    + Long.toBinaryString(prefix) + "| {";
-//            for (int i = 0; i < elements.size() - 2; ++i) {
-//                node += elements.get(i) + "|";
-//            }
-//            node += elements.get(size() - 1) + "}\"]\n";
-            node += elements.size() + "}\"]\n";
-            return node;
-        } else {
-            int left = (count * 2) + 1;
-            int right = left + 1;
-            String node = "\tstruct" + (count) + " [label=\""
-                    //+ Long.toBinaryString(prefix) + "|"
-                    + prefix + "|"
-                    + String.valueOf(threshold) + " \"]\n";
-            node += closer.generateDot(left);
-            node += farther.generateDot(right);
-            node += "\tstruct" + count + " -- struct" + (left) + "\n";
-            node += "\tstruct" + count + " -- struct" + (right) + "\n";
-            return node;
+        StringBuilder dot = new StringBuilder();
+
+        /* Holds nodes still to be written, or the edge lines that close off
+          a non-leaf node once both of its subtrees have been written */
+        ArrayDeque<Object> stack = new ArrayDeque<>();
+        ArrayDeque<Integer> counts = new ArrayDeque<>();
+        stack.push(this);
+        counts.push(count);
+        while (!stack.isEmpty()) {
+            Object next = stack.pop();
+            int current = counts.pop();
+            if (next instanceof String) {
+                dot.append((String) next);
+                continue;
+            }
+
+            @SuppressWarnings("unchecked")
+            VPNode<T> node = (VPNode<T>) next;
+            if (node.isLeafNode()) {
+                if (node.elements.size() < 1) {
+                    continue;
+                }
+                dot.append("\tstruct").append(current)
+                        .append(" [shape=record,label=\"")
+                        .append(Long.toBinaryString(node.prefix))
+                        .append("| {")
+                        .append(node.elements.size()).append("}\"]\n");
+            } else {
+                int left = (current * 2) + 1;
+                int right = left + 1;
+                dot.append("\tstruct").append(current).append(" [label=\"")
+                        .append(node.prefix).append("|")
+                        .append(String.valueOf(node.threshold))
+                        .append(" \"]\n");
+                stack.push("\tstruct" + current + " -- struct" + left + "\n"
+                        + "\tstruct" + current + " -- struct" + right + "\n");
+                counts.push(current);
+                stack.push(node.farther);
+                counts.push(right);
+                stack.push(node.closer);
+                counts.push(left);
+            }
         }
+        return dot.toString();
     }
 
-    private boolean stopSerial = false;
-
+    /**
+     * Writes this node and its subtree in pre-order: each node's header,
+     * then its closer and farther subtrees, then the rest of the node.
+     */
     @Override
     public void serialize(SerializationOutputStream out) throws IOException {
-        if (stopSerial) {
-            return;
-        }
-        if (isLeafNode()) {
-            out.writeBoolean(true);
-            stopSerial = true;
-        } else {
-            out.writeBoolean(false);
-        }
-        out.writeSerializable(center);
-        out.writeDouble(threshold);
-        if (!isLeafNode()) {
-            out.writeSerializable(closer);
-            out.writeSerializable(farther);
+        /* Holds nodes whose header is still to be written, or nodes
+          (wrapped in a single-element array) whose subtrees have been
+          written and which only need the rest of the node */
+        ArrayDeque<Object> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            Object next = stack.pop();
+            if (next instanceof VPNode[]) {
+                ((VPNode<?>[]) next)[0].serializeTail(out);
+                continue;
+            }
+
+            @SuppressWarnings("unchecked")
+            VPNode<T> node = (VPNode<T>) next;
+            VPNode<T> closer = node.closer;
+            VPNode<T> farther = node.farther;
+            boolean leaf = closer == null;
+            out.writeBoolean(leaf);
+            out.writeSerializable(node.center);
+            out.writeDouble(node.threshold);
+            if (leaf) {
+                node.serializeTail(out);
+            } else {
+                stack.push(new VPNode<?>[]{node});
+                stack.push(farther);
+                stack.push(closer);
+            }
         }
+    }
 
+    private void serializeTail(SerializationOutputStream out)
+            throws IOException {
+        ArrayList<T> elements = this.elements;
         if (elements != null) {
             out.writeInt(elements.size());
             for (T t : elements) {
@@ -868,24 +1561,88 @@ public class VPNode<T extends VPPoint> implements ByteSerializable {
         out.writeLong(prefix);
     }
 
+    /**
+     * Reads a node and its subtree from a stream. Vantage point selection
+     * policies are not serialized, so the node chooses its vantage points
+     * with {@link VantagePointStrategy#FIRST} when it is repartitioned.
+     *
+     * @see #VPNode(SerializationInputStream, VantagePointSelector)
+     */
     @Deserialize
     public VPNode(SerializationInputStream in) throws IOException {
-        boolean stop = in.readBoolean();
-        this.center = new ProteinSequence(in);
-        this.threshold = in.readDouble();
-        if (stop) {
-            closer = null;
-            farther = null;
-        } else {
-            this.closer = new VPNode<>(in);
-            this.farther = new VPNode<>(in);
+        this(in, VantagePointStrategy.FIRST);
+    }
 
+    /**
+     * Reads a node and its subtree from a stream, choosing vantage points
+     * with the given selector when any of its nodes is repartitioned.
+     *
+     * @param in       the stream to read the node from
+     * @param selector the vantage point selection policy for this node and
+     *                 its children
+     */
+    public VPNode(SerializationInputStream in, VantagePointSelector selector)
+            throws IOException {
+        this.selector = selector;
+        if (readHead(in)) {
+            readTail(in);
+            return;
+        }
+
+        /* Every node on the stack is a non-leaf node still missing its
+          children or the rest of its fields */
+        ArrayDeque<VPNode<T>> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            VPNode<T> node = stack.peek();
+            if (node.closer != null && node.farther != null) {
+                node.readTail(in);
+                stack.pop();
+                continue;
+            }
+
+            VPNode<T> child = new VPNode<>(selector);
+            boolean leaf = child.readHead(in);
+            if (node.closer == null) {
+                node.closer = child;
+            } else {
+                node.farther = child;
+            }
+            if (leaf) {
+                child.readTail(in);
+            } else {
+                stack.push(child);
+            }
         }
+    }
+
+    /**
+     * Constructs a node whose fields are about to be read from a stream.
+     */
+    private VPNode(VantagePointSelector selector) {
+        this.selector = selector;
+    }
 
+    /* Reads the fields written before a node's subtrees, returning whether
+      the node is a leaf */
+    private boolean readHead(SerializationInputStream in) throws IOException {
+        boolean leaf = in.readBoolean();
+        this.center = new ProteinSequence(in);
+        this.threshold = in.readDouble();
+        return leaf;
+    }
+
+    /* Reads the fields written after a node's subtrees */
+    @SuppressWarnings("unchecked")
+    private void readTail(SerializationInputStream in) throws IOException {
         int numElements = in.readInt();
-        this.elements = new ArrayList<>();
+        ArrayList<T> elements = new ArrayList<>(numElements);
         for (int i = 0; i < numElements; ++i) {
-            this.elements.add((T) new ProteinSequence(in));
+            elements.add((T) new ProteinSequence(in));
+        }
+        this.elements = elements;
+        if (isLeafNode()) {
+            indexElements();
         }
         this.binSize = in.readInt();
         this.prefix = in.readLong();
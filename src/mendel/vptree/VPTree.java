@@ -31,11 +31,18 @@ import mendel.serialize.SerializationOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 
 public class VPTree<E extends VPPoint> implements ByteSerializable {
@@ -45,9 +52,35 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
      */
     public static final int DEFAULT_BIN_SIZE = 32;
 
+    /**
+     * The default size ({@value} points) below which a parallel bulk build
+     * partitions sequentially.
+     */
+    public static final int DEFAULT_PARALLEL_CUTOFF = 8192;
+
+    /**
+     * The fraction of a subtree's points ({@value}) beyond which one child
+     * holding them marks the subtree as unbalanced.
+     */
+    public static final double REBALANCE_RATIO = 0.8;
+
+    /**
+     * Subtrees of fewer than this many leaves' worth of points ({@value})
+     * are never rebuilt by {@link #rebalance()}.
+     */
+    public static final int REBALANCE_MIN_LEAVES = 4;
+
     protected final int binSize;
 
-    protected VPNode<E> root;
+    protected final VantagePointSelector selector;
+
+    protected volatile VPNode<E> root;
+
+    /**
+     * The number of points in this vp-tree, maintained as points are added
+     * and removed so that {@link #size()} does not have to walk the tree.
+     */
+    protected final AtomicInteger count = new AtomicInteger();
 
     /**
      * Constructs a new, empty vp-tree with a default node capacity.
@@ -63,12 +96,26 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
      *                        of the vp-tree
      */
     public VPTree(int nodeCapacity) {
+        this(nodeCapacity, VantagePointStrategy.FIRST);
+    }
+
+    /**
+     * Constructs a new, empty vp-tree with the specified node capacity and
+     * vantage point selection policy.
+     *
+     * @param nodeCapacity  the maximum number of points to store in a leaf node
+     *                        of the vp-tree
+     * @param selector  the policy used to choose the vantage point of each
+     *                    node when it is partitioned
+     */
+    public VPTree(int nodeCapacity, VantagePointSelector selector) {
         if(nodeCapacity < 1) {
             throw new IllegalArgumentException("Node capacity must be " +
                     "greater than zero.");
         }
-        this.root = new VPNode<E>(nodeCapacity, 1, 0);
+        this.root = new VPNode<E>(nodeCapacity, 1, 0, selector);
         this.binSize = nodeCapacity;
+        this.selector = selector;
     }
 
     /**
@@ -92,18 +139,107 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
      *                        vp-tree should contain
      */
     public VPTree(Collection<? extends VPPoint> points, int nodeCapacity) {
+        this(points, nodeCapacity, VantagePointStrategy.FIRST);
+    }
+
+    /**
+     * Constructs a new vp-tree that contains (and indexes) all of the points in
+     * the given collection and has leaf nodes with the given point capacity,
+     * choosing vantage points with the given policy.
+     *
+     * @param points  the points to use to populate this vp-tree
+     * @param nodeCapacity  the largest number of points any leaf node of the
+     *                        vp-tree should contain
+     * @param selector  the policy used to choose the vantage point of each
+     *                    node when it is partitioned
+     */
+    public VPTree(Collection<? extends VPPoint> points, int nodeCapacity,
+                  VantagePointSelector selector) {
         if(nodeCapacity < 1) {
             throw new IllegalArgumentException("Node capacity must be" +
                     " greater than zero.");
         }
         this.binSize = nodeCapacity;
+        this.selector = selector;
 
         if(!points.isEmpty()) {
             E[] pointArray = points.toArray((E[])Array.newInstance(
                     points.iterator().next().getClass(), 0));
 
             this.root = new VPNode<>(pointArray, 0, pointArray.length,
-                    this.binSize, 1, 0);
+                    this.binSize, 1, 0, selector);
+            this.count.set(pointArray.length);
+        }
+    }
+
+    /**
+     * Constructs a new vp-tree that contains (and indexes) all of the points in
+     * the given collection, building it in parallel on the given fork/join
+     * pool. Subtrees of fewer than {@link #DEFAULT_PARALLEL_CUTOFF} points are
+     * built sequentially.
+     *
+     * @param points  the points to use to populate this vp-tree
+     * @param nodeCapacity  the largest number of points any leaf node of the
+     *                        vp-tree should contain
+     * @param pool  the pool to build the vp-tree on
+     */
+    public VPTree(Collection<? extends VPPoint> points, int nodeCapacity,
+                  ForkJoinPool pool) {
+        this(points, nodeCapacity, pool, DEFAULT_PARALLEL_CUTOFF);
+    }
+
+    /**
+     * Constructs a new vp-tree that contains (and indexes) all of the points in
+     * the given collection, building it in parallel on the given fork/join
+     * pool. The distances from each vantage point are computed in parallel
+     * and the two subtrees of a node are built as separate tasks.
+     *
+     * @param points  the points to use to populate this vp-tree
+     * @param nodeCapacity  the largest number of points any leaf node of the
+     *                        vp-tree should contain
+     * @param pool  the pool to build the vp-tree on
+     * @param cutoff  the number of points below which subtrees are built
+     *                  sequentially
+     */
+    public VPTree(Collection<? extends VPPoint> points, int nodeCapacity,
+                  ForkJoinPool pool, int cutoff) {
+        this(points, nodeCapacity, pool, cutoff, VantagePointStrategy.FIRST);
+    }
+
+    /**
+     * Constructs a new vp-tree that contains (and indexes) all of the points in
+     * the given collection, building it in parallel on the given fork/join
+     * pool and choosing vantage points with the given policy.
+     *
+     * @param points  the points to use to populate this vp-tree
+     * @param nodeCapacity  the largest number of points any leaf node of the
+     *                        vp-tree should contain
+     * @param pool  the pool to build the vp-tree on
+     * @param cutoff  the number of points below which subtrees are built
+     *                  sequentially
+     * @param selector  the policy used to choose the vantage point of each
+     *                    node when it is partitioned
+     */
+    @SuppressWarnings("unchecked")
+    public VPTree(Collection<? extends VPPoint> points, int nodeCapacity,
+                  ForkJoinPool pool, int cutoff,
+                  VantagePointSelector selector) {
+        if(nodeCapacity < 1) {
+            throw new IllegalArgumentException("Node capacity must be" +
+                    " greater than zero.");
+        }
+        this.binSize = nodeCapacity;
+        this.selector = selector;
+
+        if(points.isEmpty()) {
+            this.root = new VPNode<E>(nodeCapacity, 1, 0, selector);
+        } else {
+            E[] pointArray = points.toArray((E[])Array.newInstance(
+                    points.iterator().next().getClass(), 0));
+
+            this.root = pool.invoke(new VPNode.BuildTask<>(pointArray, 0,
+                    pointArray.length, this.binSize, 1, 0, cutoff, selector));
+            this.count.set(pointArray.length);
         }
     }
 
@@ -127,6 +263,15 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
         return this.binSize;
     }
 
+    /**
+     * Returns the policy this vp-tree uses to choose vantage points.
+     *
+     * @return the vantage point selection policy
+     */
+    public VantagePointSelector getSelector() {
+        return this.selector;
+    }
+
     /**
      * Adds a single point to this vp-tree. Addition of a point executes in
      * O(log n) time in the best case (where n is the number of points in the
@@ -139,7 +284,9 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
      *         method always returns true
      */
     public long add(E point) {
-        return this.root.add(point);
+        long prefix = this.root.add(point);
+        this.count.incrementAndGet();
+        return prefix;
     }
 
     /**
@@ -152,7 +299,9 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
      *         method always returns true
      */
     public boolean addAll(Collection<? extends E> points) {
-        return this.root.addAll(points);
+        boolean changed = this.root.addAll(points);
+        this.count.addAndGet(points.size());
+        return changed;
     }
 
     /**
@@ -161,6 +310,7 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
      */
     public void clear() {
         this.root = null;
+        this.count.set(0);
     }
 
     /**
@@ -218,13 +368,13 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
     }
 
     /**
-     * Tests whether this vp-tree is empty.
+     * Tests whether this vp-tree is empty. Executes in O(1) time.
      *
      * @return {@code true} if this vp-tree contains no points or {@code false}
      *         otherwise
      */
     public boolean isEmpty() {
-        return this.root.isEmpty();
+        return this.count.get() == 0;
     }
 
 
@@ -279,12 +429,16 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
         VPNode<E> node = stack.pop();
 
         boolean pointRemoved = node.remove(point);
+        if(pointRemoved) {
+            this.count.decrementAndGet();
+        }
 
         if(node.isEmpty()) {
             if(deferPruning) {
                 nodesToPrune.add(node);
-            } else {
-                this.pruneEmptyNode(node);
+            } else if(node != this.root) {
+                /* The rest of the path leads back up to the root */
+                this.pruneEmptyNode(stack);
             }
         }
 
@@ -292,7 +446,8 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
     }
 
     /**
-     * Removes all of the points in the given collection from this vp-tree.
+     * Removes all of the points in the given collection from this vp-tree,
+     * including every copy of each point.
      *
      * @param c
      *            the collection of points to remove from this true
@@ -300,60 +455,115 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
      * @return {@code true} if the vp-tree was modified by removing the given
      *         points (i.e. if any of the points were present in the vp-tree) or
      *         {@code false} otherwise
+     * @see #removeIf(Predicate)
      */
     public boolean removeAll(Collection<?> c) {
-        boolean anyChanged = false;
-        HashSet<VPNode<E>> nodesToPrune = new HashSet<>();
-
-        for(Object o : c) {
-            try {
-                @SuppressWarnings("unchecked")
-                E point = (E)o;
-
-                /* The behavioral contact for Collections states, "After this
-                 call returns, this collection will contain no elements in
-                 common with the specified collection." Make sure we remove
-                 all instances of each point in the collection of points to
-                 remove. */
-                while(this.remove(point, true, nodesToPrune)) {
-                    anyChanged = true;
-                }
-            } catch(ClassCastException e) {
-                /* The object wasn't the kind of point contained in this vp-tree */
-            }
+        if(c.isEmpty()) {
+            return false;
         }
+        Set<?> points = c instanceof Set ? (Set<?>) c : new HashSet<>(c);
+        return this.removeIf(points::contains);
+    }
 
-        /* Avoid duplicating work by removing pruning targets that are children
-           of other pruning targets (since they would be implicitly pruned by
-           pruning the parent). */
-        HashSet<VPNode<E>> nodesToNotPrune = new HashSet<>();
+    /**
+     * Removes all of the points of this vp-tree that satisfy the given
+     * predicate, such as every window of an expired data set. Rather than
+     * searching the tree for each point, a single pass over the leaves marks
+     * the points to remove. The leaves that lost points are then compacted,
+     * and any subtree left with no more points than fit in one leaf is merged
+     * into a single leaf. Parents are found from the list of nodes made
+     * during the pass, not by searching from the root again.
+     * <p/>
+     * Every changed leaf and merged subtree is replaced by a new node rather
+     * than modified, so concurrent searches of a {@link ConcurrentVPTree}
+     * see either the old or the new version of each one. Emptied leaves whose
+     * sibling still holds points are left in place.
+     *
+     * @param filter  the predicate that is {@code true} for the points to
+     *                remove
+     *
+     * @return {@code true} if any points were removed or {@code false}
+     *         otherwise
+     */
+    public boolean removeIf(Predicate<? super E> filter) {
+        List<VPNode<E>> nodes = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+        listNodes(nodes, parents);
 
-        for(VPNode<E> node : nodesToPrune) {
-            for(VPNode<E> potentialAncestor : nodesToPrune) {
-                if(potentialAncestor.isAncestorOfNode(node)) {
-                    nodesToNotPrune.add(node);
+        /* Mark: the survivors of each leaf that loses points, and the
+          number of points and whether anything changed in each subtree */
+        int n = nodes.size();
+        int[] sizes = new int[n];
+        boolean[] changed = new boolean[n];
+        boolean[] leaf = new boolean[n];
+        Map<VPNode<E>, ArrayList<E>> survivors = new IdentityHashMap<>();
+        int removed = 0;
+        for(int i = n - 1; i >= 0; --i) {
+            VPNode<E> node = nodes.get(i);
+            if(node.isLeafNode()) {
+                leaf[i] = true;
+                Collection<E> elements = node.getElements();
+                ArrayList<E> kept = new ArrayList<>(elements.size());
+                for(E point : elements) {
+                    if(!filter.test(point)) {
+                        kept.add(point);
+                    }
+                }
+                sizes[i] = kept.size();
+                if(kept.size() < elements.size()) {
+                    removed += elements.size() - kept.size();
+                    survivors.put(node, kept);
+                    changed[i] = true;
                 }
             }
+            int parent = parents.get(i);
+            if(parent >= 0) {
+                sizes[parent] += sizes[i];
+                changed[parent] |= changed[i];
+            }
+        }
+        if(removed == 0) {
+            return false;
         }
 
-        nodesToPrune.removeAll(nodesToNotPrune);
-
-        /* Now the set of nodes to prune contains only the highest nodes in any
-           branch; prune (and potentially repartition) each of those
-           individually. */
-        for(VPNode<E> node : nodesToPrune) {
-            this.pruneEmptyNode(node);
+        /* Compact: replace the highest changed subtrees that now fit in a
+          leaf with one, and the other changed leaves with their survivors */
+        boolean[] done = new boolean[n];
+        for(int i = 0; i < n; ++i) {
+            int parent = parents.get(i);
+            if(!changed[i] || (parent >= 0 && done[parent])) {
+                done[i] = parent >= 0 && done[parent];
+                continue;
+            }
 
-            if(node.isOverloaded()) {
-                try {
-                    node.partition();
-                } catch(Exception e) {
-                    /* This happens sometimes */
+            VPNode<E> node = nodes.get(i);
+            VPNode<E> replacement;
+            if(leaf[i]) {
+                replacement = node.copyAsLeaf(survivors.get(node));
+            } else if(sizes[i] <= binSize) {
+                List<VPNode<E>> leaves = new ArrayList<>();
+                node.gatherLeafNodes(leaves);
+                ArrayList<E> merged = new ArrayList<>(sizes[i]);
+                for(VPNode<E> l : leaves) {
+                    ArrayList<E> kept = survivors.get(l);
+                    merged.addAll(kept != null ? kept : l.getElements());
                 }
+                replacement = node.copyAsLeaf(merged);
+            } else {
+                continue;
             }
+
+            if(parent < 0) {
+                this.root = replacement;
+            } else {
+                nodes.get(parent).replaceChild(node, replacement);
+            }
+            node.retire();
+            done[i] = true;
         }
 
-        return anyChanged;
+        this.count.addAndGet(-removed);
+        return true;
     }
 
     /**
@@ -380,19 +590,214 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
             /* Immediately pop the first node off the stack (since it's
                the empty leaf node given as an argument). */
             stack.pop();
+            pruneEmptyNode(stack);
+        }
+    }
 
-            /* Work through the stack until either a non-empty parent or the
-               root of the vptree is found */
-            while (stack.peek() != null) {
-                VPNode<E> parent = stack.pop();
-                parent.absorbChildren();
+    /**
+     * Prunes the empty node whose ancestors are on the given stack, nearest
+     * ancestor first, as recorded on the way down to the node.
+     *
+     * @param ancestors the path from the pruned node's parent to the root
+     */
+    private void pruneEmptyNode(Deque<VPNode<E>> ancestors) {
+        /* Work through the stack until either a non-empty parent or the
+           root of the vptree is found */
+        while (ancestors.peek() != null) {
+            VPNode<E> parent = ancestors.pop();
+            parent.absorbChildren();
 
-                /* Return when the parent is non-empty */
-                if (!parent.isEmpty()) {
-                    break;
-                }
+            /* Return when the parent is non-empty */
+            if (!parent.isEmpty()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of levels in this vp-tree.
+     *
+     * @return the height of this vp-tree
+     */
+    public int getHeight() {
+        return this.root.getHeight();
+    }
+
+    /**
+     * Rebuilds the subtrees of this vp-tree that points added one at a time
+     * have left unbalanced. Points added after a build descend on the
+     * vantage points chosen at build time, so while leaves split, the upper
+     * levels are never revisited. A subtree is rebuilt when one child holds
+     * more than {@link #REBALANCE_RATIO} of its points or it is more than
+     * twice as deep as a bulk-built subtree of the same size would be. Only
+     * the highest such subtrees are rebuilt, each in bulk from its points,
+     * and a rebuild that would not make the subtree shallower is discarded.
+     * <p/>
+     * The root of a rebuilt subtree keeps its prefix, but the prefixes below
+     * it change.
+     *
+     * @return the number of subtrees that were rebuilt
+     */
+    public int rebalance() {
+        int rebuilt = 0;
+        for (Subtree<E> candidate : findUnbalancedSubtrees()) {
+            VPNode<E> parent = candidate.parent;
+            VPNode<E> subtree = candidate.root;
+
+            List<VPNode<E>> leaves = new ArrayList<>();
+            subtree.gatherLeafNodes(leaves);
+            VPNode<E> replacement = rebuild(subtree, leaves);
+            if (replacement != null
+                    && replacement.getHeight() < subtree.getHeight()
+                    && replaceSubtree(parent, subtree, leaves, replacement)) {
+                rebuilt++;
+            }
+        }
+        return rebuilt;
+    }
+
+    /**
+     * Lists the nodes of this vp-tree along with the index of each node's
+     * parent in the list (-1 for the root). Every node is listed after its
+     * parent, so walking the list backwards visits children before their
+     * parents.
+     *
+     * @param nodes   the list to populate with the nodes
+     * @param parents the list to populate with the index of each node's
+     *                parent
+     */
+    private void listNodes(List<VPNode<E>> nodes, List<Integer> parents) {
+        ArrayDeque<Integer> stack = new ArrayDeque<>();
+        nodes.add(this.root);
+        parents.add(-1);
+        stack.push(0);
+        while (!stack.isEmpty()) {
+            int index = stack.pop();
+            VPNode<E> node = nodes.get(index);
+            VPNode<E> closer = node.getCloserNode();
+            VPNode<E> farther = node.getFartherNode();
+            if (closer == null || farther == null) {
+                continue;
+            }
+            stack.push(nodes.size());
+            nodes.add(farther);
+            parents.add(index);
+            stack.push(nodes.size());
+            nodes.add(closer);
+            parents.add(index);
+        }
+    }
+
+    /**
+     * Finds the highest unbalanced subtrees of this vp-tree. Each node's
+     * subtree size and height are summed up from its children's.
+     *
+     * @return the parent (or {@code null} for the root) and root of each
+     * unbalanced subtree
+     */
+    protected List<Subtree<E>> findUnbalancedSubtrees() {
+        List<VPNode<E>> nodes = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+        listNodes(nodes, parents);
+
+        int n = nodes.size();
+        int[] sizes = new int[n];
+        int[] heights = new int[n];
+        int[] largestChild = new int[n];
+        for (int i = n - 1; i >= 0; --i) {
+            /* Nodes that no children were listed for are leaves */
+            if (heights[i] == 0) {
+                sizes[i] = nodes.get(i).size();
+            }
+            heights[i]++;
+            int parent = parents.get(i);
+            if (parent >= 0) {
+                sizes[parent] += sizes[i];
+                heights[parent] = Math.max(heights[parent], heights[i]);
+                largestChild[parent] = Math.max(largestChild[parent],
+                        sizes[i]);
             }
         }
+
+        List<Subtree<E>> unbalanced = new ArrayList<>();
+        boolean[] covered = new boolean[n];
+        for (int i = 0; i < n; ++i) {
+            int parent = parents.get(i);
+            covered[i] = parent >= 0 && covered[parent];
+            if (covered[i] || heights[i] == 1
+                    || sizes[i] < REBALANCE_MIN_LEAVES * binSize) {
+                continue;
+            }
+
+            int leaves = (sizes[i] + binSize - 1) / binSize;
+            int balancedHeight = 33 - Integer.numberOfLeadingZeros(
+                    leaves - 1);
+            if (largestChild[i] > REBALANCE_RATIO * sizes[i]
+                    || heights[i] > 2 * balancedHeight) {
+                covered[i] = true;
+                unbalanced.add(new Subtree<>(
+                        parent >= 0 ? nodes.get(parent) : null,
+                        nodes.get(i)));
+            }
+        }
+        return unbalanced;
+    }
+
+    /**
+     * The root of a subtree along with its parent node ({@code null} if the
+     * subtree is the whole tree).
+     */
+    protected static final class Subtree<T extends VPPoint> {
+        final VPNode<T> parent;
+        final VPNode<T> root;
+
+        Subtree(VPNode<T> parent, VPNode<T> root) {
+            this.parent = parent;
+            this.root = root;
+        }
+    }
+
+    /**
+     * Builds a balanced subtree from the points of the given leaves, in place
+     * of the given subtree.
+     *
+     * @return the new subtree, or {@code null} if the leaves hold no points
+     */
+    @SuppressWarnings("unchecked")
+    private VPNode<E> rebuild(VPNode<E> subtree, List<VPNode<E>> leaves) {
+        List<E> points = new ArrayList<>();
+        for (VPNode<E> leaf : leaves) {
+            points.addAll(leaf.getElements());
+        }
+        if (points.isEmpty()) {
+            return null;
+        }
+        E[] pointArray = points.toArray((E[]) Array.newInstance(
+                points.get(0).getClass(), 0));
+        return new VPNode<>(pointArray, 0, pointArray.length, binSize,
+                subtree.getPrefix(), subtree.getDepth(), selector);
+    }
+
+    /**
+     * Puts a rebuilt subtree in place of the subtree it was built from.
+     *
+     * @param parent      the parent of the subtree, or {@code null} if the
+     *                    subtree is the root
+     * @param subtree     the subtree to replace
+     * @param leaves      the leaves of the subtree the replacement was built
+     *                    from
+     * @param replacement the rebuilt subtree
+     * @return {@code true} if the subtree was replaced
+     */
+    protected boolean replaceSubtree(VPNode<E> parent, VPNode<E> subtree,
+                                     List<VPNode<E>> leaves,
+                                     VPNode<E> replacement) {
+        if (parent == null) {
+            this.root = replacement;
+        } else {
+            parent.replaceChild(subtree, replacement);
+        }
+        return true;
     }
 
     /**
@@ -401,7 +806,7 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
      * @return the number of points stored in this vp-tree
      */
     public int size() {
-        return this.root.size();
+        return this.count.get();
     }
 
     /**
@@ -458,6 +863,130 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
         return results.toSortedList(queryPoint);
     }
 
+    /**
+     * Searches this vp-tree for the nearest neighbors of the query point,
+     * offering candidates to the given result set. The caller can inspect the
+     * result set afterwards, e.g. for the number of distance computations the
+     * search performed.
+     *
+     * @param queryPoint  the point for which to find nearby neighbors
+     * @param results  the result set to which to offer points
+     */
+    public void getNearestNeighbors(VPPoint queryPoint,
+                                    BoundedPriorityQueue<E> results) {
+        this.root.getNearestNeighbors(queryPoint, results);
+    }
+
+    /**
+     * Finds up to {@code maxResults} nearest neighbors of the query point
+     * that are no further than {@code maxDistance} from it. Subtrees beyond
+     * that distance are never visited, even while fewer than
+     * {@code maxResults} points have been found.
+     *
+     * @param queryPoint  the point for which to find nearby neighbors
+     * @param maxResults  the maximum number of neighbors to return
+     * @param maxDistance the largest distance (inclusive) of a neighbor from
+     *                    the query point
+     * @return the neighbors found, in order of increasing distance
+     */
+    public List<E> getNearestNeighbors(VPPoint queryPoint, int maxResults,
+                                       double maxDistance) {
+        BoundedPriorityQueue<E> results = new BoundedPriorityQueue<>(
+                queryPoint, maxResults, maxDistance);
+        this.root.getNearestNeighbors(queryPoint, results);
+        return results.toSortedList(queryPoint);
+    }
+
+    /**
+     * Finds the nearest neighbors of each of several query points in a
+     * single walk of the tree. Queries that take the same path through the
+     * tree share the visits to its nodes, which is far cheaper than one
+     * search per query when the queries are close together, e.g. the
+     * overlapping windows of a longer sequence.
+     *
+     * @param queryPoints the points for which to find nearby neighbors
+     * @param maxResults  the maximum number of neighbors of each query point
+     * @param maxDistance the largest distance (inclusive) of a neighbor from
+     *                    its query point
+     * @return for each query point, in order, its neighbors in order of
+     * increasing distance
+     */
+    public List<List<E>> getNearestNeighbors(
+            List<? extends VPPoint> queryPoints, int maxResults,
+            double maxDistance) {
+        @SuppressWarnings("unchecked")
+        BoundedPriorityQueue<E>[] results = (BoundedPriorityQueue<E>[])
+                Array.newInstance(BoundedPriorityQueue.class,
+                        queryPoints.size());
+        for (int i = 0; i < results.length; ++i) {
+            results[i] = new BoundedPriorityQueue<>(queryPoints.get(i),
+                    maxResults, maxDistance);
+        }
+        getNearestNeighbors(queryPoints.toArray(new VPPoint[0]), results);
+
+        List<List<E>> neighbors = new ArrayList<>(results.length);
+        for (int i = 0; i < results.length; ++i) {
+            neighbors.add(results[i].toSortedList(queryPoints.get(i)));
+        }
+        return neighbors;
+    }
+
+    /**
+     * Searches this vp-tree for the nearest neighbors of several query points
+     * in a single walk, offering candidates for each query point to the
+     * result set at the same index. Each result set keeps its own capacity
+     * and maximum distance.
+     *
+     * @param queryPoints the points for which to find nearby neighbors
+     * @param results     the result set of each query point
+     */
+    public void getNearestNeighbors(VPPoint[] queryPoints,
+                                    BoundedPriorityQueue<E>[] results) {
+        if (queryPoints.length != results.length) {
+            throw new IllegalArgumentException("Each query point needs" +
+                    " exactly one result set.");
+        }
+        int[] active = new int[queryPoints.length];
+        for (int i = 0; i < active.length; ++i) {
+            active[i] = i;
+        }
+        this.root.getNearestNeighbors(queryPoints, results, active,
+                active.length);
+    }
+
+    /**
+     * Finds approximately the nearest neighbors of the query point, limiting
+     * the search to the given budget. With {@link SearchBudget#EXACT} the
+     * results are the same as those of an exact search.
+     *
+     * @param queryPoint the point for which to find nearby neighbors
+     * @param maxResults the maximum number of neighbors to return
+     * @param budget     the limits on the work the search may do
+     * @return the neighbors found, in order of increasing distance
+     */
+    public List<E> getNearestNeighbors(VPPoint queryPoint, int maxResults,
+                                       SearchBudget budget) {
+        BoundedPriorityQueue<E> results = new BoundedPriorityQueue<>(
+                queryPoint, maxResults);
+        results.setBudget(budget);
+        this.root.getNearestNeighbors(queryPoint, results);
+        return results.toSortedList(queryPoint);
+    }
+
+    /**
+     * Returns an iterator over the points of this vp-tree in order of
+     * increasing distance from the query point. The tree is searched
+     * lazily, as neighbors are requested.
+     *
+     * @param queryPoint the point whose neighbors to iterate over
+     * @return an iterator over the neighbors of the query point
+     * @see NearestNeighborIterator
+     */
+    public NearestNeighborIterator<E> nearestNeighborIterator(
+            VPPoint queryPoint) {
+        return new NearestNeighborIterator<>(this.root, queryPoint);
+    }
+
     public E getNearestNeighbor(VPPoint queryPoint) {
         BoundedPriorityQueue<E> results = new BoundedPriorityQueue<>(
                 queryPoint, 1);
@@ -465,6 +994,37 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
         return results.peek();
     }
 
+    /**
+     * Returns every point in this vp-tree within the given distance of the
+     * query point. The order of the points is not defined.
+     *
+     * @param queryPoint the center of the search
+     * @param radius     the largest distance (inclusive) from the query point
+     * @return a list of the points within range
+     */
+    public List<E> getPointsWithinRange(VPPoint queryPoint, double radius) {
+        List<E> points = new ArrayList<>();
+        this.root.getPointsWithinRange(queryPoint, radius,
+                (point, distance) -> points.add(point));
+        return points;
+    }
+
+    /**
+     * Passes every point in this vp-tree within the given distance of the
+     * query point to the visitor as it is found, without collecting the
+     * results. The visitor may stop the search early.
+     *
+     * @param queryPoint the center of the search
+     * @param radius     the largest distance (inclusive) from the query point
+     * @param visitor    the visitor to pass matching points to
+     * @return {@code false} if the visitor stopped the search or
+     * {@code true} otherwise
+     */
+    public boolean getPointsWithinRange(VPPoint queryPoint, double radius,
+                                        PointVisitor<E> visitor) {
+        return this.root.getPointsWithinRange(queryPoint, radius, visitor);
+    }
+
     public String generateDot() {
         String dot = "graph VPTree {\n";
         dot += root.generateDot(0);
@@ -478,9 +1038,30 @@ public class VPTree<E extends VPPoint> implements ByteSerializable {
         out.writeSerializable(root);
     }
 
+    /**
+     * Reads a vp-tree from a stream. Vantage point selection policies are
+     * not serialized, so the tree uses {@link VantagePointStrategy#FIRST}.
+     *
+     * @see #VPTree(SerializationInputStream, VantagePointSelector)
+     */
     @Deserialize
     public VPTree(SerializationInputStream in) throws IOException {
+        this(in, VantagePointStrategy.FIRST);
+    }
+
+    /**
+     * Reads a vp-tree from a stream, choosing the vantage points of nodes
+     * built or repartitioned from now on with the given selector.
+     *
+     * @param in       the stream to read the vp-tree from
+     * @param selector the policy used to choose the vantage point of each
+     *                 node when it is partitioned
+     */
+    public VPTree(SerializationInputStream in, VantagePointSelector selector)
+            throws IOException {
         this.binSize = in.readInt();
-        this.root = new VPNode<>(in);
+        this.selector = selector;
+        this.root = new VPNode<>(in, selector);
+        this.count.set(this.root.size());
     }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.vptree;
+
+/**
+ * Chooses the vantage point (center) a {@link VPNode} partitions its
+ * elements around. The choice determines how balanced the resulting split
+ * is and how well searches can prune the node's subtrees.
+ *
+ * @author ctolooee
+ * @see VantagePointStrategy
+ */
+public interface VantagePointSelector {
+
+    /**
+     * Chooses a vantage point from a subset of the given array. The array
+     * must not be modified.
+     *
+     * @param elements the array of candidate elements
+     * @param lower    the start index of the subset (inclusive)
+     * @param upper    the end index of the subset (exclusive)
+     * @return the index of the chosen vantage point, within
+     * {@code [lower, upper)}
+     */
+    <T extends VPPoint> int select(T[] elements, int lower, int upper);
+}
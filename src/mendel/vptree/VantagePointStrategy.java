@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2015, Colorado State University All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer. 2. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ *
+ * This software is provided by the copyright holders and contributors "as is"
+ * and any express or implied warranties, including, but not limited to, the
+ * implied warranties of merchantability and fitness for a particular purpose
+ * are disclaimed. In no event shall the copyright holder or contributors be
+ * liable for any direct, indirect, incidental, special, exemplary, or
+ * consequential damages (including, but not limited to, procurement of
+ * substitute goods or services; loss of use, data, or profits; or business
+ * interruption) however caused and on any theory of liability, whether in
+ * contract, strict liability, or tort (including negligence or otherwise)
+ * arising in any way out of the use of this software, even if advised of the
+ * possibility of such damage.
+ */
+
+package mendel.vptree;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The built-in vantage point selection policies.
+ *
+ * @author ctolooee
+ */
+public enum VantagePointStrategy implements VantagePointSelector {
+
+    /**
+     * Uses the first element of the range. This is the cheapest policy but
+     * splits poorly when the elements arrive in a skewed order.
+     */
+    FIRST {
+        @Override
+        public <T extends VPPoint> int select(T[] elements, int lower,
+                                              int upper) {
+            return lower;
+        }
+    },
+
+    /**
+     * Uses an element of the range chosen uniformly at random.
+     */
+    RANDOM {
+        @Override
+        public <T extends VPPoint> int select(T[] elements, int lower,
+                                              int upper) {
+            return lower + ThreadLocalRandom.current().nextInt(upper - lower);
+        }
+    },
+
+    /**
+     * Samples a few candidates and uses the one whose distances to a sample
+     * of the range have the largest variance. A vantage point with widely
+     * spread distances splits its elements into well separated shells, which
+     * lets searches prune more of the tree.
+     */
+    MAX_SPREAD {
+        @Override
+        public <T extends VPPoint> int select(T[] elements, int lower,
+                                              int upper) {
+            Random random = ThreadLocalRandom.current();
+            int sampleSize = Math.min(SAMPLE_SIZE, upper - lower);
+            int[] sample = new int[sampleSize];
+            for (int i = 0; i < sampleSize; ++i) {
+                sample[i] = lower + random.nextInt(upper - lower);
+            }
+
+            int best = lower;
+            double bestSpread = -1;
+            int candidates = Math.min(CANDIDATES, upper - lower);
+            for (int c = 0; c < candidates; ++c) {
+                int candidate = lower + random.nextInt(upper - lower);
+                double sum = 0, sumOfSquares = 0;
+                for (int index : sample) {
+                    double distance = elements[candidate]
+                            .getDistanceTo(elements[index]);
+                    sum += distance;
+                    sumOfSquares += distance * distance;
+                }
+                double mean = sum / sampleSize;
+                double spread = sumOfSquares / sampleSize - mean * mean;
+                if (spread > bestSpread) {
+                    best = candidate;
+                    bestSpread = spread;
+                }
+            }
+            return best;
+        }
+    },
+
+    /**
+     * Picks a random element and uses the element of a sample of the range
+     * that is farthest from it. Points on the edge of the data make good
+     * vantage points because their distances to the rest vary the most.
+     */
+    FARTHEST {
+        @Override
+        public <T extends VPPoint> int select(T[] elements, int lower,
+                                              int upper) {
+            Random random = ThreadLocalRandom.current();
+            T start = elements[lower + random.nextInt(upper - lower)];
+            int farthest = lower;
+            double farthestDistance = -1;
+            int sampleSize = Math.min(SAMPLE_SIZE * CANDIDATES, upper - lower);
+            for (int i = 0; i < sampleSize; ++i) {
+                int index = lower + random.nextInt(upper - lower);
+                double distance = start.getDistanceTo(elements[index]);
+                if (distance > farthestDistance) {
+                    farthest = index;
+                    farthestDistance = distance;
+                }
+            }
+            return farthest;
+        }
+    };
+
+    /**
+     * The number of elements the distances of a candidate are sampled from.
+     */
+    private static final int SAMPLE_SIZE = 32;
+
+    /**
+     * The number of candidates considered by {@link #MAX_SPREAD}.
+     */
+    private static final int CANDIDATES = 8;
+
+    /**
+     * Returns the strategy with the given name, ignoring case and treating
+     * '-' as '_' (e.g. "max-spread").
+     *
+     * @param name the name of the strategy
+     * @return the strategy
+     * @throws IllegalArgumentException if there is no such strategy
+     */
+    public static VantagePointStrategy forName(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
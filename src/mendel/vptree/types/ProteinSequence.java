@@ -36,6 +36,10 @@ public class ProteinSequence extends Sequence {
         super(word);
     }
 
+    public ProteinSequence(String source, int start, int end) {
+        super(source, start, end);
+    }
+
     public ProteinSequence(Sequence other) {
         super(other);
     }
@@ -51,30 +55,9 @@ public class ProteinSequence extends Sequence {
 
     @Override
     public double getDistanceTo(VPPoint other) {
-        String word2 = ((ProteinSequence) other).word;
-        if (word == null || word2 == null) {
-            throw new IllegalArgumentException("Received null argument");
-        } else if (word.length() != word2.length()) {
-            //throw new IllegalArgumentException("Kmers are not the same length");
-        }
-        word = word.toUpperCase();
-        word2 = word2.toUpperCase();
-        char[] c1 = word.toCharArray();
-        char[] c2 = word2.toCharArray();
-        int len = c1.length < c2.length ? c1.length : c2.length;
-        int score = 0;
-        for (int i = 0; i < len; i++) {
-            Double val = SubMatrix.SUB_MATRIX.get(String.valueOf(c1[i]) + String.valueOf(c2[i]));
-            if(val == null) {
-                val = 13.0;
-            }
-            score += val;
-        }
-        return score;
+        return SubMatrix.getDistance(residues, ((Sequence) other).residues);
     }
 
-
-
     public static void main(String[] args) {
         ProteinSequence seq1 = new ProteinSequence("MLDYFFNPKGIAVIGASNDPKKLGYEVFKNLKEYKKGKVYPVNIKEEEVQGVKAYKSVKD" +
                 "IPDEIDLAIIVVPKRFVKDTLIQCGEKGVKGVVIITAGFGETGEEGKREEKELVEIAHKY" +
@@ -33,33 +33,59 @@ import mendel.util.SmithWaterman;
 import mendel.vptree.VPPoint;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Implementation of a Sequence as a point in a {@link mendel.vptree.VPTree}.
+ * The residues of the word are stored encoded as 7-bit ASCII, one byte per
+ * residue; characters outside of that range are stored as 0. The word is
+ * only materialized as a String when requested.
+ * <p/>
+ * A sequence that is a window of a larger (parent) sequence may hold the
+ * parent in memory, but the parent is never serialized with the window.
+ * Containers that ship windows carry the parents once in a
+ * {@link mendel.data.SequenceDictionary}, and indexed windows refer to their
+ * parent by its dictionary ID and their offset into it. Only the parent ID is
+ * serialized; the sequence ID (FASTA header) is resolved from the dictionary
+ * that accompanies the window.
  *
  * @author ctolooee
  */
 public class Sequence implements VPPoint, ByteSerializable {
 
-    protected String word, sequenceID, wholeSequece;
-    protected int sequenceLength, sequencePos, length;
+    protected byte[] residues;
+    protected String sequenceID, wholeSequece;
+    protected int sequenceLength, sequencePos, parentID;
 
 
     public Sequence(String word) {
-        this.word = word;
-        this.length = word.length();
+        this(word, 0, word.length());
+    }
+
+    /**
+     * Constructs a Sequence from a window of a larger sequence without
+     * copying the window out as a separate String first.
+     *
+     * @param source the sequence containing the window
+     * @param start  the index of the first residue of the window (inclusive)
+     * @param end    the index of the last residue of the window (exclusive)
+     */
+    public Sequence(String source, int start, int end) {
+        this.residues = encode(source, start, end);
         this.sequenceID = "";
         this.sequencePos = -1;
         this.sequenceLength = -1;
+        this.parentID = -1;
         this.wholeSequece = "";
     }
 
     public Sequence(Sequence other) {
-        this.word = other.word;
-        this.length = word.length();
+        this.residues = other.residues;
         this.sequenceID = other.sequenceID;
         this.sequencePos = other.sequencePos;
         this.sequenceLength = other.sequenceLength;
+        this.parentID = other.parentID;
         this.wholeSequece = other.wholeSequece;
     }
 
@@ -68,15 +94,33 @@ public class Sequence implements VPPoint, ByteSerializable {
             throw new IllegalArgumentException();
         } else {
             Sequence other = (Sequence) center;
-            this.word = other.word;
-            this.length = word.length();
+            this.residues = other.residues;
             this.sequenceID = other.sequenceID;
             this.sequencePos = other.sequencePos;
             this.sequenceLength = other.sequenceLength;
+            this.parentID = other.parentID;
             this.wholeSequece = other.wholeSequece;
         }
     }
 
+    /**
+     * Encodes a range of characters into residue codes, one byte per
+     * residue.
+     *
+     * @param source the characters to encode
+     * @param start  the index of the first character to encode (inclusive)
+     * @param end    the index of the last character to encode (exclusive)
+     * @return the encoded residues
+     */
+    public static byte[] encode(String source, int start, int end) {
+        byte[] encoded = new byte[end - start];
+        for (int i = 0; i < encoded.length; ++i) {
+            char c = source.charAt(start + i);
+            encoded[i] = c < 128 ? (byte) c : 0;
+        }
+        return encoded;
+    }
+
     @Override
     /**
      * Modified Hamming distance function implementation for config reads.
@@ -87,21 +131,14 @@ public class Sequence implements VPPoint, ByteSerializable {
      *                 distance to.
      */
     public double getDistanceTo(VPPoint other) {
-        String word2 = ((Sequence) other).word;
-        if (word == null || word2 == null) {
-            throw new IllegalArgumentException("Received null argument");
-        } else if (word.length() != word2.length()) {
-            //throw new IllegalArgumentException("Kmers are not the same length");
-        }
-
-        char[] c1 = word.toCharArray();
-        char[] c2 = word2.toCharArray();
-        int len = c1.length < c2.length ? c1.length : c2.length;
+        byte[] r1 = residues;
+        byte[] r2 = ((Sequence) other).residues;
+        int len = r1.length < r2.length ? r1.length : r2.length;
         int count = len;
 
         for (int i = 0; i < len; i++) {
             /* Wildcard character 'N' always counts as a match */
-            if (c1[i] == 'N' || c2[i] == 'N' || c1[i] == c2[i]) {
+            if (r1[i] == 'N' || r2[i] == 'N' || r1[i] == r2[i]) {
                 --count;
             }
         }
@@ -118,17 +155,24 @@ public class Sequence implements VPPoint, ByteSerializable {
     }
 
 
-        @Override
+    @Override
     public int compareTo(VPPoint other) {
-        String word2;
+        byte[] r2;
 
         /* Validate arguments */
         if (other instanceof Sequence) {
-            word2 = ((Sequence) other).word;
+            r2 = ((Sequence) other).residues;
         } else {
             throw new IllegalArgumentException();
         }
-        return word.compareTo(word2);
+
+        int len = residues.length < r2.length ? residues.length : r2.length;
+        for (int i = 0; i < len; ++i) {
+            if (residues[i] != r2[i]) {
+                return residues[i] - r2[i];
+            }
+        }
+        return residues.length - r2.length;
     }
 
     @Override
@@ -138,36 +182,42 @@ public class Sequence implements VPPoint, ByteSerializable {
 
         Sequence sequence = (Sequence) o;
 
-        return word.equals(sequence.word);
+        return Arrays.equals(residues, sequence.residues);
 
     }
 
     @Override
     public int hashCode() {
-        return word.hashCode();
+        return Arrays.hashCode(residues);
     }
 
     @Override
     public String toString() {
-        return word;
+        return getWord();
     }
 
     @Deserialize
     public Sequence(SerializationInputStream in) throws IOException {
-        this.word = in.readString();
-        this.sequenceID = in.readString();
+        this.residues = in.readField();
+        for (int i = 0; i < residues.length; ++i) {
+            /* Older indexes stored the word in the platform charset */
+            if (residues[i] < 0) {
+                residues[i] = 0;
+            }
+        }
+        this.sequenceID = "";
         this.sequenceLength = in.readInt();
         this.sequencePos = in.readInt();
-        this.wholeSequece = in.readString();
+        this.parentID = in.readInt();
+        this.wholeSequece = "";
     }
 
     @Override
     public void serialize(SerializationOutputStream out) throws IOException {
-        out.writeString(word);
-        out.writeString(sequenceID);
+        out.writeField(residues);
         out.writeInt(sequenceLength);
         out.writeInt(sequencePos);
-        out.writeString(wholeSequece);
+        out.writeInt(parentID);
     }
 
     public void setSequencePos(int sequencePos) {
@@ -182,8 +232,13 @@ public class Sequence implements VPPoint, ByteSerializable {
         this.sequenceID = sequenceID;
     }
 
+    /**
+     * Decodes the residues of this sequence into a new String.
+     *
+     * @return the word represented by this sequence
+     */
     public String getWord() {
-        return word;
+        return new String(residues, StandardCharsets.US_ASCII);
     }
 
     public String getSequenceID() {
@@ -199,7 +254,21 @@ public class Sequence implements VPPoint, ByteSerializable {
     }
 
     public int getLength() {
-        return length;
+        return residues.length;
+    }
+
+    /**
+     * Sets the integer ID of this window's parent sequence within the
+     * {@link mendel.data.SequenceDictionary} of the node storing it.
+     *
+     * @param parentID the parent's dictionary ID, or -1 if there is none
+     */
+    public void setParentID(int parentID) {
+        this.parentID = parentID;
+    }
+
+    public int getParentID() {
+        return parentID;
     }
 
     public void setWholeSequence(String seq) {
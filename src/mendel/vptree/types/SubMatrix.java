@@ -25,6 +25,7 @@
 
 package mendel.vptree.types;
 
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -38,6 +39,28 @@ public class SubMatrix {
      */
     public static Map<String, Double> SUB_MATRIX = new HashMap<>();
 
+    /**
+     * The distance assigned to residue pairs that do not appear in
+     * {@link #SUB_MATRIX}, such as ambiguity codes or unknown residues.
+     */
+    public static final int UNKNOWN_DISTANCE = 13;
+
+    /**
+     * The number of residue codes. Residues are encoded as 7-bit ASCII by
+     * {@link Sequence#encode(String, int, int)}; characters outside of that
+     * range all share the code 0.
+     */
+    public static final int ALPHABET_SIZE = 128;
+
+    /**
+     * Flattened {@link #ALPHABET_SIZE} x {@link #ALPHABET_SIZE} view of
+     * {@link #SUB_MATRIX} indexed by <code>(a &lt;&lt; 7) | b</code> for the
+     * residue codes a and b. Lower case residues score the same as their
+     * upper case counterparts.
+     */
+    private static final byte[] DISTANCES
+            = new byte[ALPHABET_SIZE * ALPHABET_SIZE];
+
     static {
         SUB_MATRIX.put("CC", 0.0);  SUB_MATRIX.put("CS", 10.0);
         SUB_MATRIX.put("CT", 10.0); SUB_MATRIX.put("CP", 12.0);
@@ -288,6 +311,75 @@ public class SubMatrix {
 
         /* Make sure no one does modify the substitution values */
         SUB_MATRIX = Collections.unmodifiableMap(SUB_MATRIX);
+
+        for (int a = 0; a < ALPHABET_SIZE; ++a) {
+            for (int b = 0; b < ALPHABET_SIZE; ++b) {
+                String pair = String.valueOf(Character.toUpperCase((char) a))
+                        + Character.toUpperCase((char) b);
+                Double val = SUB_MATRIX.get(pair);
+                DISTANCES[(a << 7) | b] = (byte) (val == null
+                        ? UNKNOWN_DISTANCE : val.intValue());
+            }
+        }
+    }
+
+    /**
+     * Sums the substitution distances of two encoded words, position by
+     * position. If the words differ in length, only the common prefix is
+     * scored.
+     *
+     * @param a the residue codes of the first word
+     * @param b the residue codes of the second word
+     * @return the distance between the two words
+     */
+    public static int getDistance(byte[] a, byte[] b) {
+        int len = a.length < b.length ? a.length : b.length;
+        int score = 0;
+        for (int i = 0; i < len; ++i) {
+            score += DISTANCES[(a[i] << 7) | b[i]];
+        }
+        return score;
+    }
+
+    /**
+     * Sums the substitution distances between a word stored in a larger
+     * array of residue codes and an encoded word, position by position.
+     *
+     * @param a       the array holding the residue codes of the first word
+     * @param offset  the index of the first word in the array
+     * @param length  the length of the first word
+     * @param b       the residue codes of the second word
+     * @return the distance between the two words
+     */
+    public static int getDistance(byte[] a, int offset, int length,
+                                  byte[] b) {
+        int len = length < b.length ? length : b.length;
+        int score = 0;
+        for (int i = 0; i < len; ++i) {
+            score += DISTANCES[(a[offset + i] << 7) | b[i]];
+        }
+        return score;
+    }
+
+    /**
+     * Sums the substitution distances between a word encoded in a buffer
+     * (for example, a memory-mapped index) and an encoded word, position by
+     * position. The buffer's position is not modified.
+     *
+     * @param a       the buffer holding the residue codes of the first word
+     * @param offset  the absolute index of the first word in the buffer
+     * @param length  the length of the first word
+     * @param b       the residue codes of the second word
+     * @return the distance between the two words
+     */
+    public static int getDistance(ByteBuffer a, int offset, int length,
+                                  byte[] b) {
+        int len = length < b.length ? length : b.length;
+        int score = 0;
+        for (int i = 0; i < len; ++i) {
+            score += DISTANCES[(a.get(offset + i) << 7) | b[i]];
+        }
+        return score;
     }
 
     public static void main(String[] args) {